@@ -0,0 +1,119 @@
+package CNN;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import CNN.CNN.LayerBuilder;
+import CNN.Layer.Size;
+import dataset.Dataset;
+import dataset.Dataset.Record;
+
+/**
+ * The network of {@link RunCNN} on random 28x28 records: the forward pass of
+ * inference, one forward and backward training step and the parameter
+ * update of a batch
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class CNNBenchmark {
+	private static final int CLASS_NUM = 10;
+
+	// Training batch size, and records per forward pass of forwardBatch
+	@Param({ "1", "16", "64" })
+	public int batchSize;
+
+	@Param({ "DOUBLE", "FLOAT" })
+	public CNN.Precision precision;
+
+	private CNN cnn;
+	private InferenceSession session;
+	private Record[] records;
+	private double[] out;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		LayerBuilder builder = new LayerBuilder();
+		builder.addLayer(Layer.buildInputLayer(new Size(28, 28)));
+		builder.addLayer(Layer.buildConvLayer(6, new Size(5, 5)));
+		builder.addLayer(Layer.buildSampLayer(new Size(2, 2)));
+		builder.addLayer(Layer.buildConvLayer(12, new Size(5, 5)));
+		builder.addLayer(Layer.buildSampLayer(new Size(2, 2)));
+		builder.addLayer(Layer.buildOutputLayer(CLASS_NUM));
+		builder.setPrecision(precision);
+		cnn = new CNN(builder, batchSize);
+		Random random = new Random(1);
+		Dataset dataset = new Dataset(28 * 28);
+		for (int i = 0; i < Math.max(batchSize, CLASS_NUM); i++) {
+			double[] attrs = new double[28 * 28];
+			for (int j = 0; j < attrs.length; j++)
+				attrs[j] = random.nextDouble();
+			dataset.append(attrs, (double) (i % CLASS_NUM));
+		}
+		records = new Record[dataset.size()];
+		for (int i = 0; i < records.length; i++)
+			records[i] = dataset.getRecord(i);
+		session = new InferenceSession(cnn, batchSize);
+		out = new double[batchSize * CLASS_NUM];
+		// Gradients of a full batch for updateParas
+		for (int r = 0; r < batchSize; r++)
+			cnn.trainRecord(records[r], r);
+	}
+
+	/**
+	 * Forward pass of one record
+	 */
+	@Benchmark
+	public double[] forward() {
+		Record record = records[next];
+		next = (next + 1) % records.length;
+		return session.predict(record);
+	}
+
+	/**
+	 * Forward pass of batchSize records together, divide by batchSize for
+	 * the time per record
+	 */
+	@Benchmark
+	public double[] forwardBatch() {
+		session.predict(records, batchSize, out);
+		return out;
+	}
+
+	/**
+	 * Forward and backward pass of one record
+	 */
+	@Benchmark
+	public boolean trainStep() {
+		Record record = records[next];
+		next = (next + 1) % records.length;
+		return cnn.trainRecord(record, 0);
+	}
+
+	/**
+	 * Apply the gradients of a batch to the kernels and biases
+	 */
+	@Benchmark
+	public CNN updateParas() {
+		cnn.updateParas(batchSize);
+		return cnn;
+	}
+}
@@ -0,0 +1,172 @@
+package CNN;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import CNN.Layer.Size;
+import util.Tensor;
+import util.Util;
+
+/**
+ * The convolutions of a layer with 6 input maps and 12 output maps over a
+ * batch, each way the network can compute them: forward through the im2col
+ * GEMM of {@link ConvEngine}, record by record or the whole batch in one
+ * multiplication, or through {@link FftConv}; the residuals of the previous
+ * layer and the kernel gradient directly or through {@link FftConv}. The
+ * pairs show where {@link CNN.Convolution#AUTO} should switch to the FFT.
+ * Everything runs on the calling thread except the FFT gradient, which uses
+ * the pool like in training
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ConvBenchmark {
+	private static final int IN_MAP_NUM = 6;
+	private static final int OUT_MAP_NUM = 12;
+
+	// Side of the input maps, 12 is the second convolution layer of RunCNN
+	@Param({ "12", "28" })
+	public int mapSize;
+
+	@Param({ "5", "9" })
+	public int kernelSize;
+
+	@Param({ "1", "16", "64" })
+	public int batchSize;
+
+	private Size inSize;
+	private Size outSize;
+	private int inRecordLength;
+	private int outRecordLength;
+	private Tensor kernel;
+	private double[] bias;
+	// [record][IN_MAP_NUM][inSize] and [record][OUT_MAP_NUM][outSize]
+	private Tensor lastMaps;
+	private Tensor errors;
+	private double[] maps;
+	private double[] lastErrors;
+	private double[] deltaKernel;
+	private ConvEngine engine;
+	private FftConv fft;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(1);
+		inSize = new Size(mapSize, mapSize);
+		outSize = inSize.subtract(new Size(kernelSize, kernelSize), 1);
+		inRecordLength = IN_MAP_NUM * inSize.x * inSize.y;
+		outRecordLength = OUT_MAP_NUM * outSize.x * outSize.y;
+		kernel = random(random, IN_MAP_NUM, OUT_MAP_NUM, kernelSize,
+				kernelSize);
+		bias = new double[OUT_MAP_NUM];
+		for (int j = 0; j < OUT_MAP_NUM; j++)
+			bias[j] = random.nextDouble() - 0.5;
+		lastMaps = random(random, batchSize, IN_MAP_NUM, inSize.x, inSize.y);
+		errors = random(random, batchSize, OUT_MAP_NUM, outSize.x, outSize.y);
+		maps = new double[batchSize * outRecordLength];
+		lastErrors = new double[batchSize * inRecordLength];
+		deltaKernel = new double[IN_MAP_NUM * OUT_MAP_NUM * kernelSize
+				* kernelSize];
+		Size kernelSize = new Size(this.kernelSize, this.kernelSize);
+		engine = new ConvEngine(IN_MAP_NUM, inSize, OUT_MAP_NUM, kernelSize);
+		engine.prepare(kernel);
+		fft = new FftConv(IN_MAP_NUM, inSize, OUT_MAP_NUM, kernelSize);
+		fft.prepare(kernel);
+	}
+
+	private static Tensor random(Random random, int... shape) {
+		Tensor tensor = new Tensor(shape);
+		double[] data = tensor.getData();
+		for (int i = 0; i < data.length; i++)
+			data[i] = random.nextDouble() - 0.5;
+		return tensor;
+	}
+
+	@Benchmark
+	public double[] gemmForward() {
+		int outLength = outSize.x * outSize.y;
+		for (int r = 0; r < batchSize; r++)
+			engine.convolveSigmod(lastMaps.getData(), r * inRecordLength, maps,
+					r * outRecordLength, 0, outLength, bias);
+		return maps;
+	}
+
+	/**
+	 * The layout of the batched maps is [map][record], the random inputs are
+	 * read that way
+	 */
+	@Benchmark
+	public double[] gemmForwardBatch() {
+		engine.convolveSigmod(lastMaps.getData(), 0, batchSize, maps, 0, 0,
+				batchSize * outSize.x * outSize.y, bias);
+		return maps;
+	}
+
+	@Benchmark
+	public double[] fftForward() {
+		for (int r = 0; r < batchSize; r++)
+			fft.convolveSigmod(lastMaps.getData(), r * inRecordLength, maps, r
+					* outRecordLength, bias);
+		return maps;
+	}
+
+	@Benchmark
+	public double[] directBackward() {
+		double[] sum = lastErrors;
+		int inLength = inSize.x * inSize.y;
+		Arrays.fill(sum, 0);
+		for (int r = 0; r < batchSize; r++)
+			for (int i = 0; i < IN_MAP_NUM; i++)
+				for (int j = 0; j < OUT_MAP_NUM; j++)
+					Util.convnFullRot180(errors.getData(), errors.offset(r, j),
+							outSize.x, outSize.y, kernel.getData(),
+							kernel.offset(i, j), kernelSize, kernelSize, sum, r
+									* inRecordLength + i * inLength);
+		return sum;
+	}
+
+	@Benchmark
+	public double[] fftBackward() {
+		for (int r = 0; r < batchSize; r++)
+			fft.backward(errors.getData(), r * outRecordLength, lastErrors, r
+					* inRecordLength);
+		return lastErrors;
+	}
+
+	@Benchmark
+	public double[] directGradient() {
+		int kernelLength = kernelSize * kernelSize;
+		for (int i = 0; i < IN_MAP_NUM; i++)
+			for (int j = 0; j < OUT_MAP_NUM; j++)
+				for (int r = 0; r < batchSize; r++)
+					Util.convnValid(lastMaps.getData(), lastMaps.offset(r, i),
+							inSize.x, inSize.y, errors.getData(),
+							errors.offset(r, j), outSize.x, outSize.y,
+							deltaKernel, (i * OUT_MAP_NUM + j) * kernelLength,
+							r > 0);
+		return deltaKernel;
+	}
+
+	@Benchmark
+	public double[] fftGradient() {
+		return fft.gradient(lastMaps, errors, batchSize);
+	}
+}
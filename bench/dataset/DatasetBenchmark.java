@@ -0,0 +1,69 @@
+package dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing a CSV dataset of MNIST shaped rows, 784 pixels and a label, with
+ * {@link Dataset#load(String, String, int)}
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class DatasetBenchmark {
+	private static final int ATTR_NUM = 784;
+
+	@Param({ "1000", "10000" })
+	public int rows;
+
+	@Param({ "false", "true" })
+	public boolean floatStorage;
+
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("dataset", ".format");
+		Random random = new Random(1);
+		PrintWriter writer = new PrintWriter(file);
+		try {
+			for (int r = 0; r < rows; r++) {
+				for (int i = 0; i < ATTR_NUM; i++)
+					writer.print(random.nextInt(256) + ",");
+				writer.println(r % 10);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public Dataset load() {
+		return Dataset.load(file.getPath(), ",", ATTR_NUM, floatStorage);
+	}
+}
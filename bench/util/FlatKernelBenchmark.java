@@ -0,0 +1,119 @@
+package util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import CNN.Layer.Size;
+
+/**
+ * The kernels of {@link Util} on flat row-major storage, the ones the
+ * training step runs, over the maps of a batch stored one after another:
+ * valid convolution with a 5x5 kernel, the full convolution with the
+ * rotated kernel of the backward pass, 2x2 mean pooling and the fused
+ * sigmoid derivative and kronecker expansion of the pooling residuals
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class FlatKernelBenchmark {
+	private static final Size SCALE = new Size(2, 2);
+
+	// Side of the input map, 28 is an MNIST image, 24 and 8 the conv outputs
+	@Param({ "8", "24", "28" })
+	public int mapSize;
+
+	@Param({ "5" })
+	public int kernelSize;
+
+	// Maps processed per call, divide by batchSize for the time per map
+	@Param({ "1", "16", "64" })
+	public int batchSize;
+
+	private int mapLength;
+	private int validLength;
+	private int fullLength;
+	private int scaledLength;
+	private double[] maps;
+	private double[] kernel;
+	private double[] valid;
+	private double[] full;
+	private double[] scaled;
+	private double[] expanded;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		int validSize = mapSize - kernelSize + 1;
+		int fullSize = mapSize + kernelSize - 1;
+		mapLength = mapSize * mapSize;
+		validLength = validSize * validSize;
+		fullLength = fullSize * fullSize;
+		scaledLength = (mapSize / SCALE.x) * (mapSize / SCALE.y);
+		// Sigmoid outputs, in (0, 1)
+		maps = random(random, batchSize * mapLength);
+		kernel = random(random, kernelSize * kernelSize);
+		valid = new double[batchSize * validLength];
+		full = new double[batchSize * fullLength];
+		scaled = random(random, batchSize * scaledLength);
+		expanded = new double[batchSize * mapLength];
+	}
+
+	private static double[] random(Random random, int length) {
+		double[] data = new double[length];
+		for (int i = 0; i < length; i++)
+			data[i] = random.nextDouble();
+		return data;
+	}
+
+	@Benchmark
+	public double[] convnValid() {
+		for (int r = 0; r < batchSize; r++)
+			Util.convnValid(maps, r * mapLength, mapSize, mapSize, kernel, 0,
+					kernelSize, kernelSize, valid, r * validLength, false);
+		return valid;
+	}
+
+	/**
+	 * Adds into the output like the backward pass, the sums keep growing but
+	 * stay far from overflow
+	 */
+	@Benchmark
+	public double[] convnFullRot180() {
+		for (int r = 0; r < batchSize; r++)
+			Util.convnFullRot180(maps, r * mapLength, mapSize, mapSize,
+					kernel, 0, kernelSize, kernelSize, full, r * fullLength);
+		return full;
+	}
+
+	@Benchmark
+	public double[] scaleMatrix() {
+		for (int r = 0; r < batchSize; r++)
+			Util.scaleMatrix(maps, r * mapLength, mapSize, mapSize, SCALE,
+					scaled, r * scaledLength);
+		return scaled;
+	}
+
+	@Benchmark
+	public double[] sigmodDerivKronecker() {
+		for (int r = 0; r < batchSize; r++)
+			Util.sigmodDerivKronecker(maps, r * mapLength, mapSize, mapSize,
+					scaled, r * scaledLength, SCALE, expanded, r * mapLength);
+		return expanded;
+	}
+}
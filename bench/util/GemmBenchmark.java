@@ -0,0 +1,113 @@
+package util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link Gemm} in the shape of the batched forward pass of a convolution
+ * layer with 6 input maps, 12 output maps and 5x5 kernels: the 12 x 150
+ * packed kernels times the 150 x (batchSize * outputs) im2col columns. The
+ * blocks go through {@link VectorKernels} when {@link Simd#ENABLED}, run with
+ * -jvmArgsAppend -Dcnn.simd=false for the scalar blocks
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class GemmBenchmark {
+	private static final int IN_MAP_NUM = 6;
+	private static final int OUT_MAP_NUM = 12;
+	private static final int KERNEL_SIZE = 5;
+
+	// Side of the input maps, 12 is the second convolution layer of RunCNN
+	@Param({ "8", "12", "28" })
+	public int mapSize;
+
+	// Records whose output positions are the columns of one multiplication
+	@Param({ "1", "16", "64" })
+	public int batchSize;
+
+	private int m;
+	private int n;
+	private int k;
+	private double[] a;
+	private double[] b;
+	private double[] c;
+	private double[] bias;
+	private float[] aFloat;
+	private float[] bFloat;
+	private float[] cFloat;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		int outSize = mapSize - KERNEL_SIZE + 1;
+		m = OUT_MAP_NUM;
+		n = batchSize * outSize * outSize;
+		k = IN_MAP_NUM * KERNEL_SIZE * KERNEL_SIZE;
+		a = random(random, m * k);
+		b = random(random, k * n);
+		c = new double[m * n];
+		bias = random(random, m);
+		aFloat = toFloat(a);
+		bFloat = toFloat(b);
+		cFloat = new float[m * n];
+	}
+
+	private static double[] random(Random random, int length) {
+		double[] data = new double[length];
+		for (int i = 0; i < length; i++)
+			data[i] = random.nextDouble() - 0.5;
+		return data;
+	}
+
+	private static float[] toFloat(double[] data) {
+		float[] floats = new float[data.length];
+		for (int i = 0; i < data.length; i++)
+			floats[i] = (float) data[i];
+		return floats;
+	}
+
+	@Benchmark
+	public double[] multiply() {
+		Gemm.multiply(m, n, k, a, 0, k, b, 0, n, c, 0, n, false);
+		return c;
+	}
+
+	/**
+	 * With the bias and sigmoid of the layer applied to the tiles
+	 */
+	@Benchmark
+	public double[] multiplySigmod() {
+		Gemm.multiplySigmod(m, n, k, a, 0, k, b, 0, n, c, 0, n, bias, 0);
+		return c;
+	}
+
+	@Benchmark
+	public float[] multiplyFloat() {
+		Gemm.multiply(m, n, k, aFloat, 0, k, bFloat, 0, n, cFloat, 0, n, false);
+		return cFloat;
+	}
+
+	@Benchmark
+	public float[] multiplySigmodFloat() {
+		Gemm.multiplySigmod(m, n, k, aFloat, 0, k, bFloat, 0, n, cFloat, 0, n,
+				bias, 0);
+		return cFloat;
+	}
+}
@@ -0,0 +1,87 @@
+package util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import CNN.Layer.Size;
+
+/**
+ * The matrix kernels of {@link Util} on one map: valid and full convolution
+ * with a 5x5 kernel, 2x2 mean pooling and its kronecker expansion. The
+ * outputs are preallocated so only the arithmetic is timed
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class UtilBenchmark {
+	private static final Size SCALE = new Size(2, 2);
+
+	// Side of the input map, 28 is an MNIST image, 24 and 8 the conv outputs
+	@Param({ "8", "24", "28" })
+	public int mapSize;
+
+	@Param({ "5" })
+	public int kernelSize;
+
+	private double[][] map;
+	private double[][] kernel;
+	private double[][] valid;
+	private double[][] full;
+	private double[][] scaled;
+	private double[][] expanded;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		map = random(random, mapSize, mapSize);
+		kernel = random(random, kernelSize, kernelSize);
+		valid = new double[mapSize - kernelSize + 1][mapSize - kernelSize + 1];
+		full = new double[mapSize + kernelSize - 1][mapSize + kernelSize - 1];
+		scaled = new double[mapSize / SCALE.x][mapSize / SCALE.y];
+		expanded = new double[mapSize * SCALE.x][mapSize * SCALE.y];
+	}
+
+	private static double[][] random(Random random, int x, int y) {
+		double[][] matrix = new double[x][y];
+		for (double[] row : matrix)
+			for (int j = 0; j < y; j++)
+				row[j] = random.nextDouble() - 0.5;
+		return matrix;
+	}
+
+	@Benchmark
+	public double[][] convnValid() {
+		return Util.convnValid(map, kernel, valid);
+	}
+
+	@Benchmark
+	public double[][] convnFull() {
+		return Util.convnFull(map, kernel, full);
+	}
+
+	@Benchmark
+	public double[][] scaleMatrix() {
+		return Util.scaleMatrix(map, SCALE, scaled);
+	}
+
+	@Benchmark
+	public double[][] kronecker() {
+		return Util.kronecker(map, SCALE, expanded);
+	}
+}
@@ -0,0 +1,257 @@
+package CNN;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import dataset.Dataset.Record;
+import util.Tensor;
+
+/**
+ * Assembles the batches of an epoch on a background thread while the
+ * previous batch trains. A batch is the records' properties copied into one
+ * contiguous [record][property] tensor plus their class labels, so the
+ * trainer only has to copy a single block into the input layer.
+ *
+ * Batches cycle between a free queue and a ready queue of depth buffers. The
+ * stall time of the trainer and the idle time of the assembler tell whether
+ * training waits for data or the data waits for training
+ *
+ */
+public class BatchPipeline {
+
+	/**
+	 * Where the records of the batches come from
+	 */
+	interface Source {
+		/**
+		 * Put the records of the next batch at the start of batch
+		 *
+		 * @param batch
+		 * @return The number of records, 0 at the end of the epoch
+		 */
+		int next(Record[] batch);
+	}
+
+	/**
+	 * An assembled batch
+	 */
+	static class Batch {
+		// [record][property] properties of the batch
+		final Tensor input;
+		final int[] lables;
+		// Number of records, less than the slots for the last batch of an epoch
+		int size;
+
+		private Batch(int batchSize, int attrNum) {
+			input = new Tensor(batchSize, attrNum);
+			lables = new int[batchSize];
+		}
+	}
+
+	// Marks the end of the epoch in the ready queue
+	private static final Batch END = new Batch(0, 0);
+
+	private final Source source;
+	private final int batchSize;
+	private final int attrNum;
+	private final int depth;
+	private final BlockingQueue<Batch> free;
+	private final BlockingQueue<Batch> ready;
+	private final Thread assembler;
+	private volatile Throwable error;
+	private boolean ended;
+
+	// Trainer side
+	private long stallNanos;
+	private long depthSum;
+	private int maxDepth;
+	private int takes;
+	private int batches;
+	// Assembler side, read once the assembler has stopped
+	private long assembleNanos;
+	private long idleNanos;
+
+	/**
+	 *
+	 * @param source
+	 * @param batchSize
+	 * @param attrNum
+	 *            Number of properties of a record
+	 * @param depth
+	 *            Number of batches that may be assembled ahead of training
+	 */
+	BatchPipeline(Source source, int batchSize, int attrNum, int depth) {
+		if (depth < 1)
+			throw new RuntimeException("Bad pipeline depth " + depth);
+		this.source = source;
+		this.batchSize = batchSize;
+		this.attrNum = attrNum;
+		this.depth = depth;
+		free = new ArrayBlockingQueue<Batch>(depth);
+		// One more slot for END
+		ready = new ArrayBlockingQueue<Batch>(depth + 1);
+		for (int i = 0; i < depth; i++)
+			free.add(new Batch(batchSize, attrNum));
+		assembler = new Thread("BatchPipeline") {
+			@Override
+			public void run() {
+				try {
+					assemble();
+				} catch (InterruptedException e) {
+					return;
+				} catch (Throwable e) {
+					error = e;
+				}
+				ready.add(END);
+			}
+		};
+		assembler.setDaemon(true);
+	}
+
+	void start() {
+		assembler.start();
+	}
+
+	private void assemble() throws InterruptedException {
+		Record[] records = new Record[batchSize];
+		while (true) {
+			long t = System.nanoTime();
+			Batch batch = free.take();
+			long start = System.nanoTime();
+			idleNanos += start - t;
+			int n = source.next(records);
+			if (n == 0)
+				return;
+			double[] data = batch.input.getData();
+			for (int r = 0; r < n; r++) {
+				Record record = records[r];
+				if (record.getAttrNum() != attrNum)
+					throw new RuntimeException(
+							"The size of the data record does not match the size of the map defined!");
+				record.copyAttrs(data, batch.input.offset(r));
+				batch.lables[r] = record.getLable().intValue();
+			}
+			batch.size = n;
+			assembleNanos += System.nanoTime() - start;
+			ready.put(batch);
+		}
+	}
+
+	/**
+	 * The next assembled batch, blocks until there is one
+	 *
+	 * @return null at the end of the epoch
+	 */
+	Batch take() {
+		if (ended)
+			return null;
+		int queued = ready.size();
+		takes++;
+		depthSum += queued;
+		maxDepth = Math.max(maxDepth, queued);
+		long t = System.nanoTime();
+		Batch batch;
+		try {
+			batch = ready.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		stallNanos += System.nanoTime() - t;
+		if (batch == END) {
+			ended = true;
+			if (error != null)
+				throw new RuntimeException("Assembling a batch failed", error);
+			return null;
+		}
+		batches++;
+		return batch;
+	}
+
+	/**
+	 * Hand a batch back for reuse once its contents have been copied out
+	 *
+	 * @param batch
+	 */
+	void release(Batch batch) {
+		free.add(batch);
+	}
+
+	/**
+	 * Stop the assembler, the statistics of the assembler are complete after
+	 * this
+	 */
+	void stop() {
+		assembler.interrupt();
+		try {
+			assembler.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Number of batches handed to the trainer
+	 *
+	 * @return
+	 */
+	public int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Time the trainer waited for an assembled batch, high when training is
+	 * bound by reading and copying the data
+	 *
+	 * @return
+	 */
+	public long getStallNanos() {
+		return stallNanos;
+	}
+
+	/**
+	 * Time the assembler waited for a free buffer, high when training is
+	 * bound by computation
+	 *
+	 * @return
+	 */
+	public long getIdleNanos() {
+		return idleNanos;
+	}
+
+	/**
+	 * Time spent fetching records and copying them into batches
+	 *
+	 * @return
+	 */
+	public long getAssembleNanos() {
+		return assembleNanos;
+	}
+
+	/**
+	 * Mean number of batches ready when the trainer asked for one, close to
+	 * depth when the assembler keeps ahead
+	 *
+	 * @return
+	 */
+	public double getMeanDepth() {
+		return takes == 0 ? 0 : 1.0 * depthSum / takes;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public String toString() {
+		return "batches " + batches + ", stall " + stallNanos / 1000000
+				+ "ms, assemble " + assembleNanos / 1000000 + "ms, idle "
+				+ idleNanos / 1000000 + "ms, queue depth mean "
+				+ String.format("%.2f", getMeanDepth()) + " max " + maxDepth
+				+ "/" + depth;
+	}
+}
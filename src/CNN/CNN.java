@@ -1,11 +1,7 @@
 package CNN;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -17,18 +13,26 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import CNN.Layer.Size;
 import dataset.Dataset;
 import dataset.Dataset.Record;
+import dataset.EpochShuffler;
+import dataset.StreamingDataset;
 import util.ConcurenceRunner.TaskManager;
 import util.Log;
+import util.Metrics;
+import util.Tensor;
 import util.Util;
-import util.Util.Operator;
 
 public class CNN implements Serializable {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 337920299147929932L;
-	private static double ALPHA = 0.85;
+	private static final double DEFAULT_ALPHA = 0.85;
 	protected static final double LAMBDA = 0;
+	// Fewest output positions of a convolution given to one task, keeps the GEMM pieces wide enough to tile
+	private static final int POSITION_GRAIN = 32;
+	private static final int DEFAULT_PIPELINE_DEPTH = 2;
+	private static final long SHUFFLE_SEED = 2;
+	private static final int DEFAULT_INFERENCE_BATCH_SIZE = 64;
 	
         //Various layers of the network
 	private List<Layer> layers;
@@ -38,14 +42,63 @@ public class CNN implements Serializable {
 
 	// Batch update size
 	private int batchSize;
-	// The divisor operator divides each element of the matrix by a value
-	private Operator divide_batchSize;
+	// Workspace: [r][l] output maps of layer l for the r th record of the batch
+	private Tensor[][] recordMaps;
+	// Workspace: [l] single precision output maps of layer l for the whole batch, instead of recordMaps when training in float
+	private float[][] floatMaps;
+	// Workspace: whether the r th record of the batch was predicted correctly
+	private boolean[] isRight;
+	// Workspace: loss of the r th record of the batch
+	private transient double[] losses;
+	// Precision of the maps of training and inference, null in models saved before it existed
+	private Precision precision;
+	// Batch buffers of the training pipeline, 0 for the default
+	private transient int pipelineDepth;
+	private transient BatchPipeline lastPipeline;
+	// Records per forward pass of inference, 0 for the default
+	private transient int inferenceBatchSize;
+	// Learning rate, 0 in models serialized when it was shared by all networks
+	private double alpha = DEFAULT_ALPHA;
+	private transient Checkpointer checkpointer;
+	// Where a resumed training continues, set from a checkpoint
+	private transient int startEpoch;
+	private transient int startBatch;
+	private transient long resumeSeed;
+	// Shuffle seed of the running training
+	private transient long currentSeed;
+	// Records predicted correctly and trained so far in the running epoch
+	private transient int epochRight;
+	private transient int epochCount;
+	// Evaluated on a snapshot after every epoch, null for none
+	private transient Dataset validation;
+	private transient Thread validator;
+	private transient volatile Evaluation lastValidation;
+	private transient TrainingMetrics metrics;
+	// Profiler of training and inference, null when disabled
+	private transient volatile Profiler profiler;
 
-	// The multiplier operator multiplies each element of the matrix by the alpha valueֵ
-	private Operator multiply_alpha;
+	/**
+	 * Arithmetic precision of the maps. FLOAT keeps the output maps and
+	 * residuals of a training batch in float, which halves their memory, and
+	 * runs the forward computation of {@link InferenceSession} on float maps.
+	 * Both use float copies of the kernels; the kernels and biases themselves
+	 * stay double, as do the kernel gradients summed over a batch. Training
+	 * in float always uses the direct convolutions, not the FFT
+	 */
+	public enum Precision {
+		DOUBLE, FLOAT
+	}
 
-	// Multiplier operator, multiplying each element of the matrix by the 1-labmda * alpha value
-	private Operator multiply_lambda;
+	/**
+	 * How convolution layers convolve. AUTO uses the FFT for the forward
+	 * pass, the residuals and the kernel gradient of a layer each when its
+	 * estimated cost is lower than the direct code, which is the case for
+	 * large kernels on large maps. The batched forward pass of inference and
+	 * everything in single precision always use the direct code
+	 */
+	public enum Convolution {
+		AUTO, DIRECT, FFT
+	}
 
 	/**
 	 * Initialize the network
@@ -59,98 +112,441 @@ public class CNN implements Serializable {
 	 *            The number of categories requires the dataset to convert the class label to a value of 0-classNum-1
 	 */
 	public CNN(LayerBuilder layerBuilder, final int batchSize) {
+		this(layerBuilder, batchSize, true);
+	}
+
+	/**
+	 * Initialize the network
+	 * 
+	 * @param layerBuilder
+	 * @param batchSize
+	 * @param initialize
+	 *            Whether to initialize the kernels randomly and allocate the
+	 *            batch buffers. Otherwise the kernels are zero until the
+	 *            parameters are loaded and the first training allocates the
+	 *            buffers, which is how {@link ModelFile} builds networks
+	 */
+	CNN(LayerBuilder layerBuilder, final int batchSize, boolean initialize) {
 		layers = layerBuilder.mLayers;
 		layerNum = layers.size();
 		this.batchSize = batchSize;
-		setup(batchSize);
-		initPerator();
+		this.precision = layerBuilder.precision;
+		setup(batchSize, initialize);
 	}
 
 	/**
-	 * Initialization operator
+	 * Train the network on the training set, each epoch visits every record
+	 * once in a new random order
+	 * 
+	 * @param trainset
+	 * @param repeat
+	 *         The number of iterations
 	 */
-	private void initPerator() {
-		divide_batchSize = new Operator() {
+	public void train(Dataset trainset, int repeat) {
+		train(trainset, repeat, new EpochShuffler(trainset.size(),
+				SHUFFLE_SEED));
+	}
 
-			private static final long serialVersionUID = 7424011281732651055L;
+	/**
+	 * Train the network on the training set in the order of shuffler
+	 * 
+	 * @param trainset
+	 * @param repeat
+	 *            The number of iterations
+	 * @param shuffler
+	 *            Order of the records of each epoch, of the size of trainset
+	 */
+	public void train(final Dataset trainset, int repeat,
+			final EpochShuffler shuffler) {
+		if (shuffler.size() != trainset.size())
+			throw new RuntimeException("Shuffler of " + shuffler.size()
+					+ " records for a dataset of " + trainset.size());
+		if (startEpoch > 0 || startBatch > 0) {
+			Log.i("Resume at epoch " + startEpoch + " batch " + startBatch);
+			if (resumeSeed != shuffler.getSeed())
+				Log.i("Resumed with shuffle seed " + shuffler.getSeed()
+						+ " instead of " + resumeSeed
+						+ ", the order of the epoch differs");
+		}
+		// Monitor stop button
+		new Lisenter().start();
+		final int[] indices = new int[batchSize];
+		currentSeed = shuffler.getSeed();
+		for (int t = startEpoch; t < repeat && !stopTrain.get(); t++) {
+			final int epochsNum = shuffler.batchNum(batchSize);
+			Log.i("");
+			Log.i(t + "th iter epochsNum:" + epochsNum);
+			shuffler.shuffle(t);
+			final int first = t == startEpoch ? startBatch : 0;
+			trainEpoch(t, first, new BatchPipeline.Source() {
+				private int i = first;
+
+				@Override
+				public int next(Record[] batch) {
+					if (i == epochsNum)
+						return 0;
+					int n = shuffler.batch(i++, batchSize, indices);
+					for (int r = 0; r < n; r++)
+						batch[r] = trainset.getRecord(indices[r]);
+					return n;
+				}
+			});
+		}
+		endTrain();
+	}
 
-			@Override
-			public double process(double value) {
-				return value / batchSize;
+	/**
+	 * Train the network on a dataset streamed from disk. Batches are taken
+	 * from the shuffle buffer of the stream in the order the prefetch thread
+	 * delivers them, an epoch ends when the whole file has been read. A
+	 * resumed training starts the epoch of its checkpoint over
+	 * 
+	 * @param trainset
+	 * @param repeat
+	 *            The number of iterations
+	 */
+	public void train(final StreamingDataset trainset, int repeat) {
+		// Monitor stop button
+		new Lisenter().start();
+		currentSeed = 0;
+		try {
+			for (int t = startEpoch; t < repeat && !stopTrain.get(); t++) {
+				Log.i("");
+				Log.i(t + "th iter streaming");
+				trainset.startEpoch();
+				trainEpoch(t, 0, new BatchPipeline.Source() {
+
+					@Override
+					public int next(Record[] batch) {
+						int n = 0;
+						Record record;
+						while (n < batchSize
+								&& (record = trainset.next()) != null)
+							batch[n++] = record;
+						return n;
+					}
+				});
 			}
+		} finally {
+			trainset.stop();
+		}
+		endTrain();
+	}
 
-		};
-		multiply_alpha = new Operator() {
+	/**
+	 * Train one epoch on the batches of source, which are assembled on the
+	 * thread of a {@link BatchPipeline} while the previous batch trains
+	 * 
+	 * @param t
+	 *            The epoch
+	 * @param first
+	 *            Number of batches of the epoch done before, by the training
+	 *            a checkpoint was taken of
+	 * @param source
+	 */
+	private void trainEpoch(int t, int first, BatchPipeline.Source source) {
+		ensureBatchMaps();
+		Size inputSize = layers.get(0).getMapSize();
+		BatchPipeline pipeline = new BatchPipeline(source, batchSize,
+				inputSize.x * inputSize.y,
+				pipelineDepth > 0 ? pipelineDepth : DEFAULT_PIPELINE_DEPTH);
+		// A resumed epoch goes on counting from its checkpoint
+		if (first == 0) {
+			epochRight = 0;
+			epochCount = 0;
+		}
+		int i = first;
+		if (metrics != null)
+			metrics.startEpoch(t);
+		// The progress dots go to System.out directly, after the lines logged so far
+		Log.flush();
+		pipeline.start();
+		BatchPipeline.Batch batch = null;
+		try {
+			// Taking first tells an epoch stopped after its last batch from one stopped before
+			for (; (batch = pipeline.take()) != null && !stopTrain.get(); i++) {
+				// A checkpoint due after the previous batch, the parameters are still the same
+				if (checkpointer != null)
+					checkpointer.saveIfDue(this, t, i);
+				long start = System.nanoTime();
+				int batchRight = trainBatch(batch);
+				int n = batch.size;
+				epochRight += batchRight;
+				epochCount += n;
+				// The assembler may refill the batch from here on
+				pipeline.release(batch);
 
-			private static final long serialVersionUID = 5761368499808006552L;
+				// After finishing a batch update weight
+				updateParas(n);
+				if (metrics != null)
+					metrics.batchDone(n, batchRight, batchLoss(n),
+							System.nanoTime() - start);
+				if (checkpointer != null)
+					checkpointer.batchDone();
+				if (i % 50 == 0)
+					System.out.print("..");
+			}
+		} finally {
+			pipeline.stop();
+		}
+		boolean complete = batch == null;
+		// Stopped by the stop button, keep where it stopped
+		if (!complete && checkpointer != null)
+			checkpointer.save(this, t, i, true);
+		System.out.println();
+		lastPipeline = pipeline;
+		Log.i("pipeline", pipeline.toString());
+		endEpoch(t, epochRight, epochCount);
+		// After the last batch the checkpoint is taken at the start of the next epoch, with the learning rate of the end of this one
+		if (complete && checkpointer != null) {
+			epochRight = 0;
+			epochCount = 0;
+			if (stopTrain.get())
+				checkpointer.save(this, t + 1, 0, true);
+			else
+				checkpointer.saveIfDue(this, t + 1, 0);
+		}
+	}
 
-			@Override
-			public double process(double value) {
+	/**
+	 * Records forwarded together by test, predict and the batched methods of
+	 * {@link InferenceSession}, independent of the training batch size
+	 * 
+	 * @param inferenceBatchSize
+	 */
+	public void setInferenceBatchSize(int inferenceBatchSize) {
+		if (inferenceBatchSize < 1)
+			throw new RuntimeException("Bad inference batch size "
+					+ inferenceBatchSize);
+		this.inferenceBatchSize = inferenceBatchSize;
+	}
 
-				return value * ALPHA;
-			}
+	public int getInferenceBatchSize() {
+		return inferenceBatchSize > 0 ? inferenceBatchSize
+				: DEFAULT_INFERENCE_BATCH_SIZE;
+	}
 
-		};
-		multiply_lambda = new Operator() {
+	/**
+	 * Number of batch buffers of the training pipeline, counting the batch
+	 * being trained, so 2 assembles one batch ahead
+	 * 
+	 * @param depth
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth < 1)
+			throw new RuntimeException("Bad pipeline depth " + depth);
+		pipelineDepth = depth;
+	}
 
-			private static final long serialVersionUID = 4499087728362870577L;
+	/**
+	 * The pipeline of the last epoch trained, for its stall and queue depth
+	 * statistics
+	 * 
+	 * @return null before training
+	 */
+	public BatchPipeline getPipeline() {
+		return lastPipeline;
+	}
 
-			@Override
-			public double process(double value) {
+	// Adjust the learning rate and report the precision of epoch t
+	private void endEpoch(int t, int right, int count) {
+		// A resumed epoch may have had no batch left
+		if (count == 0)
+			return;
+		double p = 1.0 * right / count;
+		if (t % 10 == 1 && p > 0.96) {//Adjust the quasi-learning rate dynamically
+			alpha = 0.001 + alpha * 0.9;
+			Log.i("Set alpha = " + alpha);
+		}
+		Log.i("precision " + right + "/" + count + "=" + p);
+		Profiler profiler = this.profiler;
+		if (profiler != null)
+			Log.i("profile", "epoch " + t + "\n" + profiler);
+		if (validation != null)
+			validate(t);
+	}
 
-				return value * (1 - LAMBDA * ALPHA);
+	/**
+	 * Evaluate a copy of the network on the validation set in the background,
+	 * training goes on with the next epoch meanwhile. Skipped when the
+	 * evaluation of the previous epoch is still running
+	 */
+	private void validate(final int t) {
+		if (validator != null && validator.isAlive()) {
+			Log.i("validation", "epoch " + t + " skipped, epoch before still running");
+			return;
+		}
+		final CNN snapshot = copy();
+		final Dataset dataset = validation;
+		validator = new Thread("Validation") {
+			@Override
+			public void run() {
+				Evaluation evaluation = Evaluation.evaluate(snapshot, dataset);
+				lastValidation = evaluation;
+				Log.i("validation", "epoch " + t + " " + evaluation.summary());
 			}
-
 		};
+		validator.setDaemon(true);
+		validator.start();
 	}
 
 	/**
-	 * Train the network on the training set
+	 * Evaluate the network after every epoch of the following trainings on a
+	 * copy of its parameters, in the background
 	 * 
-	 * @param trainset
-	 * @param repeat
-	 *         The number of iterations
+	 * @param validation
+	 *            Records with labels, null for none
+	 * @see #getLastValidation()
 	 */
-	public void train(Dataset trainset, int repeat) {
-		// Monitor stop button
-		new Lisenter().start();
-		for (int t = 0; t < repeat && !stopTrain.get(); t++) {
-			int epochsNum = trainset.size() / batchSize;
-			if (trainset.size() % batchSize != 0)
-				epochsNum++;// Extract once, round up
-			Log.i("");
-			Log.i(t + "th iter epochsNum:" + epochsNum);
-			int right = 0;
-			int count = 0;
-			for (int i = 0; i < epochsNum; i++) {
-				int[] randPerm = Util.randomPerm(trainset.size(), batchSize);
-				Layer.prepareForNewBatch();
-
-				for (int index : randPerm) {
-					boolean isRight = train(trainset.getRecord(index));
-					if (isRight)
-						right++;
-					count++;
-					Layer.prepareForNewRecord();
-				}
+	public void setValidation(Dataset validation) {
+		this.validation = validation;
+	}
 
-				// After finishing a batch update weight
-				updateParas();
-				if (i % 50 == 0) {
-					System.out.print("..");
-					if (i + 50 > epochsNum)
-						System.out.println();
-				}
-			}
-			double p = 1.0 * right / count;
-			if (t % 10 == 1 && p > 0.96) {//Adjust the quasi-learning rate dynamically
-				ALPHA = 0.001 + ALPHA * 0.9;
-				Log.i("Set alpha = " + ALPHA);
+	/**
+	 * The result of the last finished validation
+	 * 
+	 * @return null before the first one
+	 */
+	public Evaluation getLastValidation() {
+		return lastValidation;
+	}
+
+	/**
+	 * A copy of the network with its current parameters, for evaluating it
+	 * while this one trains on
+	 * 
+	 * @return
+	 */
+	public CNN copy() {
+		CNN copy = ModelFile.copy(this, 1);
+		copy.inferenceBatchSize = inferenceBatchSize;
+		return copy;
+	}
+
+	// Wait for the last checkpoint, a following train call starts from the first epoch again
+	private void endTrain() {
+		startEpoch = 0;
+		startBatch = 0;
+		if (checkpointer != null) {
+			checkpointer.await();
+			checkpointer.log();
+		}
+		if (validator != null) {
+			try {
+				validator.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
-			Log.i("precision " + right + "/" + count + "=" + p);
 		}
 	}
 
+	/**
+	 * Choose between direct and FFT convolution for all networks, AUTO by
+	 * default
+	 * 
+	 * @param convolution
+	 */
+	public static void setConvolution(Convolution convolution) {
+		FftConv.mode = convolution;
+	}
+
+	/**
+	 * Profile the layers of training and inference of this network, see
+	 * {@link Profiler}. Training logs the profile after every epoch. Copies
+	 * of the network, such as the one validation runs on, are not profiled
+	 * 
+	 * @param profiler
+	 *            null to stop profiling
+	 */
+	public void setProfiler(Profiler profiler) {
+		Profiler.attach(this.profiler, profiler);
+		this.profiler = profiler;
+	}
+
+	/**
+	 * 
+	 * @return The profiler in use, null when not profiling
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Record the throughput, batch latency, loss, accuracy and learning rate
+	 * of the following trainings in a metrics registry
+	 * 
+	 * @param metrics
+	 *            null for none
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics == null ? null : new TrainingMetrics(metrics,
+				this);
+	}
+
+	double getAlpha() {
+		return alpha;
+	}
+
+	/**
+	 * Checkpoint the following trainings periodically
+	 * 
+	 * @param checkpointer
+	 *            null for none
+	 */
+	public void setCheckpointer(Checkpointer checkpointer) {
+		this.checkpointer = checkpointer;
+	}
+
+	/**
+	 * Load a checkpoint written during a training, the next train call on the
+	 * same dataset continues at the epoch and batch of the checkpoint with its
+	 * learning rate; repeat still counts from the first epoch
+	 * 
+	 * @param fileName
+	 * @return null when the file cannot be read
+	 */
+	public static CNN resume(String fileName) {
+		return loadModel(fileName);
+	}
+
+	/**
+	 * The training state saved with a checkpoint: epoch, batches done in the
+	 * epoch, shuffle seed, learning rate and the records predicted correctly
+	 * and trained in the epoch so far
+	 * 
+	 * @param epoch
+	 * @param batch
+	 * @return
+	 */
+	long[] getTrainingState(int epoch, int batch) {
+		return new long[] { epoch, batch, currentSeed,
+				Double.doubleToLongBits(alpha), epochRight, epochCount };
+	}
+
+	/**
+	 * Restore the state of {@link #getTrainingState(int, int)}
+	 * 
+	 * @param state
+	 */
+	void setTrainingState(long[] state) {
+		if (state.length < 4)
+			throw new RuntimeException("Training state of " + state.length
+					+ " values");
+		startEpoch = (int) state[0];
+		startBatch = (int) state[1];
+		resumeSeed = state[2];
+		alpha = Double.longBitsToDouble(state[3]);
+		// Checkpoints without them count the resumed epoch from there
+		if (state.length >= 6) {
+			epochRight = (int) state[4];
+			epochCount = (int) state[5];
+		}
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
 	private static AtomicBoolean stopTrain;
 
 	static class Lisenter extends Thread {
@@ -161,7 +557,7 @@ public class CNN implements Serializable {
 
 		@Override
 		public void run() {
-			System.out.println("Input & to stop train.");
+			Log.i("Input & to stop train.");
 			while (true) {
 				try {
 					int a = System.in.read();
@@ -170,10 +566,10 @@ public class CNN implements Serializable {
 						break;
 					}
 				} catch (IOException e) {
-					e.printStackTrace();
+					Log.e("stop", e);
 				}
 			}
-			System.out.println("Lisenter stop");
+			Log.i("Lisenter stop");
 		}
 
 	}
@@ -182,30 +578,27 @@ public class CNN implements Serializable {
 	 * Test Data
          * 
 	 * @param trainset
-	 * @return
+	 * @return The fraction of records classified correctly
 	 */
 	public double test(Dataset trainset) {
-		Layer.prepareForNewBatch();
-		Iterator<Record> iter = trainset.iter();
-		int right = 0;
-		while (iter.hasNext()) {
-			Record record = iter.next();
-			forward(record);
-			Layer outputLayer = layers.get(layerNum - 1);
-			int mapNum = outputLayer.getOutMapNum();		
-			double[] out = new double[mapNum];
-			for (int m = 0; m < mapNum; m++) {
-				double[][] outmap = outputLayer.getMap(m);
-				out[m] = outmap[0][0];
-			}
-			if (record.getLable().intValue() == Util.getMaxIndex(out))
-				right++;		
-		}
-		double p = 1.0 * right / trainset.size();
+		Evaluation evaluation = evaluate(trainset);
+		double p = evaluation.getAccuracy();
 		Log.i("precision", p + "");
 		return p;
 	}
 
+	/**
+	 * Evaluate the network on a labelled dataset with one inference session
+	 * per core
+	 * 
+	 * @param dataset
+	 * @return Confusion matrix, precision and recall of every class,
+	 *         throughput and latency
+	 */
+	public Evaluation evaluate(Dataset dataset) {
+		return Evaluation.evaluate(this, dataset);
+	}
+
 	/**
 	 * forecast result
 	 * 
@@ -215,28 +608,18 @@ public class CNN implements Serializable {
 	public void predict(Dataset testset, String fileName) {
 		Log.i("begin predict");
 		try {
-			int max = layers.get(layerNum - 1).getClassNum();
 			PrintWriter writer = new PrintWriter(new File(fileName));
-			Layer.prepareForNewBatch();
+			InferenceSession session = new InferenceSession(this);
 			Iterator<Record> iter = testset.iter();
+			Record[] batch = new Record[session.getBatchSize()];
+			int[] classes = new int[batch.length];
 			while (iter.hasNext()) {
-				Record record = iter.next();
-				forward(record);
-				Layer outputLayer = layers.get(layerNum - 1);
-
-				int mapNum = outputLayer.getOutMapNum();
-				double[] out = new double[mapNum];
-				for (int m = 0; m < mapNum; m++) {
-					double[][] outmap = outputLayer.getMap(m);
-					out[m] = outmap[0][0];
-				}
-				// int lable =
-				// Util.binaryArray2int(out);
-				int lable = Util.getMaxIndex(out);
-				// if (lable >= max)
-				// lable = lable - (1 << (out.length -
-				// 1));
-				writer.write(lable + "\n");
+				int n = 0;
+				while (n < batch.length && iter.hasNext())
+					batch[n++] = iter.next();
+				session.classify(batch, n, classes);
+				for (int r = 0; r < n; r++)
+					writer.write(classes[r] + "\n");
 			}
 			writer.flush();
 			writer.close();
@@ -257,40 +640,137 @@ public class CNN implements Serializable {
 		return r;
 	}
 
+	/**
+	 * Forward and back propagate the records of a batch. Every record has its
+	 * own slot in the outmaps and errors of each layer, so the records are
+	 * processed concurrently, and the work inside each record is split
+	 * further by its own TaskManagers; the gradients are summed over the
+	 * slots afterwards by updateParas. A short batch only uses its first
+	 * batch.size slots
+	 * 
+	 * @param batch
+	 *            An assembled batch, its input is copied into the input layer
+	 *            in one piece
+	 * @return The number of the batch's records predicted correctly
+	 */
+	private int trainBatch(final BatchPipeline.Batch batch) {
+		double[] input = batch.input.getData();
+		int from = batch.input.getOffset();
+		int length = batch.input.offset(batch.size) - from;
+		if (floatMaps != null) {
+			float[] inputMaps = floatMaps[0];
+			for (int k = 0; k < length; k++)
+				inputMaps[k] = (float) input[from + k];
+		} else {
+			Tensor inputMaps = layers.get(0).getMaps();
+			System.arraycopy(input, from, inputMaps.getData(),
+					inputMaps.getOffset(), length);
+		}
+		new TaskManager(batch.size, 1) {
+
+			@Override
+			public void process(int start, int end) {
+				for (int r = start; r < end; r++)
+					isRight[r] = train(batch.lables[r], r);
+			}
+		}.start();
+		int right = 0;
+		for (int r = 0; r < batch.size; r++)
+			if (isRight[r])
+				right++;
+		return right;
+	}
+
+	// Mean loss of the first n records of the last batch
+	private double batchLoss(int n) {
+		double sum = 0;
+		for (int r = 0; r < n; r++)
+			sum += losses[r];
+		return sum / n;
+	}
+
 	/**
 	 *  Training a record, at the same time return to predict the correct current record
 	 * 
-	 * @param record
+	 * @param lable
+	 * @param r
+	 *            The record's position in the batch, its input maps are
+	 *            already set
 	 * @return
 	 */
-	private boolean train(Record record) {
-		forward(record);
-		boolean result = backPropagation(record);
+	private boolean train(int lable, int r) {
+		if (floatMaps != null)
+			forwardLayers(layers, floatMaps, r, profiler);
+		else
+			forwardLayers(layers, recordMaps[r], profiler);
+		boolean result = backPropagation(lable, r);
 		return result;
 		// System.exit(0);
 	}
 
+	/**
+	 * Forward and backward pass of one record in slot r of the batch, its
+	 * gradients are applied by the next {@link #updateParas(int)}. Used by the
+	 * benchmarks to time a single training step
+	 * 
+	 * @param record
+	 * @param r
+	 * @return Whether the record was predicted correctly
+	 */
+	boolean trainRecord(Record record, int r) {
+		ensureBatchMaps();
+		if (floatMaps != null) {
+			Layer inputLayer = layers.get(0);
+			checkInput(inputLayer, record.getAttrNum());
+			record.copyAttrs(floatMaps[0], r * inputLayer.getRecordLength());
+			forwardLayers(layers, floatMaps, r, profiler);
+		} else
+			forward(layers, record, recordMaps[r], profiler);
+		return backPropagation(record.getLable().intValue(), r);
+	}
+
 	/*
 	 * Reverse transmission
 	 */
-	private boolean backPropagation(Record record) {
-		boolean result = setOutLayerErrors(record);
-		setHiddenLayerErrors();
+	private boolean backPropagation(int lable, int r) {
+		Profiler profiler = this.profiler;
+		long t = 0, bytes = 0;
+		if (profiler != null) {
+			t = System.nanoTime();
+			bytes = profiler.allocatedBytes();
+		}
+		boolean result = setOutLayerErrors(lable, r);
+		if (profiler != null)
+			profiler.record(layerNum - 1, layers.get(layerNum - 1),
+					Profiler.Phase.ERROR, 1, t, bytes);
+		setHiddenLayerErrors(r);
 		return result;
 	}
 
 	/**
 	 * Update parameters
+	 * 
+	 * @param n
+	 *            Number of records of the batch, in the first n slots
 	 */
-	private void updateParas() {
+	void updateParas(int n) {
+		Profiler profiler = this.profiler;
 		for (int l = 1; l < layerNum; l++) {
 			Layer layer = layers.get(l);
 			Layer lastLayer = layers.get(l - 1);
 			switch (layer.getType()) {
 			case conv:
 			case output:
-				updateKernels(layer, lastLayer);
-				updateBias(layer, lastLayer);
+				long t = 0, bytes = 0;
+				if (profiler != null) {
+					t = System.nanoTime();
+					bytes = profiler.allocatedBytes();
+				}
+				updateKernels(layer, lastLayer, n);
+				updateBias(layer, lastLayer, n);
+				if (profiler != null)
+					profiler.record(l, layer, Profiler.Phase.UPDATE, n, t,
+							bytes);
 				break;
 			default:
 				break;
@@ -303,20 +783,31 @@ public class CNN implements Serializable {
 	 * 
 	 * @param layer
 	 * @param lastLayer
+	 * @param n
+	 *            Number of records of the batch
 	 */
-	private void updateBias(final Layer layer, Layer lastLayer) {
-		final double[][][][] errors = layer.getErrors();
+	private void updateBias(final Layer layer, Layer lastLayer, final int n) {
+		final Tensor errors = layer.getErrors();
+		final float[] floatErrors = layer.getFloatErrors();
+		final int recordLength = layer.getRecordLength();
 		int mapNum = layer.getOutMapNum();
+		final int mapLength = layer.getMapSize().x * layer.getMapSize().y;
 
 		new TaskManager(mapNum) {
 
 			@Override
 			public void process(int start, int end) {
 				for (int j = start; j < end; j++) {
-					double[][] error = Util.sum(errors, j);
+					// Sum the residuals of map j over the batch
+					double sum = 0.0;
+					for (int r = 0; r < n; r++)
+						sum += floatErrors != null ? Util.sum(floatErrors, r
+								* recordLength + j * mapLength, mapLength)
+								: Util.sum(errors.getData(),
+										errors.offset(r, j), mapLength);
 					// Update offset
-					double deltaBias = Util.sum(error) / batchSize;
-					double bias = layer.getBias(j) + ALPHA * deltaBias;
+					double deltaBias = sum / n;
+					double bias = layer.getBias(j) + alpha * deltaBias;
 					layer.setBias(j, bias);
 				}
 			}
@@ -331,64 +822,111 @@ public class CNN implements Serializable {
 	 *           The current level
 	 * @param lastLayer
 	 *            The previous floor
+	 * @param n
+	 *            Number of records of the batch
 	 */
-	private void updateKernels(final Layer layer, final Layer lastLayer) {
+	private void updateKernels(final Layer layer, final Layer lastLayer,
+			final int n) {
 		int mapNum = layer.getOutMapNum();
 		final int lastMapNum = lastLayer.getOutMapNum();
+		final Tensor kernels = layer.getKernel();
+		final Tensor deltaKernels = layer.getKernelDelta();
+		final Tensor lastMaps = lastLayer.getMaps();
+		final Tensor errors = layer.getErrors();
+		final float[] lastFloatMaps = lastLayer.getFloatMaps();
+		final float[] floatErrors = layer.getFloatErrors();
+		final int lastRecordLength = lastLayer.getRecordLength();
+		final int recordLength = layer.getRecordLength();
+		final Size lastSize = lastLayer.getMapSize();
+		final Size mapSize = layer.getMapSize();
+		final Size kernelSize = layer.getKernelSize();
+		final int kernelLength = kernelSize.x * kernelSize.y;
+		FftConv fft = layer.getFftConv();
+		if (floatErrors == null && fft.gradient()) {
+			final double[] delta = fft.gradient(lastMaps, errors, n);
+			new TaskManager(lastMapNum * mapNum) {
+
+				@Override
+				public void process(int start, int end) {
+					final double[] kernel = kernels.getData();
+					for (int p = start * kernelLength; p < end * kernelLength; p++)
+						kernel[p] = kernel[p] * (1 - LAMBDA * alpha)
+								+ alpha * (delta[p] / n);
+				}
+			}.start();
+			layer.kernelChanged();
+			return;
+		}
 		new TaskManager(mapNum) {
 
 			@Override
 			public void process(int start, int end) {
+				final double[] deltaKernel = deltaKernels.getData();
+				final double[] kernel = kernels.getData();
 				for (int j = start; j < end; j++) {
+					final int delta = deltaKernels.offset(j);
 					for (int i = 0; i < lastMapNum; i++) {
 						// Sums each record delta for the batch
-						double[][] deltaKernel = null;
-						for (int r = 0; r < batchSize; r++) {
-							double[][] error = layer.getError(r, j);
-							if (deltaKernel == null)
-								deltaKernel = Util.convnValid(
-										lastLayer.getMap(r, i), error);
-							else {// Summing up
-								deltaKernel = Util.matrixOp(Util.convnValid(
-										lastLayer.getMap(r, i), error),
-										deltaKernel, null, null, Util.plus);
-							}
+						for (int r = 0; r < n; r++) {
+							if (floatErrors != null)
+								Util.convnValid(lastFloatMaps, r
+										* lastRecordLength + i * lastSize.x
+										* lastSize.y, lastSize.x, lastSize.y,
+										floatErrors, r * recordLength + j
+												* mapSize.x * mapSize.y,
+										mapSize.x, mapSize.y, deltaKernel,
+										delta, r > 0);
+							else
+								Util.convnValid(lastMaps.getData(),
+										lastMaps.offset(r, i), lastSize.x,
+										lastSize.y, errors.getData(),
+										errors.offset(r, j), mapSize.x,
+										mapSize.y, deltaKernel, delta, r > 0);
+						}
+						// Divide by n and update the convolution kernel
+						int k = kernels.offset(i, j);
+						for (int p = 0; p < kernelLength; p++, k++) {
+							kernel[k] = kernel[k] * (1 - LAMBDA * alpha)
+									+ alpha * (deltaKernel[delta + p] / n);
 						}
-
-						// Divide by batchSize
-						deltaKernel = Util.matrixOp(deltaKernel,
-								divide_batchSize);
-						// Update the convolution kernel
-						double[][] kernel = layer.getKernel(i, j);
-						deltaKernel = Util.matrixOp(kernel, deltaKernel,
-								multiply_lambda, multiply_alpha, Util.plus);
-						layer.setKernel(i, j, deltaKernel);
 					}
 				}
 
 			}
 		}.start();
+		layer.kernelChanged();
 
 	}
 
 	/**
 	 * Set the median will be the residual layers
+	 * 
+	 * @param r
+	 *            The record's position in the batch
 	 */
-	private void setHiddenLayerErrors() {
+	private void setHiddenLayerErrors(int r) {
+		Profiler profiler = this.profiler;
 		for (int l = layerNum - 2; l > 0; l--) {
 			Layer layer = layers.get(l);
 			Layer nextLayer = layers.get(l + 1);
+			long t = 0, bytes = 0;
+			if (profiler != null) {
+				t = System.nanoTime();
+				bytes = profiler.allocatedBytes();
+			}
 			switch (layer.getType()) {
 			case samp:
-				setSampErrors(layer, nextLayer);
+				setSampErrors(layer, nextLayer, r);
 				break;
 			case conv:
-				setConvErrors(layer, nextLayer);
+				setConvErrors(layer, nextLayer, r);
 				break;
 			default:// ֻOnly the sampling layer and the convolution layer need to deal with the residuals, 
                                 //  the input layer has no residuals and the output layer has been processed
 				break;
 			}
+			if (profiler != null)
+				profiler.record(l, layer, Profiler.Phase.ERROR, 1, t, bytes);
 		}
 	}
 
@@ -397,30 +935,91 @@ public class CNN implements Serializable {
 	 * 
 	 * @param layer
 	 * @param nextLayer
+	 * @param r
 	 */
-	private void setSampErrors(final Layer layer, final Layer nextLayer) {
+	private void setSampErrors(final Layer layer, final Layer nextLayer, int r) {
 		int mapNum = layer.getOutMapNum();
 		final int nextMapNum = nextLayer.getOutMapNum();
+		final Tensor kernels = nextLayer.getKernel();
+		final int mapLength = layer.getMapSize().x * layer.getMapSize().y;
+		final Size nextSize = nextLayer.getMapSize();
+		final Size kernelSize = nextLayer.getKernelSize();
+		if (floatMaps != null) {
+			setSampErrors(layer, nextLayer, layer.getFloatErrors(), r
+					* layer.getRecordLength(), nextLayer.getFloatErrors(), r
+					* nextLayer.getRecordLength());
+			return;
+		}
+		final Tensor errors = layer.getRecordErrors(r);
+		final Tensor nextErrors = nextLayer.getRecordErrors(r);
+		FftConv fft = nextLayer.getFftConv();
+		if (fft.backward()) {
+			fft.prepare(kernels);
+			fft.backward(nextErrors.getData(), nextErrors.getOffset(),
+					errors.getData(), errors.getOffset());
+			return;
+		}
 		new TaskManager(mapNum) {
 
 			@Override
 			public void process(int start, int end) {
+				final double[] sum = errors.getData();
 				for (int i = start; i < end; i++) {
-					double[][] sum = null;// Summarize each convolution
+					// Summarize each convolution
+					int o = errors.offset(i);
+					Arrays.fill(sum, o, o + mapLength, 0);
 					for (int j = 0; j < nextMapNum; j++) {
-						double[][] nextError = nextLayer.getError(j);
-						double[][] kernel = nextLayer.getKernel(i, j);
 						// Rotate the convolution kernel by 180 degrees and then convolve in full mode
-						if (sum == null)
-							sum = Util
-									.convnFull(nextError, Util.rot180(kernel));
-						else
-							sum = Util.matrixOp(
-									Util.convnFull(nextError,
-											Util.rot180(kernel)), sum, null,
-									null, Util.plus);
+						Util.convnFullRot180(nextErrors.getData(),
+								nextErrors.offset(j), nextSize.x, nextSize.y,
+								kernels.getData(), kernels.offset(i, j),
+								kernelSize.x, kernelSize.y, sum, o);
+					}
+				}
+			}
+
+		}.start();
+
+	}
+
+	/**
+	 * Single precision version of setSampErrors, with the float kernels of
+	 * the next layer's ConvEngine
+	 * 
+	 * @param layer
+	 * @param nextLayer
+	 * @param errors
+	 *            Residuals of layer, [mapNo][x][y] from errorOff
+	 * @param errorOff
+	 * @param nextErrors
+	 *            Residuals of nextLayer, [mapNo][x][y] from nextOff
+	 * @param nextOff
+	 */
+	private static void setSampErrors(final Layer layer, final Layer nextLayer,
+			final float[] errors, final int errorOff, final float[] nextErrors,
+			final int nextOff) {
+		int mapNum = layer.getOutMapNum();
+		final int nextMapNum = nextLayer.getOutMapNum();
+		final int mapLength = layer.getMapSize().x * layer.getMapSize().y;
+		final Size nextSize = nextLayer.getMapSize();
+		final int nextLength = nextSize.x * nextSize.y;
+		final Size kernelSize = nextLayer.getKernelSize();
+		final ConvEngine engine = nextLayer.getConvEngine();
+		engine.prepare(nextLayer.getKernel());
+		new TaskManager(mapNum) {
+
+			@Override
+			public void process(int start, int end) {
+				final float[] kernel = engine.getFloatKernel();
+				for (int i = start; i < end; i++) {
+					int o = errorOff + i * mapLength;
+					Arrays.fill(errors, o, o + mapLength, 0f);
+					for (int j = 0; j < nextMapNum; j++) {
+						Util.convnFullRot180(nextErrors, nextOff + j
+								* nextLength, nextSize.x, nextSize.y, kernel,
+								engine.getKernelOffset(i, j), kernelSize.x,
+								kernelSize.y, errors, o);
 					}
-					layer.setError(i, sum);
 				}
 			}
 
@@ -433,27 +1032,51 @@ public class CNN implements Serializable {
 	 * 
 	 * @param layer
 	 * @param nextLayer
+	 * @param r
 	 */
-	private void setConvErrors(final Layer layer, final Layer nextLayer) {
+	private void setConvErrors(final Layer layer, final Layer nextLayer, int r) {
 		// The next layer of the convolutional layer is the sampling layer, that is, the two layers have the same number of maps, and one map connects only with one map of the first layer,
                // So just spread the next layer of residual kronecker to dot product
 		int mapNum = layer.getOutMapNum();
+		final Size mapSize = layer.getMapSize();
+		final Size scale = nextLayer.getScaleSize();
+		if (floatMaps != null) {
+			final float[] maps = layer.getFloatMaps();
+			final float[] errors = layer.getFloatErrors();
+			final float[] nextErrors = nextLayer.getFloatErrors();
+			final int off = r * layer.getRecordLength();
+			final int nextOff = r * nextLayer.getRecordLength();
+			final int mapLength = mapSize.x * mapSize.y;
+			final int nextLength = nextLayer.getMapSize().x
+					* nextLayer.getMapSize().y;
+			new TaskManager(mapNum) {
+
+				@Override
+				public void process(int start, int end) {
+					for (int m = start; m < end; m++) {
+						Util.sigmodDerivKronecker(maps, off + m * mapLength,
+								mapSize.x, mapSize.y, nextErrors, nextOff + m
+										* nextLength, scale, errors, off + m
+										* mapLength);
+					}
+				}
+
+			}.start();
+			return;
+		}
+		final Tensor maps = layer.getRecordMaps(r);
+		final Tensor errors = layer.getRecordErrors(r);
+		final Tensor nextErrors = nextLayer.getRecordErrors(r);
 		new TaskManager(mapNum) {
 
 			@Override
 			public void process(int start, int end) {
+				// map * (1 - map) times the kronecker expansion of the next residual
 				for (int m = start; m < end; m++) {
-					Size scale = nextLayer.getScaleSize();
-					double[][] nextError = nextLayer.getError(m);
-					double[][] map = layer.getMap(m);
-					//Matrix multiplication, but 1-value operation on each element value of the second matrix
-					double[][] outMatrix = Util.matrixOp(map,
-							Util.cloneMatrix(map), null, Util.one_value,
-							Util.multiply);
-					outMatrix = Util.matrixOp(outMatrix,
-							Util.kronecker(nextError, scale), null, null,
-							Util.multiply);
-					layer.setError(m, outMatrix);
+					Util.sigmodDerivKronecker(maps.getData(), maps.offset(m),
+							mapSize.x, mapSize.y, nextErrors.getData(),
+							nextErrors.offset(m), scale, errors.getData(),
+							errors.offset(m));
 				}
 
 			}
@@ -465,10 +1088,11 @@ public class CNN implements Serializable {
 	/**
 	 * Set the output layer of the residual value, the number of output neurons fewer units, not to consider multi-threading
 	 * 
-	 * @param record
+	 * @param lable
+	 * @param r
 	 * @return
 	 */
-	private boolean setOutLayerErrors(Record record) {
+	private boolean setOutLayerErrors(int lable, int r) {
 
 		Layer outputLayer = layers.get(layerNum - 1);
 		int mapNum = outputLayer.getOutMapNum();
@@ -488,109 +1112,426 @@ public class CNN implements Serializable {
 		// return true;
 		// return false;
 
-		double[] target = new double[mapNum];
-		double[] outmaps = new double[mapNum];
-		for (int m = 0; m < mapNum; m++) {
-			double[][] outmap = outputLayer.getMap(m);
-			outmaps[m] = outmap[0][0];
-
+		if (floatMaps != null) {
+			float[] out = outputLayer.getFloatMaps();
+			float[] error = outputLayer.getFloatErrors();
+			int off = r * mapNum;
+			double loss = 0;
+			for (int m = 0; m < mapNum; m++) {
+				double output = out[off + m];
+				double target = m == lable ? 1 : 0;
+				error[off + m] = (float) (output * (1 - output) * (target - output));
+				loss += (target - output) * (target - output);
+			}
+			losses[r] = loss / 2;
+			return lable == Util.getMaxIndex(out, off, mapNum);
 		}
-		int lable = record.getLable().intValue();
-		target[lable] = 1;
+		// The output maps are 1x1, so the maps of a record are the output vector
+		Tensor outmaps = outputLayer.getRecordMaps(r);
+		Tensor errors = outputLayer.getRecordErrors(r);
+		double[] out = outmaps.getData();
+		double[] error = errors.getData();
 		// Log.i(record.getLable() + "outmaps:" +
 		// Util.fomart(outmaps)
 		// + Arrays.toString(target));
+		double loss = 0;
 		for (int m = 0; m < mapNum; m++) {
-			outputLayer.setError(m, 0, 0, outmaps[m] * (1 - outmaps[m])
-					* (target[m] - outmaps[m]));
+			double output = out[outmaps.offset(m)];
+			double target = m == lable ? 1 : 0;
+			error[errors.offset(m)] = output * (1 - output) * (target - output);
+			loss += (target - output) * (target - output);
 		}
-		return lable == Util.getMaxIndex(outmaps);
+		losses[r] = loss / 2;
+		return lable == Util.getMaxIndex(out, outmaps.getOffset(), mapNum);
 	}
 
 	/**
-	 * Forward calculation of a record
+	 * Forward calculation of one record into the given activation buffers,
+	 * see {@link #forward(List, double[], Tensor[], Profiler)}
 	 * 
+	 * @param layers
 	 * @param record
+	 * @param maps
+	 * @param profiler
+	 *            null when not profiling
+	 */
+	static void forward(List<Layer> layers, Record record, Tensor[] maps,
+			Profiler profiler) {
+		setInLayerOutput(layers.get(0), record, maps[0]);
+		forwardLayers(layers, maps, profiler);
+	}
+
+	/**
+	 * Forward calculation of one record into the given activation buffers,
+	 * the layers are only read, so concurrent calls with different buffers
+	 * are safe
+	 * 
+	 * @param layers
+	 * @param attr
+	 *            The record's properties
+	 * @param maps
+	 *            The [mapNo][x][y] output maps of every layer
+	 * @param profiler
+	 *            null when not profiling
 	 */
-	private void forward(Record record) {
+	static void forward(List<Layer> layers, double[] attr, Tensor[] maps,
+			Profiler profiler) {
 		// Set the map of the input layer
-		setInLayerOutput(record);
+		setInLayerOutput(layers.get(0), attr, maps[0]);
+		forwardLayers(layers, maps, profiler);
+	}
+
+	/**
+	 * Forward calculation from the input maps already in maps[0]
+	 * 
+	 * @param layers
+	 * @param maps
+	 * @param profiler
+	 *            null when not profiling
+	 */
+	private static void forwardLayers(List<Layer> layers, Tensor[] maps,
+			Profiler profiler) {
 		for (int l = 1; l < layers.size(); l++) {
 			Layer layer = layers.get(l);
+			long t = 0, bytes = 0;
+			if (profiler != null) {
+				t = System.nanoTime();
+				bytes = profiler.allocatedBytes();
+			}
 			Layer lastLayer = layers.get(l - 1);
 			switch (layer.getType()) {
 			case conv:// Compute the output of the convolution layer
-				setConvOutput(layer, lastLayer);
+				setConvOutput(layer, maps[l - 1], maps[l]);
 				break;
 			case samp:// Calculate the output of the sampling layer
-				setSampOutput(layer, lastLayer);
+				setSampOutput(layer, lastLayer, maps[l - 1], maps[l]);
 				break;
 			case output:// Calculate the output of the output layer, the output layer is a special convolution layer
-				setConvOutput(layer, lastLayer);
+				setConvOutput(layer, maps[l - 1], maps[l]);
 				break;
 			default:
 				break;
 			}
+			if (profiler != null)
+				profiler.record(l, layer, Profiler.Phase.FORWARD, 1, t, bytes);
 		}
 	}
 
 	/**
 	 * Set the input layers output value based on the recorded value
 	 * 
+	 * @param inputLayer
+	 * @param attr
+	 * @param maps
+	 */
+	private static void setInLayerOutput(Layer inputLayer, double[] attr,
+			Tensor maps) {
+		checkInput(inputLayer, attr.length);
+		// A one-dimensional vector of recording properties is made into a two-dimensional matrix
+		System.arraycopy(attr, 0, maps.getData(), maps.getOffset(), attr.length);
+	}
+
+	/**
+	 * Set the input layers output value from a record, whatever its storage.
+	 * Byte pixels are normalized here, while they are copied
+	 * 
+	 * @param inputLayer
 	 * @param record
+	 * @param maps
 	 */
-	private void setInLayerOutput(Record record) {
-		final Layer inputLayer = layers.get(0);
+	private static void setInLayerOutput(Layer inputLayer, Record record,
+			Tensor maps) {
+		checkInput(inputLayer, record.getAttrNum());
+		record.copyAttrs(maps.getData(), maps.getOffset());
+	}
+
+	private static void checkInput(Layer inputLayer, int attrNum) {
 		final Size mapSize = inputLayer.getMapSize();
-		final double[] attr = record.getAttrs();
-		if (attr.length != mapSize.x * mapSize.y)
+		if (attrNum != mapSize.x * mapSize.y)
 			throw new RuntimeException("The size of the data record does not match the size of the map defined!");
-		for (int i = 0; i < mapSize.x; i++) {
-			for (int j = 0; j < mapSize.y; j++) {
-				// A one-dimensional vector of recording properties is made into a two-dimensional matrix
-				inputLayer.setMapValue(0, i, j, attr[mapSize.x * i + j]);
+	}
+
+	/**
+	 * Single precision forward calculation of one record, see
+	 * {@link #forward(List, double[], Tensor[], Profiler)}
+	 * 
+	 * @param layers
+	 * @param record
+	 * @param maps
+	 *            The output maps of every layer, flat [mapNo][x][y]
+	 * @param profiler
+	 *            null when not profiling
+	 */
+	static void forward(List<Layer> layers, Record record, float[][] maps,
+			Profiler profiler) {
+		checkInput(layers.get(0), record.getAttrNum());
+		record.copyAttrs(maps[0], 0);
+		forwardLayers(layers, maps, 0, profiler);
+	}
+
+	/**
+	 * Single precision forward calculation of the properties of one record,
+	 * see {@link #forward(List, double[], Tensor[], Profiler)}
+	 * 
+	 * @param layers
+	 * @param attr
+	 * @param maps
+	 *            The output maps of every layer, flat [mapNo][x][y]
+	 * @param profiler
+	 *            null when not profiling
+	 */
+	static void forward(List<Layer> layers, double[] attr, float[][] maps,
+			Profiler profiler) {
+		checkInput(layers.get(0), attr.length);
+		float[] in = maps[0];
+		for (int i = 0; i < attr.length; i++)
+			in[i] = (float) attr[i];
+		forwardLayers(layers, maps, 0, profiler);
+	}
+
+	/**
+	 * Single precision forward calculation of record r from its input maps
+	 * already in maps[0]
+	 * 
+	 * @param layers
+	 * @param maps
+	 *            The output maps of every layer, flat [record][mapNo][x][y]
+	 * @param r
+	 * @param profiler
+	 *            null when not profiling
+	 */
+	private static void forwardLayers(List<Layer> layers, float[][] maps,
+			int r, Profiler profiler) {
+		for (int l = 1; l < layers.size(); l++) {
+			Layer layer = layers.get(l);
+			long t = 0, bytes = 0;
+			if (profiler != null) {
+				t = System.nanoTime();
+				bytes = profiler.allocatedBytes();
+			}
+			Layer lastLayer = layers.get(l - 1);
+			int lastOff = r * lastLayer.getRecordLength();
+			int off = r * layer.getRecordLength();
+			switch (layer.getType()) {
+			case conv:
+			case output:
+				setConvOutput(layer, maps[l - 1], lastOff, maps[l], off);
+				break;
+			case samp:
+				setSampOutput(layer, lastLayer, maps[l - 1], lastOff, maps[l],
+						off);
+				break;
+			default:
+				break;
 			}
+			if (profiler != null)
+				profiler.record(l, layer, Profiler.Phase.FORWARD, 1, t, bytes);
 		}
 	}
 
-	/*
-	 * Compute the output of the convolutional layer, each thread is responsible for part of the map
+	/**
+	 * Forward calculation of a batch of n records. The maps of every layer
+	 * are stored map by map, [mapNo][record][x][y], so that a convolution is
+	 * one GEMM over the output positions of all records instead of one per
+	 * record
+	 * 
+	 * @param layers
+	 * @param records
+	 * @param n
+	 *            Number of records, at most the capacity of maps
+	 * @param maps
+	 *            The output maps of every layer
+	 * @param profiler
+	 *            null when not profiling
 	 */
-	private void setConvOutput(final Layer layer, final Layer lastLayer) {
-		int mapNum = layer.getOutMapNum();
-		final int lastMapNum = lastLayer.getOutMapNum();
-		new TaskManager(mapNum) {
+	static void forwardBatch(List<Layer> layers, Record[] records, int n,
+			double[][] maps, Profiler profiler) {
+		Size inputSize = layers.get(0).getMapSize();
+		int inputLength = inputSize.x * inputSize.y;
+		for (int r = 0; r < n; r++) {
+			checkInput(layers.get(0), records[r].getAttrNum());
+			records[r].copyAttrs(maps[0], r * inputLength);
+		}
+		for (int l = 1; l < layers.size(); l++) {
+			Layer layer = layers.get(l);
+			long t = 0, bytes = 0;
+			if (profiler != null) {
+				t = System.nanoTime();
+				bytes = profiler.allocatedBytes();
+			}
+			switch (layer.getType()) {
+			case conv:
+			case output:
+				setConvOutput(layer, maps[l - 1], maps[l], n);
+				break;
+			case samp:
+				setSampOutput(layer, layers.get(l - 1), maps[l - 1], maps[l], n);
+				break;
+			default:
+				break;
+			}
+			if (profiler != null)
+				profiler.record(l, layer, Profiler.Phase.FORWARD, n, t, bytes);
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #forwardBatch(List, Record[], int, double[][], Profiler)}
+	 * 
+	 * @param layers
+	 * @param records
+	 * @param n
+	 * @param maps
+	 * @param profiler
+	 *            null when not profiling
+	 */
+	static void forwardBatch(List<Layer> layers, Record[] records, int n,
+			float[][] maps, Profiler profiler) {
+		Size inputSize = layers.get(0).getMapSize();
+		int inputLength = inputSize.x * inputSize.y;
+		for (int r = 0; r < n; r++) {
+			checkInput(layers.get(0), records[r].getAttrNum());
+			records[r].copyAttrs(maps[0], r * inputLength);
+		}
+		for (int l = 1; l < layers.size(); l++) {
+			Layer layer = layers.get(l);
+			long t = 0, bytes = 0;
+			if (profiler != null) {
+				t = System.nanoTime();
+				bytes = profiler.allocatedBytes();
+			}
+			switch (layer.getType()) {
+			case conv:
+			case output:
+				setConvOutput(layer, maps[l - 1], maps[l], n);
+				break;
+			case samp:
+				setSampOutput(layer, layers.get(l - 1), maps[l - 1], maps[l], n);
+				break;
+			default:
+				break;
+			}
+			if (profiler != null)
+				profiler.record(l, layer, Profiler.Phase.FORWARD, n, t, bytes);
+		}
+	}
+
+	// Convolution of a batch, each thread computes part of the output positions of all records
+	private static void setConvOutput(final Layer layer, final double[] lastMaps,
+			final double[] maps, final int n) {
+		final double[] bias = layer.getBias();
+		final ConvEngine engine = layer.getConvEngine();
+		engine.prepare(layer.getKernel());
+		new TaskManager(n * engine.getOutLength(), POSITION_GRAIN) {
 
 			@Override
 			public void process(int start, int end) {
-				for (int j = start; j < end; j++) {
-					double[][] sum = null;// Sum the convolution of each input map
-					for (int i = 0; i < lastMapNum; i++) {
-						double[][] lastMap = lastLayer.getMap(i);
-						double[][] kernel = layer.getKernel(i, j);
-						if (sum == null)
-							sum = Util.convnValid(lastMap, kernel);
-						else
-							sum = Util.matrixOp(
-									Util.convnValid(lastMap, kernel), sum,
-									null, null, Util.plus);
-					}
-					final double bias = layer.getBias(j);
-					sum = Util.matrixOp(sum, new Operator() {
-						private static final long serialVersionUID = 2469461972825890810L;
+				engine.convolveSigmod(lastMaps, 0, n, maps, 0, start, end, bias);
+			}
 
-						@Override
-						public double process(double value) {
-							return Util.sigmod(value + bias);
-						}
+		}.start();
+	}
 
-					});
+	private static void setConvOutput(final Layer layer, final float[] lastMaps,
+			final float[] maps, final int n) {
+		final double[] bias = layer.getBias();
+		final ConvEngine engine = layer.getConvEngine();
+		engine.prepare(layer.getKernel());
+		new TaskManager(n * engine.getOutLength(), POSITION_GRAIN) {
 
-					layer.setMapValue(j, sum);
+			@Override
+			public void process(int start, int end) {
+				engine.convolveSigmod(lastMaps, 0, n, maps, 0, start, end, bias);
+			}
+
+		}.start();
+	}
+
+	// Sampling of a batch, one task per map of a record
+	private static void setSampOutput(final Layer layer, final Layer lastLayer,
+			final double[] lastMaps, final double[] maps, int n) {
+		final Size lastSize = lastLayer.getMapSize();
+		final Size scaleSize = layer.getScaleSize();
+		final Size mapSize = layer.getMapSize();
+		new TaskManager(lastLayer.getOutMapNum() * n) {
+
+			@Override
+			public void process(int start, int end) {
+				// The maps of all records are consecutive, map i of record r is the (i * n + r) th
+				for (int i = start; i < end; i++) {
+					Util.scaleMatrix(lastMaps, i * lastSize.x * lastSize.y,
+							lastSize.x, lastSize.y, scaleSize, maps, i
+									* mapSize.x * mapSize.y);
 				}
 			}
 
 		}.start();
+	}
+
+	private static void setSampOutput(final Layer layer, final Layer lastLayer,
+			final float[] lastMaps, final float[] maps, int n) {
+		final Size lastSize = lastLayer.getMapSize();
+		final Size scaleSize = layer.getScaleSize();
+		final Size mapSize = layer.getMapSize();
+		new TaskManager(lastLayer.getOutMapNum() * n) {
+
+			@Override
+			public void process(int start, int end) {
+				for (int i = start; i < end; i++) {
+					Util.scaleMatrix(lastMaps, i * lastSize.x * lastSize.y,
+							lastSize.x, lastSize.y, scaleSize, maps, i
+									* mapSize.x * mapSize.y);
+				}
+			}
+
+		}.start();
+	}
+
+	/*
+	 * Compute the output of the convolutional layer. The input maps are lowered
+	 * by the layer's ConvEngine and multiplied against its packed kernels with
+	 * the bias and sigmoid fused into the multiplication, each thread is
+	 * responsible for part of the output positions
+	 */
+	private static void setConvOutput(final Layer layer, final Tensor lastMaps,
+			final Tensor maps) {
+		final double[] bias = layer.getBias();
+		FftConv fft = layer.getFftConv();
+		if (fft.forward()) {
+			fft.prepare(layer.getKernel());
+			fft.convolveSigmod(lastMaps.getData(), lastMaps.getOffset(),
+					maps.getData(), maps.getOffset(), bias);
+			return;
+		}
+		final ConvEngine engine = layer.getConvEngine();
+		engine.prepare(layer.getKernel());
+		new TaskManager(engine.getOutLength(), POSITION_GRAIN) {
+
+			@Override
+			public void process(int start, int end) {
+				engine.convolveSigmod(lastMaps.getData(), lastMaps.getOffset(),
+						maps.getData(), maps.getOffset(), start, end, bias);
+			}
+
+		}.start();
+
+	}
+
+	private static void setConvOutput(final Layer layer, final float[] lastMaps,
+			final int lastOff, final float[] maps, final int off) {
+		final double[] bias = layer.getBias();
+		final ConvEngine engine = layer.getConvEngine();
+		engine.prepare(layer.getKernel());
+		new TaskManager(engine.getOutLength(), POSITION_GRAIN) {
+
+			@Override
+			public void process(int start, int end) {
+				engine.convolveSigmod(lastMaps, lastOff, maps, off, start, end,
+						bias);
+			}
+
+		}.start();
 
 	}
 
@@ -599,20 +1540,45 @@ public class CNN implements Serializable {
 	 * 
 	 * @param layer
 	 * @param lastLayer
+	 * @param lastMaps
+	 * @param maps
 	 */
-	private void setSampOutput(final Layer layer, final Layer lastLayer) {
+	private static void setSampOutput(final Layer layer, final Layer lastLayer,
+			final Tensor lastMaps, final Tensor maps) {
 		int lastMapNum = lastLayer.getOutMapNum();
+		final Size lastSize = lastLayer.getMapSize();
+		final Size scaleSize = layer.getScaleSize();
 		new TaskManager(lastMapNum) {
 
 			@Override
 			public void process(int start, int end) {
 				for (int i = start; i < end; i++) {
-					double[][] lastMap = lastLayer.getMap(i);
-					Size scaleSize = layer.getScaleSize();
 					// The scaleSize area for averaging
-					double[][] sampMatrix = Util
-							.scaleMatrix(lastMap, scaleSize);
-					layer.setMapValue(i, sampMatrix);
+					Util.scaleMatrix(lastMaps.getData(), lastMaps.offset(i),
+							lastSize.x, lastSize.y, scaleSize, maps.getData(),
+							maps.offset(i));
+				}
+			}
+
+		}.start();
+
+	}
+
+	private static void setSampOutput(final Layer layer, final Layer lastLayer,
+			final float[] lastMaps, final int lastOff, final float[] maps,
+			final int off) {
+		int lastMapNum = lastLayer.getOutMapNum();
+		final Size lastSize = lastLayer.getMapSize();
+		final Size scaleSize = layer.getScaleSize();
+		final Size mapSize = layer.getMapSize();
+		new TaskManager(lastMapNum) {
+
+			@Override
+			public void process(int start, int end) {
+				for (int i = start; i < end; i++) {
+					Util.scaleMatrix(lastMaps, lastOff + i * lastSize.x
+							* lastSize.y, lastSize.x, lastSize.y, scaleSize,
+							maps, off + i * mapSize.x * mapSize.y);
 				}
 			}
 
@@ -620,6 +1586,39 @@ public class CNN implements Serializable {
 
 	}
 
+	/**
+	 * Precision of the maps of training and of the inference sessions on
+	 * this network
+	 * 
+	 * @return
+	 */
+	public Precision getPrecision() {
+		return precision == null ? Precision.DOUBLE : precision;
+	}
+
+	/**
+	 * Change the precision, e.g. to run a model trained and saved in double
+	 * precision in float. The maps of the training batch are allocated again
+	 * in the new precision, so not during training
+	 * 
+	 * @param precision
+	 */
+	public void setPrecision(Precision precision) {
+		boolean changed = precision != getPrecision();
+		this.precision = precision;
+		if (changed && isRight != null)
+			initBatchMaps(batchSize);
+	}
+
+	/**
+	 * Get the layers of the network, shared with inference sessions
+	 * 
+	 * @return
+	 */
+	List<Layer> getLayers() {
+		return layers;
+	}
+
 	/**
 	 * Set cnn network parameters of each layer
 	 * 
@@ -628,9 +1627,10 @@ public class CNN implements Serializable {
 	 * @param inputMapSize
 	 */
 	public void setup(int batchSize) {
-		Layer inputLayer = layers.get(0);
-		// Each layer needs to initialize the output map
-		inputLayer.initOutmaps(batchSize);
+		setup(batchSize, true);
+	}
+
+	private void setup(int batchSize, boolean initialize) {
 		for (int i = 1; i < layers.size(); i++) {
 			Layer layer = layers.get(i);
 			Layer frontLayer = layers.get(i - 1);
@@ -644,36 +1644,66 @@ public class CNN implements Serializable {
 						layer.getKernelSize(), 1));
 				//Initializes the convolution kernel with a total of frontMapNum * outMapNum convolution kernels
 
-				layer.initKernel(frontMapNum);
+				layer.initKernel(frontMapNum, initialize);
+				layer.initConvEngine(frontMapNum, frontLayer.getMapSize());
 				// Initialize offset, total frontMapNum * outMapNum offset
 				layer.initBias(frontMapNum);
-				// Each record in the batch should have a residual
-				layer.initErros(batchSize);
-				// Each layer needs to initialize the output map
-				layer.initOutmaps(batchSize);
 				break;
 			case samp:
 				// The number of map layers is the same as the previous map
 				layer.setOutMapNum(frontMapNum);
 				// The size of the sample map is the size of the previous map divided by the scale
 				layer.setMapSize(frontLayer.getMapSize().divide(layer.getScaleSize()));
-				// Each record in the batch should have a residual
-				layer.initErros(batchSize);
-				// Each layer needs to initialize the output map
-				layer.initOutmaps(batchSize);
 				break;
 			case output:
 				// Initialization weight (convolution kernel), output layer convolution kernel size of the previous map size
-				layer.initOutputKerkel(frontMapNum, frontLayer.getMapSize());
+				layer.initOutputKerkel(frontMapNum, frontLayer.getMapSize(),
+						initialize);
+				layer.initConvEngine(frontMapNum, frontLayer.getMapSize());
 				// Initialize offset, total frontMapNum * outMapNum offset
 				layer.initBias(frontMapNum);
-				// Each record in the batch should have a residual
-				layer.initErros(batchSize);
-				// Each layer needs to initialize the output map
-				layer.initOutmaps(batchSize);
 				break;
 			}
 		}
+		if (initialize)
+			initBatchMaps(batchSize);
+	}
+
+	/**
+	 * Each layer needs to initialize the output maps and, except the input
+	 * layer, a residual for each record in the batch, in the precision of
+	 * the network
+	 * 
+	 * @param batchSize
+	 */
+	private void initBatchMaps(int batchSize) {
+		isRight = new boolean[batchSize];
+		losses = new double[batchSize];
+		boolean single = getPrecision() == Precision.FLOAT;
+		for (int l = 0; l < layers.size(); l++) {
+			Layer layer = layers.get(l);
+			layer.initOutmaps(batchSize, single);
+			if (l > 0)
+				layer.initErros(batchSize, single);
+		}
+		if (single) {
+			recordMaps = null;
+			floatMaps = new float[layers.size()][];
+			for (int l = 0; l < layers.size(); l++)
+				floatMaps[l] = layers.get(l).getFloatMaps();
+			return;
+		}
+		floatMaps = null;
+		recordMaps = new Tensor[batchSize][layers.size()];
+		for (int r = 0; r < batchSize; r++)
+			for (int l = 0; l < layers.size(); l++)
+				recordMaps[r][l] = layers.get(l).getRecordMaps(r);
+	}
+
+	// Allocate the batch buffers of a network loaded from a model file
+	private void ensureBatchMaps() {
+		if (isRight == null)
+			initBatchMaps(batchSize);
 	}
 
 	/**
@@ -686,6 +1716,7 @@ public class CNN implements Serializable {
 	 */
 	public static class LayerBuilder {
 		private List<Layer> mLayers;
+		private Precision precision = Precision.DOUBLE;
 
 		public LayerBuilder() {
 			mLayers = new ArrayList<Layer>();
@@ -700,41 +1731,54 @@ public class CNN implements Serializable {
 			mLayers.add(layer);
 			return this;
 		}
+
+		/**
+		 * Set the precision of training and inference, double by default, see
+		 * {@link Precision}
+		 * 
+		 * @param precision
+		 * @return
+		 */
+		public LayerBuilder setPrecision(Precision precision) {
+			this.precision = precision;
+			return this;
+		}
 	}
 
 	/**
-	 * Serialize the save model
+	 * Save the topology and the parameters of the model in the binary format
+	 * of {@link ModelFile}
 	 * 
 	 * @param fileName
 	 */
 	public void saveModel(String fileName) {
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(
-					new FileOutputStream(fileName));
-			oos.writeObject(this);
-			oos.flush();
-			oos.close();
+			ModelFile.write(this, batchSize, fileName);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.e("saveModel", e);
 		}
 
 	}
 
 	/**
 	 * 
-	 *  Deserialize the import model
+	 *  Import a model saved by {@link #saveModel(String)}. Models serialized
+	 *  by the versions before the binary format cannot be read, they have to
+	 *  be trained and saved again
 	 * @param fileName
-	 * @return
+	 * @return null when the file cannot be read, legacy serialized models
+	 *         included, with the reason logged
 	 */
 	public static CNN loadModel(String fileName) {
 		try {
-			ObjectInputStream in = new ObjectInputStream(new FileInputStream(
-					fileName));
-			CNN cnn = (CNN) in.readObject();
-			in.close();
-			return cnn;
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
+			if (ModelFile.isSerialized(fileName))
+				throw new IOException(fileName
+						+ " is a legacy serialized model, which is no longer supported; "
+						+ "train it again and save it with saveModel (model file version "
+						+ ModelFile.VERSION + ")");
+			return ModelFile.read(fileName);
+		} catch (IOException e) {
+			Log.e("loadModel", e);
 		}
 		return null;
 	}
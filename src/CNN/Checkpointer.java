@@ -0,0 +1,211 @@
+package CNN;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import util.Log;
+
+/**
+ * Periodic checkpoints of a training, every given number of batches or
+ * seconds. The training thread only copies the parameters into a snapshot
+ * between two batches, the file is written by a background thread into a
+ * temporary file that then replaces the checkpoint, so a crash leaves the
+ * previous checkpoint intact. A checkpoint due while the previous one is
+ * still being written is skipped.
+ *
+ * A checkpoint is a model file of {@link ModelFile} with the training state
+ * (epoch, batch, shuffle seed, learning rate and the accuracy counts of the
+ * epoch) added, load it with
+ * {@link CNN#resume(String)} and call train again to continue
+ *
+ * @see CNN#setCheckpointer(Checkpointer)
+ *
+ */
+public class Checkpointer {
+	private final String fileName;
+	private final int everyBatches;
+	private final long everyNanos;
+
+	private long lastTime;
+	private int batchesSince;
+	// A checkpoint is due, taken before the next batch or after the epoch
+	private boolean due;
+	// Parameters of the last snapshot, reused while no write is running
+	private double[] params;
+	private Thread writer;
+	private volatile Throwable error;
+
+	// Time the training thread spent copying parameters
+	private long snapshotNanos;
+	// Time of the writes, accumulated by the writer threads
+	private volatile long writeNanos;
+	private int saved;
+	private int skipped;
+
+	/**
+	 *
+	 * @param fileName
+	 *            The checkpoint, replaced by every new checkpoint
+	 * @param everyBatches
+	 *            Batches between checkpoints, 0 for none
+	 * @param everySeconds
+	 *            Seconds between checkpoints, 0 for none
+	 */
+	public Checkpointer(String fileName, int everyBatches, long everySeconds) {
+		if (everyBatches < 0 || everySeconds < 0)
+			throw new RuntimeException("Bad checkpoint interval "
+					+ everyBatches + " batches " + everySeconds + "s");
+		this.fileName = fileName;
+		this.everyBatches = everyBatches;
+		this.everyNanos = everySeconds * 1000000000L;
+		lastTime = System.nanoTime();
+	}
+
+	/**
+	 * Called by the training thread after the parameters were updated for a
+	 * batch. A checkpoint that becomes due is taken by the next
+	 * {@link #saveIfDue(CNN, int, int)}, once the training knows whether the
+	 * batch ended the epoch
+	 */
+	void batchDone() {
+		batchesSince++;
+		due |= everyBatches > 0 && batchesSince >= everyBatches
+				|| everyNanos > 0 && System.nanoTime() - lastTime >= everyNanos;
+	}
+
+	/**
+	 * Take the checkpoint due after the last batch, if any
+	 *
+	 * @param cnn
+	 * @param epoch
+	 * @param batch
+	 *            The number of batches of the epoch done
+	 */
+	void saveIfDue(CNN cnn, int epoch, int batch) {
+		if (due)
+			save(cnn, epoch, batch, false);
+	}
+
+	/**
+	 * Take a snapshot and write it in the background
+	 *
+	 * @param cnn
+	 * @param epoch
+	 * @param batch
+	 * @param wait
+	 *            Wait for a running write first instead of skipping, and for
+	 *            this write to finish
+	 */
+	void save(final CNN cnn, int epoch, int batch, boolean wait) {
+		if (writer != null && writer.isAlive()) {
+			if (!wait) {
+				skipped++;
+				return;
+			}
+			await();
+		}
+		checkError();
+		due = false;
+		batchesSince = 0;
+		lastTime = System.nanoTime();
+		long t = System.nanoTime();
+		final double[] snapshot = ModelFile.snapshot(cnn, params);
+		params = snapshot;
+		final long[] state = cnn.getTrainingState(epoch, batch);
+		snapshotNanos += System.nanoTime() - t;
+		saved++;
+		writer = new Thread("Checkpointer") {
+			@Override
+			public void run() {
+				long t = System.nanoTime();
+				try {
+					File tmp = new File(fileName + ".tmp");
+					ModelFile.write(cnn, cnn.getBatchSize(), snapshot, state,
+							tmp.getPath());
+					Files.move(tmp.toPath(), new File(fileName).toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (Throwable e) {
+					error = e;
+				}
+				writeNanos += System.nanoTime() - t;
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		if (wait)
+			await();
+	}
+
+	/**
+	 * Wait for the running write, if any
+	 */
+	void await() {
+		if (writer == null)
+			return;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		checkError();
+	}
+
+	private void checkError() {
+		if (error == null)
+			return;
+		Throwable e = error;
+		error = null;
+		throw new RuntimeException("Writing checkpoint " + fileName
+				+ " failed", e);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Number of checkpoints taken
+	 *
+	 * @return
+	 */
+	public int getSaved() {
+		return saved;
+	}
+
+	/**
+	 * Number of checkpoints skipped because the previous write was running
+	 *
+	 * @return
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Time training was paused for snapshots, the whole cost of
+	 * checkpointing to the training thread
+	 *
+	 * @return
+	 */
+	public long getSnapshotNanos() {
+		return snapshotNanos;
+	}
+
+	/**
+	 * Time spent writing checkpoints in the background
+	 *
+	 * @return
+	 */
+	public long getWriteNanos() {
+		return writeNanos;
+	}
+
+	void log() {
+		Log.i("checkpoint", saved + " saved, " + skipped + " skipped, snapshot "
+				+ snapshotNanos / 1000000 + "ms, write " + writeNanos / 1000000
+				+ "ms");
+	}
+}
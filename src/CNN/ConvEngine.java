@@ -0,0 +1,474 @@
+package CNN;
+
+import java.io.Serializable;
+
+import CNN.Layer.Size;
+import util.Gemm;
+import util.Tensor;
+
+/**
+ * Convolution engine of a convolution or output layer. All input maps of a
+ * record are lowered into an im2col buffer, which is multiplied against the
+ * kernels packed into one matrix, so a whole layer is a single GEMM instead
+ * of frontMapNum * outMapNum small convolutions
+ *
+ *
+ */
+public class ConvEngine implements Serializable {
+
+	private static final long serialVersionUID = 3518045741985925641L;
+	// Size of the im2col buffer of batched inference, fits in L2 with the packed kernels
+	private static final int SLAB_ELEMENTS = 16384;
+	private final int inMapNum;
+	private final int outMapNum;
+	private final Size inSize;
+	private final Size kernelSize;
+	private final Size outSize;
+	// Length of one column of the im2col buffer, inMapNum * kernelSize.x * kernelSize.y
+	private final int patchLength;
+	// Number of output positions of a map, outSize.x * outSize.y
+	private final int outLength;
+	// Kernels packed as an outMapNum x patchLength matrix, reused across updates
+	private transient double[] packedKernel;
+	// Single precision copy of packedKernel for float inference
+	private transient float[] packedKernelFloat;
+	// Whether packedKernel holds the current kernels
+	private transient volatile boolean packed;
+	// patchLength x outLength per thread, the receptive field of every output position is a column
+	private transient ThreadLocal<double[]> cols;
+	// Single precision im2col buffer per thread
+	private transient ThreadLocal<float[]> floatCols;
+	// im2col buffers of batched inference per thread, grown on demand
+	private transient ThreadLocal<double[][]> batchCols;
+	private transient ThreadLocal<float[][]> floatBatchCols;
+
+	/**
+	 *
+	 * @param inMapNum
+	 *            The number of maps of the previous layer
+	 * @param inSize
+	 *            The size of the maps of the previous layer
+	 * @param outMapNum
+	 *            The number of maps of the current layer
+	 * @param kernelSize
+	 */
+	public ConvEngine(int inMapNum, Size inSize, int outMapNum, Size kernelSize) {
+		this.inMapNum = inMapNum;
+		this.outMapNum = outMapNum;
+		this.inSize = inSize;
+		this.kernelSize = kernelSize;
+		this.outSize = inSize.subtract(kernelSize, 1);
+		this.patchLength = inMapNum * kernelSize.x * kernelSize.y;
+		this.outLength = outSize.x * outSize.y;
+	}
+
+	/**
+	 * Mark the packed kernel matrix stale after the kernels have changed
+	 */
+	public void invalidate() {
+		packed = false;
+	}
+
+	/**
+	 * Pack the kernels of the layer into the kernel matrix if they have changed
+	 * since the last call. May be called by several threads at once, but not
+	 * while the kernels are being updated
+	 *
+	 * @param kernel
+	 *            All the convolution kernels of the layer, see
+	 *            {@link Layer#getKernel()}
+	 */
+	public void prepare(Tensor kernel) {
+		if (!packed)
+			pack(kernel);
+	}
+
+	private synchronized void pack(Tensor kernel) {
+		if (cols == null) {
+			cols = new ThreadLocal<double[]>() {
+				@Override
+				protected double[] initialValue() {
+					return new double[patchLength * outLength];
+				}
+			};
+			floatCols = new ThreadLocal<float[]>() {
+				@Override
+				protected float[] initialValue() {
+					return new float[patchLength * outLength];
+				}
+			};
+			batchCols = new ThreadLocal<double[][]>() {
+				@Override
+				protected double[][] initialValue() {
+					return new double[1][0];
+				}
+			};
+			floatBatchCols = new ThreadLocal<float[][]>() {
+				@Override
+				protected float[][] initialValue() {
+					return new float[1][0];
+				}
+			};
+		}
+		if (packed)
+			return;
+		if (packedKernel == null) {
+			packedKernel = new double[outMapNum * patchLength];
+			packedKernelFloat = new float[outMapNum * patchLength];
+		}
+		final double[] matrix = packedKernel;
+		final double[] data = kernel.getData();
+		final int kernelLength = kernelSize.x * kernelSize.y;
+		for (int j = 0; j < outMapNum; j++) {
+			for (int i = 0; i < inMapNum; i++) {
+				System.arraycopy(data, kernel.offset(i, j), matrix, j
+						* patchLength + i * kernelLength, kernelLength);
+			}
+		}
+		final float[] floatMatrix = packedKernelFloat;
+		for (int p = 0; p < matrix.length; p++)
+			floatMatrix[p] = (float) matrix[p];
+		packed = true;
+	}
+
+	/**
+	 * Compute the convolution sums of the output positions [start, end) of
+	 * every output map, different ranges or records may be computed on
+	 * different threads
+	 *
+	 * @param in
+	 *            Storage of the maps of the previous layer for the current
+	 *            record, inMapNum x inSize.x x inSize.y row-major from inOff
+	 * @param inOff
+	 * @param out
+	 *            Storage of the output maps, outMapNum x outSize.x x outSize.y
+	 *            row-major from outOff
+	 * @param outOff
+	 * @param start
+	 * @param end
+	 */
+	public void convolve(double[] in, int inOff, double[] out, int outOff,
+			int start, int end) {
+		double[] cols = this.cols.get();
+		im2col(in, inOff, cols, start, end);
+		Gemm.multiply(outMapNum, end - start, patchLength, packedKernel, 0,
+				patchLength, cols, start, outLength, out, outOff + start,
+				outLength, false);
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #convolve(double[], int, double[], int, int, int)}
+	 * 
+	 * @param in
+	 * @param inOff
+	 * @param out
+	 * @param outOff
+	 * @param start
+	 * @param end
+	 */
+	public void convolve(float[] in, int inOff, float[] out, int outOff,
+			int start, int end) {
+		float[] cols = this.floatCols.get();
+		im2col(in, inOff, cols, start, end);
+		Gemm.multiply(outMapNum, end - start, patchLength, packedKernelFloat,
+				0, patchLength, cols, start, outLength, out, outOff + start,
+				outLength, false);
+	}
+
+	/**
+	 * Same as {@link #convolve(double[], int, double[], int, int, int)} but
+	 * writes sigmod(sum + bias[j]) for output map j, the bias and sigmoid are
+	 * applied while the GEMM tiles are still in registers
+	 * 
+	 * @param in
+	 * @param inOff
+	 * @param out
+	 * @param outOff
+	 * @param start
+	 * @param end
+	 * @param bias
+	 *            One bias per output map
+	 */
+	public void convolveSigmod(double[] in, int inOff, double[] out,
+			int outOff, int start, int end, double[] bias) {
+		double[] cols = this.cols.get();
+		im2col(in, inOff, cols, start, end);
+		Gemm.multiplySigmod(outMapNum, end - start, patchLength, packedKernel,
+				0, patchLength, cols, start, outLength, out, outOff + start,
+				outLength, bias, 0);
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #convolveSigmod(double[], int, double[], int, int, int, double[])}
+	 * 
+	 * @param in
+	 * @param inOff
+	 * @param out
+	 * @param outOff
+	 * @param start
+	 * @param end
+	 * @param bias
+	 */
+	public void convolveSigmod(float[] in, int inOff, float[] out,
+			int outOff, int start, int end, double[] bias) {
+		float[] cols = this.floatCols.get();
+		im2col(in, inOff, cols, start, end);
+		Gemm.multiplySigmod(outMapNum, end - start, patchLength,
+				packedKernelFloat, 0, patchLength, cols, start, outLength,
+				out, outOff + start, outLength, bias, 0);
+	}
+
+	/**
+	 * Batched version of
+	 * {@link #convolveSigmod(double[], int, double[], int, int, int, double[])}
+	 * for n records whose maps are stored map by map, [mapNo][record][x][y].
+	 * The output positions of all records form the n * outLength columns of
+	 * one GEMM, this computes the columns [start, end) of it, lowered a slab
+	 * of columns at a time so that the im2col buffer stays in cache
+	 * 
+	 * @param in
+	 *            Storage of the maps of the previous layer, inMapNum x n x
+	 *            inSize.x x inSize.y row-major from inOff
+	 * @param inOff
+	 * @param n
+	 *            Number of records
+	 * @param out
+	 *            Storage of the output maps, outMapNum x n x outSize.x x
+	 *            outSize.y row-major from outOff
+	 * @param outOff
+	 * @param start
+	 * @param end
+	 * @param bias
+	 */
+	public void convolveSigmod(double[] in, int inOff, int n, double[] out,
+			int outOff, int start, int end, double[] bias) {
+		double[][] holder = batchCols.get();
+		int slab = slabWidth();
+		if (holder[0].length < patchLength * slab)
+			holder[0] = new double[patchLength * slab];
+		double[] cols = holder[0];
+		for (int from = start; from < end; from += slab) {
+			int to = Math.min(end, from + slab);
+			im2col(in, inOff, n, cols, from, to);
+			Gemm.multiplySigmod(outMapNum, to - from, patchLength, packedKernel,
+					0, patchLength, cols, 0, to - from, out, outOff + from, n
+							* outLength, bias, 0);
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #convolveSigmod(double[], int, int, double[], int, int, int, double[])}
+	 * 
+	 * @param in
+	 * @param inOff
+	 * @param n
+	 * @param out
+	 * @param outOff
+	 * @param start
+	 * @param end
+	 * @param bias
+	 */
+	public void convolveSigmod(float[] in, int inOff, int n, float[] out,
+			int outOff, int start, int end, double[] bias) {
+		float[][] holder = floatBatchCols.get();
+		int slab = slabWidth();
+		if (holder[0].length < patchLength * slab)
+			holder[0] = new float[patchLength * slab];
+		float[] cols = holder[0];
+		for (int from = start; from < end; from += slab) {
+			int to = Math.min(end, from + slab);
+			im2col(in, inOff, n, cols, from, to);
+			Gemm.multiplySigmod(outMapNum, to - from, patchLength, packedKernelFloat,
+					0, patchLength, cols, 0, to - from, out, outOff + from, n
+							* outLength, bias, 0);
+		}
+	}
+
+	// Columns of a slab, about SLAB_ELEMENTS elements of im2col buffer
+	private int slabWidth() {
+		return Math.max(outLength, SLAB_ELEMENTS / patchLength);
+	}
+
+	/**
+	 * Lower the receptive fields of the columns [start, end) of a batch into
+	 * a buffer of end - start columns, column c is the output position c %
+	 * outLength of record c / outLength
+	 */
+	private void im2col(double[] in, int inOff, int n, double[] cols,
+			int start, int end) {
+		final int kx = kernelSize.x;
+		final int ky = kernelSize.y;
+		final int inY = inSize.y;
+		final int outY = outSize.y;
+		final int mapLength = inSize.x * inY;
+		final int width = end - start;
+		int row = 0;
+		for (int i = 0; i < inMapNum; i++) {
+			for (int ki = 0; ki < kx; ki++) {
+				for (int kj = 0; kj < ky; kj++) {
+					int base = row * width - start;
+					int r = start / outLength;
+					int p = start % outLength;
+					int ox = p / outY;
+					int oy = p % outY;
+					int line = inOff + (i * n + r) * mapLength + (ox + ki) * inY
+							+ kj;
+					for (int c = start; c < end; c++) {
+						cols[base + c] = in[line + oy];
+						if (++oy == outY) {
+							oy = 0;
+							line += inY;
+							if (++ox == outSize.x) {
+								// Next record
+								ox = 0;
+								r++;
+								line = inOff + (i * n + r) * mapLength + ki * inY
+										+ kj;
+							}
+						}
+					}
+					row++;
+				}
+			}
+		}
+	}
+
+	private void im2col(float[] in, int inOff, int n, float[] cols,
+			int start, int end) {
+		final int kx = kernelSize.x;
+		final int ky = kernelSize.y;
+		final int inY = inSize.y;
+		final int outY = outSize.y;
+		final int mapLength = inSize.x * inY;
+		final int width = end - start;
+		int row = 0;
+		for (int i = 0; i < inMapNum; i++) {
+			for (int ki = 0; ki < kx; ki++) {
+				for (int kj = 0; kj < ky; kj++) {
+					int base = row * width - start;
+					int r = start / outLength;
+					int p = start % outLength;
+					int ox = p / outY;
+					int oy = p % outY;
+					int line = inOff + (i * n + r) * mapLength + (ox + ki) * inY
+							+ kj;
+					for (int c = start; c < end; c++) {
+						cols[base + c] = in[line + oy];
+						if (++oy == outY) {
+							oy = 0;
+							line += inY;
+							if (++ox == outSize.x) {
+								ox = 0;
+								r++;
+								line = inOff + (i * n + r) * mapLength + ki * inY
+										+ kj;
+							}
+						}
+					}
+					row++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lower the receptive fields of the output positions [start, end) into
+	 * the columns of the im2col buffer
+	 */
+	private void im2col(double[] in, int inOff, double[] cols, int start,
+			int end) {
+		final int kx = kernelSize.x;
+		final int ky = kernelSize.y;
+		final int inY = inSize.y;
+		final int outY = outSize.y;
+		final int mapLength = inSize.x * inY;
+		int row = 0;
+		for (int i = 0; i < inMapNum; i++) {
+			int map = inOff + i * mapLength;
+			for (int ki = 0; ki < kx; ki++) {
+				for (int kj = 0; kj < ky; kj++) {
+					int base = row * outLength;
+					int ox = start / outY;
+					int oy = start % outY;
+					int line = map + (ox + ki) * inY + kj;
+					for (int p = start; p < end; p++) {
+						cols[base + p] = in[line + oy];
+						if (++oy == outY) {
+							oy = 0;
+							line += inY;
+						}
+					}
+					row++;
+				}
+			}
+		}
+	}
+
+	private void im2col(float[] in, int inOff, float[] cols, int start,
+			int end) {
+		final int kx = kernelSize.x;
+		final int ky = kernelSize.y;
+		final int inY = inSize.y;
+		final int outY = outSize.y;
+		final int mapLength = inSize.x * inY;
+		int row = 0;
+		for (int i = 0; i < inMapNum; i++) {
+			int map = inOff + i * mapLength;
+			for (int ki = 0; ki < kx; ki++) {
+				for (int kj = 0; kj < ky; kj++) {
+					int base = row * outLength;
+					int ox = start / outY;
+					int oy = start % outY;
+					int line = map + (ox + ki) * inY + kj;
+					for (int p = start; p < end; p++) {
+						cols[base + p] = in[line + oy];
+						if (++oy == outY) {
+							oy = 0;
+							line += inY;
+						}
+					}
+					row++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of output positions of a map
+	 *
+	 * @return
+	 */
+	public int getOutLength() {
+		return outLength;
+	}
+
+	public Size getOutSize() {
+		return outSize;
+	}
+
+	public Size getInSize() {
+		return inSize;
+	}
+
+	public int getInMapNum() {
+		return inMapNum;
+	}
+
+	/**
+	 * Get the single precision copy of the kernels packed by
+	 * {@link #prepare(Tensor)}, the kernel from map i of the previous layer to
+	 * map j starts at {@link #getKernelOffset(int, int)}
+	 *
+	 * @return
+	 */
+	public float[] getFloatKernel() {
+		return packedKernelFloat;
+	}
+
+	public int getKernelOffset(int i, int j) {
+		return j * patchLength + i * kernelSize.x * kernelSize.y;
+	}
+}
@@ -0,0 +1,232 @@
+package CNN;
+
+import java.util.Arrays;
+
+import dataset.Dataset;
+import dataset.Dataset.Record;
+import util.ConcurenceRunner;
+import util.ConcurenceRunner.TaskManager;
+
+/**
+ * Evaluation of a network on a labelled dataset: confusion matrix,
+ * precision and recall of every class, throughput and latency.
+ *
+ * The dataset is cut into one contiguous part per worker, each worker
+ * classifies its part in batches with its own {@link InferenceSession} and
+ * counts into its own confusion matrix and latency array, which are only
+ * added up once all the workers are done, so nothing is shared while they
+ * run. The latency of a record is the time of the forward pass of its batch
+ *
+ */
+public class Evaluation {
+	// [actual][predicted] number of records
+	private final long[][] confusion;
+	private final long records;
+	private final long nanos;
+	// Latency of every record, sorted
+	private final long[] latencies;
+
+	private Evaluation(long[][] confusion, long records, long nanos,
+			long[] latencies) {
+		this.confusion = confusion;
+		this.records = records;
+		this.nanos = nanos;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Evaluate a network with one worker per core
+	 *
+	 * @param cnn
+	 * @param dataset
+	 * @return
+	 */
+	public static Evaluation evaluate(CNN cnn, Dataset dataset) {
+		return evaluate(cnn, dataset, ConcurenceRunner.cpuNum);
+	}
+
+	/**
+	 * Evaluate a network
+	 *
+	 * @param cnn
+	 *            The network, which must not be trained meanwhile, see
+	 *            {@link CNN#copy()}
+	 * @param dataset
+	 *            Records with labels
+	 * @param workers
+	 *            Number of parts the dataset is cut into
+	 * @return
+	 */
+	public static Evaluation evaluate(CNN cnn, final Dataset dataset,
+			int workers) {
+		final int classNum = cnn.getLayers().get(cnn.getLayers().size() - 1)
+				.getOutMapNum();
+		final int size = dataset.size();
+		final int parts = Math.max(1, Math.min(workers, size));
+		final int batchSize = cnn.getInferenceBatchSize();
+		final InferenceSession[] sessions = new InferenceSession[parts];
+		final long[][][] confusions = new long[parts][][];
+		final long[][] partLatencies = new long[parts][];
+		for (int w = 0; w < parts; w++)
+			sessions[w] = new InferenceSession(cnn, batchSize);
+		long t = System.nanoTime();
+		new TaskManager(parts, 1) {
+
+			@Override
+			public void process(int start, int end) {
+				for (int w = start; w < end; w++) {
+					int from = (int) ((long) size * w / parts);
+					int to = (int) ((long) size * (w + 1) / parts);
+					long[][] confusion = new long[classNum][classNum];
+					long[] latency = new long[to - from];
+					Record[] batch = new Record[batchSize];
+					int[] classes = new int[batchSize];
+					for (int i = from; i < to; i += batchSize) {
+						int n = Math.min(batchSize, to - i);
+						for (int r = 0; r < n; r++)
+							batch[r] = dataset.getRecord(i + r);
+						long begin = System.nanoTime();
+						sessions[w].classify(batch, n, classes);
+						long elapsed = System.nanoTime() - begin;
+						for (int r = 0; r < n; r++) {
+							Double lable = batch[r].getLable();
+							if (lable == null || lable < 0 || lable >= classNum)
+								throw new RuntimeException("Record " + (i + r)
+										+ " has lable " + lable + " outside [0, "
+										+ classNum + ")");
+							confusion[lable.intValue()][classes[r]]++;
+							latency[i - from + r] = elapsed;
+						}
+					}
+					confusions[w] = confusion;
+					partLatencies[w] = latency;
+				}
+			}
+		}.start();
+		long nanos = System.nanoTime() - t;
+		long[][] confusion = new long[classNum][classNum];
+		long[] latencies = new long[size];
+		int pos = 0;
+		for (int w = 0; w < parts; w++) {
+			for (int a = 0; a < classNum; a++)
+				for (int p = 0; p < classNum; p++)
+					confusion[a][p] += confusions[w][a][p];
+			System.arraycopy(partLatencies[w], 0, latencies, pos,
+					partLatencies[w].length);
+			pos += partLatencies[w].length;
+		}
+		Arrays.sort(latencies);
+		return new Evaluation(confusion, size, nanos, latencies);
+	}
+
+	/**
+	 * The confusion matrix, [actual][predicted] number of records
+	 *
+	 * @return
+	 */
+	public long[][] getConfusionMatrix() {
+		return confusion;
+	}
+
+	public int getClassNum() {
+		return confusion.length;
+	}
+
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Fraction of records classified correctly
+	 *
+	 * @return
+	 */
+	public double getAccuracy() {
+		long right = 0;
+		for (int c = 0; c < confusion.length; c++)
+			right += confusion[c][c];
+		return records == 0 ? 0 : 1.0 * right / records;
+	}
+
+	/**
+	 * Fraction of the records predicted as c that are c, NaN when nothing
+	 * was predicted as c
+	 *
+	 * @param c
+	 * @return
+	 */
+	public double getPrecision(int c) {
+		long predicted = 0;
+		for (int a = 0; a < confusion.length; a++)
+			predicted += confusion[a][c];
+		return 1.0 * confusion[c][c] / predicted;
+	}
+
+	/**
+	 * Fraction of the records of class c predicted as c, NaN when there is
+	 * no record of c
+	 *
+	 * @param c
+	 * @return
+	 */
+	public double getRecall(int c) {
+		long actual = 0;
+		for (int p = 0; p < confusion.length; p++)
+			actual += confusion[c][p];
+		return 1.0 * confusion[c][c] / actual;
+	}
+
+	public double getRecordsPerSecond() {
+		return nanos == 0 ? 0 : records * 1e9 / nanos;
+	}
+
+	/**
+	 * Latency below which a fraction q of the records were classified
+	 *
+	 * @param q
+	 *            In [0, 1], 0.5 for the median
+	 * @return
+	 */
+	public long getLatencyNanos(double q) {
+		if (latencies.length == 0)
+			return 0;
+		int index = (int) Math.ceil(q * latencies.length) - 1;
+		return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+	}
+
+	/**
+	 * One line with accuracy, throughput and latency
+	 *
+	 * @return
+	 */
+	public String summary() {
+		return String.format(
+				"accuracy %.4f, %d records, %.0f records/sec, latency p50 %.3fms p99 %.3fms",
+				getAccuracy(), records, getRecordsPerSecond(),
+				getLatencyNanos(0.5) / 1e6, getLatencyNanos(0.99) / 1e6);
+	}
+
+	/**
+	 * The summary, precision and recall of every class and the confusion
+	 * matrix
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(summary()).append('\n');
+		sb.append("class\tprecision\trecall\n");
+		for (int c = 0; c < confusion.length; c++)
+			sb.append(String.format("%d\t%.4f\t%.4f%n", c, getPrecision(c),
+					getRecall(c)));
+		sb.append("actual\\predicted");
+		for (int c = 0; c < confusion.length; c++)
+			sb.append('\t').append(c);
+		sb.append('\n');
+		for (int a = 0; a < confusion.length; a++) {
+			sb.append(a);
+			for (int p = 0; p < confusion.length; p++)
+				sb.append('\t').append(confusion[a][p]);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
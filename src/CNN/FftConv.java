@@ -0,0 +1,331 @@
+package CNN;
+
+import CNN.Layer.Size;
+import util.ConcurenceRunner.TaskManager;
+import util.FFT;
+import util.Tensor;
+import util.Util;
+
+/**
+ * FFT convolution of a convolution or output layer, for kernels large
+ * enough that transforming the maps is cheaper than convolving them
+ * directly. All three convolutions of a layer fit one transform size, the
+ * smallest power of two not below the input map size:
+ * <ul>
+ * <li>forward, the valid correlation of each input map with its kernels,
+ * sum_i IFFT(X_i * conj(K_ij))</li>
+ * <li>the residuals of the previous layer, the full convolution of the
+ * residuals with the kernels, sum_j IFFT(E_j * K_ij)</li>
+ * <li>the kernel gradient, the valid correlation of the input maps with the
+ * residuals, summed over the batch in the frequency domain before a single
+ * inverse transform per kernel</li>
+ * </ul>
+ * In none of them does the circular convolution wrap into the part that is
+ * kept. The spectra K_ij of the kernels are cached until the kernels change.
+ *
+ * Each of the three is done by FFT when an estimate of its cost is lower
+ * than that of the direct code, see {@link CNN#setConvolution(CNN.Convolution)}
+ *
+ */
+class FftConv {
+	// Relative cost of the direct code per multiply-add, GEMM is vectorized
+	private static final double GEMM_COST = 0.35;
+	private static final double LOOP_COST = 1;
+	// Per element and radix-2 stage of a transform
+	private static final double BUTTERFLY_COST = 3.5;
+	// Per element of a complex multiply-add of two spectra
+	private static final double PRODUCT_COST = 2.5;
+
+	static volatile CNN.Convolution mode = CNN.Convolution.AUTO;
+
+	private final int inMapNum;
+	private final int outMapNum;
+	private final Size inSize;
+	private final Size kernelSize;
+	private final Size outSize;
+	private final FFT fft;
+	private final int length;
+	private final boolean forwardCheaper;
+	private final boolean backwardCheaper;
+	private final boolean gradientCheaper;
+
+	// Spectra of the kernels, [i * outMapNum + j]
+	private double[][] kernelRe;
+	private double[][] kernelIm;
+	private volatile boolean ready;
+	private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+	// Spectra of the maps of a batch for the gradient, [r * (inMapNum + outMapNum) + map]
+	private double[][] batchRe;
+	private double[][] batchIm;
+	private double[] delta;
+
+	// Transform buffers of one thread
+	private class Workspace {
+		final double[][] re = new double[Math.max(inMapNum, outMapNum)][length];
+		final double[][] im = new double[Math.max(inMapNum, outMapNum)][length];
+		final double[] sumRe = new double[length];
+		final double[] sumIm = new double[length];
+		final double[] column = new double[2 * fft.rows()];
+	}
+
+	/**
+	 *
+	 * @param inMapNum
+	 *            The number of maps of the previous layer
+	 * @param inSize
+	 *            The size of the maps of the previous layer
+	 * @param outMapNum
+	 * @param kernelSize
+	 */
+	FftConv(int inMapNum, Size inSize, int outMapNum, Size kernelSize) {
+		this.inMapNum = inMapNum;
+		this.outMapNum = outMapNum;
+		this.inSize = inSize;
+		this.kernelSize = kernelSize;
+		this.outSize = inSize.subtract(kernelSize, 1);
+		fft = new FFT(FFT.size(inSize.x), FFT.size(inSize.y));
+		length = fft.length();
+		double macs = (double) inMapNum * outMapNum * kernelSize.x
+				* kernelSize.y * outSize.x * outSize.y;
+		double transform = BUTTERFLY_COST * length
+				* Integer.numberOfTrailingZeros(length);
+		double products = PRODUCT_COST * length * inMapNum * outMapNum;
+		double fftCost = (inMapNum + outMapNum) * transform + products;
+		forwardCheaper = fftCost < GEMM_COST * macs;
+		backwardCheaper = fftCost < LOOP_COST * macs;
+		gradientCheaper = fftCost < LOOP_COST * macs;
+	}
+
+	/**
+	 * Whether the forward convolution goes through the FFT
+	 *
+	 * @return
+	 */
+	boolean forward() {
+		CNN.Convolution mode = FftConv.mode;
+		return mode == CNN.Convolution.FFT || mode == CNN.Convolution.AUTO
+				&& forwardCheaper;
+	}
+
+	boolean backward() {
+		CNN.Convolution mode = FftConv.mode;
+		return mode == CNN.Convolution.FFT || mode == CNN.Convolution.AUTO
+				&& backwardCheaper;
+	}
+
+	boolean gradient() {
+		CNN.Convolution mode = FftConv.mode;
+		return mode == CNN.Convolution.FFT || mode == CNN.Convolution.AUTO
+				&& gradientCheaper;
+	}
+
+	/**
+	 * Mark the kernel spectra stale after the kernels have changed
+	 */
+	void invalidate() {
+		ready = false;
+	}
+
+	/**
+	 * Transform the kernels if they have changed since the last call
+	 *
+	 * @param kernel
+	 *            [inMapNum][outMapNum][x][y] kernels of the layer
+	 */
+	void prepare(Tensor kernel) {
+		if (!ready)
+			transformKernels(kernel);
+	}
+
+	private synchronized void transformKernels(Tensor kernel) {
+		if (ready)
+			return;
+		if (kernelRe == null) {
+			kernelRe = new double[inMapNum * outMapNum][length];
+			kernelIm = new double[inMapNum * outMapNum][length];
+		}
+		double[] column = workspace.get().column;
+		for (int i = 0; i < inMapNum; i++) {
+			for (int j = 0; j < outMapNum; j++) {
+				int k = i * outMapNum + j;
+				fft.load(kernel.getData(), kernel.offset(i, j), kernelSize.x,
+						kernelSize.y, kernelRe[k], kernelIm[k]);
+				fft.forward(kernelRe[k], kernelIm[k], column);
+			}
+		}
+		ready = true;
+	}
+
+	/**
+	 * Output maps of one record, sigmod(sum_i corr(in_i, k_ij) + bias[j]),
+	 * on the calling thread
+	 *
+	 * @param in
+	 *            inMapNum x inSize maps from inOff
+	 * @param inOff
+	 * @param out
+	 *            outMapNum x outSize maps from outOff
+	 * @param outOff
+	 * @param bias
+	 */
+	void convolveSigmod(double[] in, int inOff, double[] out, int outOff,
+			double[] bias) {
+		Workspace w = workspace.get();
+		int inLength = inSize.x * inSize.y;
+		for (int i = 0; i < inMapNum; i++) {
+			fft.load(in, inOff + i * inLength, inSize.x, inSize.y, w.re[i],
+					w.im[i]);
+			fft.forward(w.re[i], w.im[i], w.column);
+		}
+		int q = fft.columns();
+		int outLength = outSize.x * outSize.y;
+		for (int j = 0; j < outMapNum; j++) {
+			clear(w);
+			for (int i = 0; i < inMapNum; i++) {
+				int k = i * outMapNum + j;
+				multiplyAdd(w.re[i], w.im[i], kernelRe[k], kernelIm[k], true,
+						w.sumRe, w.sumIm);
+			}
+			fft.inverse(w.sumRe, w.sumIm, w.column);
+			int o = outOff + j * outLength;
+			for (int x = 0; x < outSize.x; x++)
+				for (int y = 0; y < outSize.y; y++)
+					out[o++] = Util.sigmod(w.sumRe[x * q + y] + bias[j]);
+		}
+	}
+
+	/**
+	 * Residuals of the previous layer for one record, sum_j of the full
+	 * convolution of the residual map j with k_ij, on the calling thread
+	 *
+	 * @param errors
+	 *            outMapNum x outSize residuals of this layer from errorOff
+	 * @param errorOff
+	 * @param lastErrors
+	 *            inMapNum x inSize residuals of the previous layer, written
+	 *            from lastOff
+	 * @param lastOff
+	 */
+	void backward(double[] errors, int errorOff, double[] lastErrors,
+			int lastOff) {
+		Workspace w = workspace.get();
+		int outLength = outSize.x * outSize.y;
+		for (int j = 0; j < outMapNum; j++) {
+			fft.load(errors, errorOff + j * outLength, outSize.x, outSize.y,
+					w.re[j], w.im[j]);
+			fft.forward(w.re[j], w.im[j], w.column);
+		}
+		int q = fft.columns();
+		int inLength = inSize.x * inSize.y;
+		for (int i = 0; i < inMapNum; i++) {
+			clear(w);
+			for (int j = 0; j < outMapNum; j++) {
+				int k = i * outMapNum + j;
+				multiplyAdd(w.re[j], w.im[j], kernelRe[k], kernelIm[k], false,
+						w.sumRe, w.sumIm);
+			}
+			fft.inverse(w.sumRe, w.sumIm, w.column);
+			int o = lastOff + i * inLength;
+			for (int x = 0; x < inSize.x; x++)
+				for (int y = 0; y < inSize.y; y++)
+					lastErrors[o++] = w.sumRe[x * q + y];
+		}
+	}
+
+	/**
+	 * Kernel gradients summed over a batch, the valid correlation of every
+	 * input map with every residual map. Runs on the pool, only one call at a
+	 * time per layer
+	 *
+	 * @param lastMaps
+	 *            [record][inMapNum][inSize] maps of the previous layer
+	 * @param errors
+	 *            [record][outMapNum][outSize] residuals of this layer
+	 * @param batchSize
+	 *            Number of records, in the first slots
+	 * @return The [inMapNum][outMapNum][kernelSize] sums, overwritten by the
+	 *         next call
+	 */
+	double[] gradient(final Tensor lastMaps, final Tensor errors,
+			final int batchSize) {
+		final int maps = inMapNum + outMapNum;
+		if (batchRe == null || batchRe.length < batchSize * maps) {
+			batchRe = new double[batchSize * maps][length];
+			batchIm = new double[batchSize * maps][length];
+			delta = new double[inMapNum * outMapNum * kernelSize.x
+					* kernelSize.y];
+		}
+		final double[] delta = this.delta;
+		final double[][] re = batchRe;
+		final double[][] im = batchIm;
+		new TaskManager(batchSize * maps) {
+
+			@Override
+			public void process(int start, int end) {
+				double[] column = workspace.get().column;
+				for (int t = start; t < end; t++) {
+					int r = t / maps;
+					int m = t % maps;
+					if (m < inMapNum)
+						fft.load(lastMaps.getData(), lastMaps.offset(r, m),
+								inSize.x, inSize.y, re[t], im[t]);
+					else
+						fft.load(errors.getData(),
+								errors.offset(r, m - inMapNum), outSize.x,
+								outSize.y, re[t], im[t]);
+					fft.forward(re[t], im[t], column);
+				}
+			}
+		}.start();
+		final int kernelLength = kernelSize.x * kernelSize.y;
+		new TaskManager(inMapNum * outMapNum) {
+
+			@Override
+			public void process(int start, int end) {
+				Workspace w = workspace.get();
+				int q = fft.columns();
+				for (int k = start; k < end; k++) {
+					int i = k / outMapNum;
+					int j = k % outMapNum;
+					clear(w);
+					for (int r = 0; r < batchSize; r++) {
+						int x = r * maps + i;
+						int e = r * maps + inMapNum + j;
+						multiplyAdd(re[x], im[x], re[e], im[e], true, w.sumRe,
+								w.sumIm);
+					}
+					fft.inverse(w.sumRe, w.sumIm, w.column);
+					int o = k * kernelLength;
+					for (int a = 0; a < kernelSize.x; a++)
+						for (int b = 0; b < kernelSize.y; b++)
+							delta[o++] = w.sumRe[a * q + b];
+				}
+			}
+		}.start();
+		return delta;
+	}
+
+	private void clear(Workspace w) {
+		for (int k = 0; k < length; k++) {
+			w.sumRe[k] = 0;
+			w.sumIm[k] = 0;
+		}
+	}
+
+	// sum += a * b, or a * conj(b)
+	private void multiplyAdd(double[] aRe, double[] aIm, double[] bRe,
+			double[] bIm, boolean conjugate, double[] sumRe, double[] sumIm) {
+		double sign = conjugate ? -1 : 1;
+		for (int k = 0; k < length; k++) {
+			double br = bRe[k];
+			double bi = sign * bIm[k];
+			sumRe[k] += aRe[k] * br - aIm[k] * bi;
+			sumIm[k] += aRe[k] * bi + aIm[k] * br;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package CNN;
+
+import java.util.List;
+
+import CNN.Layer.Size;
+import dataset.Dataset.Record;
+import util.Tensor;
+import util.Util;
+
+/**
+ * Reentrant inference on a trained network. The session shares the kernels
+ * and biases of the network read-only and gives every calling thread its own
+ * activation buffers, so predict may be called from many threads at once and
+ * several sessions may be used on the same network. The network must not be
+ * trained while a session is in use. The session computes in the
+ * {@link CNN.Precision} of the network at the time it is created, and is
+ * profiled by the network's {@link CNN#getProfiler()}
+ *
+ *
+ */
+public class InferenceSession {
+	private final CNN cnn;
+	private final List<Layer> layers;
+	private final boolean floatPrecision;
+	// Output maps of every layer for the calling thread
+	private final ThreadLocal<Tensor[]> activations;
+	// Output maps of every layer for the calling thread in float precision
+	private final ThreadLocal<float[][]> floatActivations;
+	// Records per forward pass of the batched methods
+	private final int batchSize;
+	// [mapNo][record][x][y] output maps of every layer for a batch
+	private final ThreadLocal<double[][]> batchActivations;
+	private final ThreadLocal<float[][]> floatBatchActivations;
+
+	/**
+	 * Create a session on a trained network, the batched methods forward
+	 * {@link CNN#getInferenceBatchSize()} records at a time
+	 *
+	 * @param cnn
+	 */
+	public InferenceSession(CNN cnn) {
+		this(cnn, cnn.getInferenceBatchSize());
+	}
+
+	/**
+	 * Create a session on a trained network
+	 *
+	 * @param cnn
+	 * @param batchSize
+	 *            Records per forward pass of the batched methods
+	 */
+	public InferenceSession(CNN cnn, final int batchSize) {
+		if (batchSize < 1)
+			throw new RuntimeException("Bad inference batch size " + batchSize);
+		this.batchSize = batchSize;
+		this.cnn = cnn;
+		this.layers = cnn.getLayers();
+		this.floatPrecision = cnn.getPrecision() == CNN.Precision.FLOAT;
+		this.activations = new ThreadLocal<Tensor[]>() {
+			@Override
+			protected Tensor[] initialValue() {
+				Tensor[] maps = new Tensor[layers.size()];
+				for (int l = 0; l < maps.length; l++) {
+					Layer layer = layers.get(l);
+					Size size = layer.getMapSize();
+					maps[l] = new Tensor(layer.getOutMapNum(), size.x, size.y);
+				}
+				return maps;
+			}
+		};
+		this.floatActivations = new ThreadLocal<float[][]>() {
+			@Override
+			protected float[][] initialValue() {
+				float[][] maps = new float[layers.size()][];
+				for (int l = 0; l < maps.length; l++) {
+					Layer layer = layers.get(l);
+					Size size = layer.getMapSize();
+					maps[l] = new float[layer.getOutMapNum() * size.x * size.y];
+				}
+				return maps;
+			}
+		};
+		this.batchActivations = new ThreadLocal<double[][]>() {
+			@Override
+			protected double[][] initialValue() {
+				double[][] maps = new double[layers.size()][];
+				for (int l = 0; l < maps.length; l++)
+					maps[l] = new double[batchSize * mapLength(layers.get(l))];
+				return maps;
+			}
+		};
+		this.floatBatchActivations = new ThreadLocal<float[][]>() {
+			@Override
+			protected float[][] initialValue() {
+				float[][] maps = new float[layers.size()][];
+				for (int l = 0; l < maps.length; l++)
+					maps[l] = new float[batchSize * mapLength(layers.get(l))];
+				return maps;
+			}
+		};
+	}
+
+	// Length of all the maps of one record of a layer
+	private static int mapLength(Layer layer) {
+		Size size = layer.getMapSize();
+		return layer.getOutMapNum() * size.x * size.y;
+	}
+
+	/**
+	 * Get the value of every output unit for a record
+	 *
+	 * @param record
+	 * @return
+	 */
+	public double[] predict(Record record) {
+		double[] out = new double[getClassNum()];
+		if (floatPrecision) {
+			float[][] maps = floatActivations.get();
+			CNN.forward(layers, record, maps, cnn.getProfiler());
+			copyOutput(maps[maps.length - 1], out);
+		} else {
+			Tensor output = forward(record);
+			System.arraycopy(output.getData(), output.getOffset(), out, 0,
+					out.length);
+		}
+		return out;
+	}
+
+	/**
+	 * Get the value of every output unit for the properties of a record
+	 *
+	 * @param attrs
+	 * @return
+	 */
+	public double[] predict(double[] attrs) {
+		return predict(attrs, new double[getClassNum()]);
+	}
+
+	/**
+	 * Write the value of every output unit for the properties of a record
+	 * into out, which must have one element per class
+	 *
+	 * @param attrs
+	 * @param out
+	 * @return out
+	 */
+	public double[] predict(double[] attrs, double[] out) {
+		if (floatPrecision) {
+			float[][] maps = floatActivations.get();
+			CNN.forward(layers, attrs, maps, cnn.getProfiler());
+			copyOutput(maps[maps.length - 1], out);
+			return out;
+		}
+		Tensor output = forward(attrs);
+		// The output maps are 1x1, so the maps are the output vector
+		System.arraycopy(output.getData(), output.getOffset(), out, 0,
+				out.length);
+		return out;
+	}
+
+	/**
+	 * Get the predicted class of a record
+	 *
+	 * @param record
+	 * @return
+	 */
+	public int classify(Record record) {
+		if (floatPrecision) {
+			float[][] maps = floatActivations.get();
+			CNN.forward(layers, record, maps, cnn.getProfiler());
+			float[] output = maps[maps.length - 1];
+			return Util.getMaxIndex(output, 0, output.length);
+		}
+		Tensor output = forward(record);
+		return Util.getMaxIndex(output.getData(), output.getOffset(),
+				output.getShape(0));
+	}
+
+	/**
+	 * Get the value of every output unit for n records, forwarded through the
+	 * network in batches of the session's batch size
+	 *
+	 * @param records
+	 * @param n
+	 * @param out
+	 *            The outputs of record r at [r * classNum, (r + 1) *
+	 *            classNum), at least n * classNum long
+	 */
+	public void predict(Record[] records, int n, double[] out) {
+		int classNum = getClassNum();
+		Record[] part = records;
+		for (int from = 0; from < n; from += batchSize) {
+			int m = Math.min(batchSize, n - from);
+			if (from > 0) {
+				if (part == records)
+					part = new Record[batchSize];
+				System.arraycopy(records, from, part, 0, m);
+			}
+			// Output map j of record r is at j * m + r
+			if (floatPrecision) {
+				float[][] maps = floatBatchActivations.get();
+				CNN.forwardBatch(layers, part, m, maps, cnn.getProfiler());
+				float[] output = maps[maps.length - 1];
+				for (int r = 0; r < m; r++)
+					for (int j = 0; j < classNum; j++)
+						out[(from + r) * classNum + j] = output[j * m + r];
+			} else {
+				double[][] maps = batchActivations.get();
+				CNN.forwardBatch(layers, part, m, maps, cnn.getProfiler());
+				double[] output = maps[maps.length - 1];
+				for (int r = 0; r < m; r++)
+					for (int j = 0; j < classNum; j++)
+						out[(from + r) * classNum + j] = output[j * m + r];
+			}
+		}
+	}
+
+	/**
+	 * Get the predicted classes of n records, forwarded through the network
+	 * in batches of the session's batch size
+	 *
+	 * @param records
+	 * @param n
+	 * @param classes
+	 *            The class of record r at r
+	 */
+	public void classify(Record[] records, int n, int[] classes) {
+		int classNum = getClassNum();
+		double[] out = new double[Math.min(n, batchSize) * classNum];
+		Record[] part = records;
+		for (int from = 0; from < n; from += batchSize) {
+			int m = Math.min(batchSize, n - from);
+			if (from > 0) {
+				if (part == records)
+					part = new Record[batchSize];
+				System.arraycopy(records, from, part, 0, m);
+			}
+			predict(part, m, out);
+			for (int r = 0; r < m; r++)
+				classes[from + r] = Util.getMaxIndex(out, r * classNum,
+						classNum);
+		}
+	}
+
+	/**
+	 * Records per forward pass of the batched methods
+	 *
+	 * @return
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Forward a record through the calling thread's buffers
+	 *
+	 * @param attrs
+	 * @return The maps of the output layer
+	 */
+	private Tensor forward(double[] attrs) {
+		Tensor[] maps = activations.get();
+		CNN.forward(layers, attrs, maps, cnn.getProfiler());
+		return maps[maps.length - 1];
+	}
+
+	private Tensor forward(Record record) {
+		Tensor[] maps = activations.get();
+		CNN.forward(layers, record, maps, cnn.getProfiler());
+		return maps[maps.length - 1];
+	}
+
+	private static void copyOutput(float[] output, double[] out) {
+		for (int i = 0; i < out.length; i++)
+			out[i] = output[i];
+	}
+
+	private int getClassNum() {
+		return layers.get(layers.size() - 1).getOutMapNum();
+	}
+}
@@ -3,6 +3,7 @@ package CNN;
 import java.io.Serializable;
 
 import util.Log;
+import util.Tensor;
 import util.Util;
 
 /**
@@ -22,14 +23,22 @@ public class Layer implements Serializable {
 	private Size mapSize;// The size of the map
 	private Size kernelSize;// Convolution kernel size, only the convolution layer
 	private Size scaleSize;// Sampling size, only the sampling layer
-	private double[][][][] kernel;// Convolution kernel, only convolution layer and output layer
+	private Tensor kernel;// Convolution kernel [frontMapNum][outMapNum][x][y], only convolution layer and output layer
 	private double[] bias;// Each map corresponds to a bias, only the convolutional layer and the output layer
+	private ConvEngine convEngine;// im2col + GEMM convolution, only convolution layer and output layer
+	private transient volatile FftConv fftConv;// FFT convolution, created on first use
 	// Save the output of each batch map, outmaps [0] [0] said the first record training 0th output map
-	private double[][][][] outmaps;
-	// Residual, and matlab toolbox d corresponding
-	private double[][][][] errors;
-
-	private static int recordInBatch = 0;// Record the current training is batch of the first few records
+	private Tensor outmaps;
+	// Residual, and matlab toolbox d corresponding, laid out like outmaps
+	private Tensor errors;
+	// Preallocated [mapNo][x][y] views of outmaps and errors for every record of the batch
+	private Tensor[] recordMaps;
+	private Tensor[] recordErrors;
+	// Single precision outmaps and errors of a network trained in float, [record][mapNo][x][y], the tensors are null then
+	private float[] floatMaps;
+	private float[] floatErrors;
+	// Workspace for the summed kernel gradient, [outMapNum][x][y], only convolution layer and output layer
+	private Tensor kernelDelta;
 
 	private int classNum = -1;// Number of categories
 
@@ -38,20 +47,6 @@ public class Layer implements Serializable {
 
 	}
 
-	/**
-	 * Prepare for the next batch of training
-	 */
-	public static void prepareForNewBatch() {
-		recordInBatch = 0;
-	}
-
-	/**
-	 * Prepare for the next record of training
-	 */
-	public static void prepareForNewRecord() {
-		recordInBatch++;
-	}
-
 	/**
 	 * Initialize the input layer
 	 * 
@@ -241,13 +236,25 @@ public class Layer implements Serializable {
 	 * @param frontMapNum
 	 */
 	public void initKernel(int frontMapNum) {
+		initKernel(frontMapNum, true);
+	}
+
+	/**
+	 * Allocate the convolution kernels
+	 * 
+	 * @param frontMapNum
+	 * @param random
+	 *            Whether to initialize them randomly, otherwise they are zero
+	 */
+	public void initKernel(int frontMapNum, boolean random) {
 //		int fan_out = getOutMapNum() * kernelSize.x * kernelSize.y;
 //		int fan_in = frontMapNum * kernelSize.x * kernelSize.y;
 //		double factor = 2 * Math.sqrt(6 / (fan_in + fan_out));
-		this.kernel = new double[frontMapNum][outMapNum][kernelSize.x][kernelSize.y];
-		for (int i = 0; i < frontMapNum; i++)
+		this.kernel = new Tensor(frontMapNum, outMapNum, kernelSize.x, kernelSize.y);
+		for (int i = 0; random && i < frontMapNum; i++)
 			for (int j = 0; j < outMapNum; j++)
-				kernel[i][j] = Util.randomMatrix(kernelSize.x, kernelSize.y,true);
+				kernel.view(i, j).copyFrom(Util.randomMatrix(kernelSize.x, kernelSize.y,true));
+		this.kernelDelta = new Tensor(outMapNum, kernelSize.x, kernelSize.y);
 	}
 
 	/**
@@ -257,14 +264,67 @@ public class Layer implements Serializable {
 	 * @param size
 	 */
 	public void initOutputKerkel(int frontMapNum, Size size) {
+		initOutputKerkel(frontMapNum, size, true);
+	}
+
+	/**
+	 * Allocate the kernels of the output layer
+	 * 
+	 * @param frontMapNum
+	 * @param size
+	 * @param random
+	 *            Whether to initialize them randomly, otherwise they are zero
+	 */
+	public void initOutputKerkel(int frontMapNum, Size size, boolean random) {
 		kernelSize = size;
 //		int fan_out = getOutMapNum() * kernelSize.x * kernelSize.y;
 //		int fan_in = frontMapNum * kernelSize.x * kernelSize.y;
 //		double factor = 2 * Math.sqrt(6 / (fan_in + fan_out));
-		this.kernel = new double[frontMapNum][outMapNum][kernelSize.x][kernelSize.y];
-		for (int i = 0; i < frontMapNum; i++)
+		this.kernel = new Tensor(frontMapNum, outMapNum, kernelSize.x, kernelSize.y);
+		for (int i = 0; random && i < frontMapNum; i++)
 			for (int j = 0; j < outMapNum; j++)
-				kernel[i][j] = Util.randomMatrix(kernelSize.x, kernelSize.y,false);
+				kernel.view(i, j).copyFrom(Util.randomMatrix(kernelSize.x, kernelSize.y,false));
+		this.kernelDelta = new Tensor(outMapNum, kernelSize.x, kernelSize.y);
+	}
+
+	/**
+	 * Initialize the convolution engine, must be called after the kernels are
+	 * initialized
+	 * 
+	 * @param frontMapNum
+	 * @param frontMapSize
+	 *            The map size of the previous layer
+	 */
+	public void initConvEngine(int frontMapNum, Size frontMapSize) {
+		this.convEngine = new ConvEngine(frontMapNum, frontMapSize, outMapNum,
+				kernelSize);
+	}
+
+	/**
+	 * Get the convolution engine, only convolution layer and output layer
+	 * 
+	 * @return
+	 */
+	public ConvEngine getConvEngine() {
+		return convEngine;
+	}
+
+	/**
+	 * Get the FFT convolution, only convolution layer and output layer
+	 * 
+	 * @return
+	 */
+	FftConv getFftConv() {
+		FftConv fft = fftConv;
+		if (fft == null) {
+			synchronized (this) {
+				if (fftConv == null)
+					fftConv = new FftConv(convEngine.getInMapNum(),
+							convEngine.getInSize(), outMapNum, kernelSize);
+				fft = fftConv;
+			}
+		}
+		return fft;
 	}
 
 	/**
@@ -282,12 +342,66 @@ public class Layer implements Serializable {
 	 * @param batchSize
 	 */
 	public void initOutmaps(int batchSize) {
-		outmaps = new double[batchSize][outMapNum][mapSize.x][mapSize.y];
+		initOutmaps(batchSize, false);
+	}
+
+	/**
+	 * Initialize the output map
+	 * 
+	 * @param batchSize
+	 * @param single
+	 *            Whether to keep them in single precision, see
+	 *            {@link #getFloatMaps()}
+	 */
+	public void initOutmaps(int batchSize, boolean single) {
+		if (single) {
+			floatMaps = new float[batchSize * getRecordLength()];
+			outmaps = null;
+			recordMaps = null;
+			return;
+		}
+		floatMaps = null;
+		outmaps = new Tensor(batchSize, outMapNum, mapSize.x, mapSize.y);
+		recordMaps = new Tensor[batchSize];
+		for (int r = 0; r < batchSize; r++)
+			recordMaps[r] = outmaps.view(r);
+	}
+
+	/**
+	 * Get the number of values of the maps of one record, the maps of record
+	 * r start at r times this in {@link #getFloatMaps()} and
+	 * {@link #getFloatErrors()}
+	 * 
+	 * @return
+	 */
+	public int getRecordLength() {
+		return outMapNum * mapSize.x * mapSize.y;
+	}
+
+	/**
+	 * Get the single precision output maps of the batch, [record][mapNo][x][y]
+	 * 
+	 * @return null unless initialized in single precision
+	 */
+	public float[] getFloatMaps() {
+		return floatMaps;
+	}
+
+	/**
+	 * Get the single precision residuals of the batch, laid out like
+	 * {@link #getFloatMaps()}
+	 * 
+	 * @return null unless initialized in single precision
+	 */
+	public float[] getFloatErrors() {
+		return floatErrors;
 	}
 
 	/**
 	 * Set the map value
 	 * 
+	 * @param recordId
+	 *            The record's position in the batch
 	 * @param mapNo
 	 *            The first few map
 	 * @param mapX
@@ -296,8 +410,8 @@ public class Layer implements Serializable {
 	 *           map wide
 	 * @param value
 	 */
-	public void setMapValue(int mapNo, int mapX, int mapY, double value) {
-		outmaps[recordInBatch][mapNo][mapX][mapY] = value;
+	public void setMapValue(int recordId, int mapNo, int mapX, int mapY, double value) {
+		outmaps.getData()[outmaps.offset(recordId, mapNo, mapX, mapY)] = value;
 	}
 
 	static int count = 0;
@@ -305,26 +419,37 @@ public class Layer implements Serializable {
 	/**
 	 * Set the value of mapNo map in matrix form
 	 * 
+	 * @param recordId
 	 * @param mapNo
 	 * @param outMatrix
 	 */
-	public void setMapValue(int mapNo, double[][] outMatrix) {
+	public void setMapValue(int recordId, int mapNo, double[][] outMatrix) {
 		// Log.i(type.toString());
 		// Util.printMatrix(outMatrix);
-		outmaps[recordInBatch][mapNo] = outMatrix;
+		outmaps.view(recordId, mapNo).copyFrom(outMatrix);
 	}
 
 	/**
-	 * Get the index map matrix. In performance considerations, 
-         * did not return a copy of the object, 
-         * but directly return the reference, the call side please be careful,
-         * Avoid modifying out maps, please call setMapValue (...)
+	 * Get all the maps of the recordId record as a [mapNo][x][y] view. In
+	 * performance considerations, did not return a copy but a view of the
+	 * storage, the call side please be careful
+	 * 
+	 * @param recordId
+	 * @return
+	 */
+	public Tensor getRecordMaps(int recordId) {
+		return recordMaps[recordId];
+	}
+
+	/**
+	 * Get the residuals of all the maps of the recordId record as a
+	 * [mapNo][x][y] view
 	 * 
-	 * @param index
+	 * @param recordId
 	 * @return
 	 */
-	public double[][] getMap(int index) {
-		return outmaps[recordInBatch][index];
+	public Tensor getRecordErrors(int recordId) {
+		return recordErrors[recordId];
 	}
 
 	/**
@@ -336,61 +461,74 @@ public class Layer implements Serializable {
 	 *            The current level of the map subscript
 	 * @return
 	 */
-	public double[][] getKernel(int i, int j) {
-		return kernel[i][j];
+	public Tensor getKernel(int i, int j) {
+		return kernel.view(i, j);
 	}
 
 	/**
 	 * Set the residual value
 	 * 
+	 * @param recordId
 	 * @param mapNo
 	 * @param mapX
 	 * @param mapY
 	 * @param value
 	 */
-	public void setError(int mapNo, int mapX, int mapY, double value) {
-		errors[recordInBatch][mapNo][mapX][mapY] = value;
+	public void setError(int recordId, int mapNo, int mapX, int mapY, double value) {
+		errors.getData()[errors.offset(recordId, mapNo, mapX, mapY)] = value;
 	}
 
 	/**
 	 * Set the residual value as a map matrix block
 	 * 
+	 * @param recordId
 	 * @param mapNo
 	 * @param matrix
 	 */
-	public void setError(int mapNo, double[][] matrix) {
+	public void setError(int recordId, int mapNo, double[][] matrix) {
 		// Log.i(type.toString());
 		// Util.printMatrix(matrix);
-		errors[recordInBatch][mapNo] = matrix;
+		errors.view(recordId, mapNo).copyFrom(matrix);
 	}
 
 	/**
-	 * Get the mapNo a map of the residual.Do not return a copy of the object, but directly return the reference, the call side please be careful,
-         * Avoid modifying errors, if you need to modify setError (...)
+	 * Gets all the residuals (per record and per map)
 	 * 
-	 * @param mapNo
 	 * @return
 	 */
-	public double[][] getError(int mapNo) {
-		return errors[recordInBatch][mapNo];
+	public Tensor getErrors() {
+		return errors;
 	}
 
 	/**
-	 * Gets all the residuals (per record and per map)
+	 * Initialize the residual array
 	 * 
-	 * @return
+	 * @param batchSize
 	 */
-	public double[][][][] getErrors() {
-		return errors;
+	public void initErros(int batchSize) {
+		initErros(batchSize, false);
 	}
 
 	/**
 	 * Initialize the residual array
 	 * 
 	 * @param batchSize
-	 */
-	public void initErros(int batchSize) {
-		errors = new double[batchSize][outMapNum][mapSize.x][mapSize.y];
+	 * @param single
+	 *            Whether to keep them in single precision, see
+	 *            {@link #getFloatErrors()}
+	 */
+	public void initErros(int batchSize, boolean single) {
+		if (single) {
+			floatErrors = new float[batchSize * getRecordLength()];
+			errors = null;
+			recordErrors = null;
+			return;
+		}
+		floatErrors = null;
+		errors = new Tensor(batchSize, outMapNum, mapSize.x, mapSize.y);
+		recordErrors = new Tensor[batchSize];
+		for (int r = 0; r < batchSize; r++)
+			recordErrors[r] = errors.view(r);
 	}
 
 	/**
@@ -400,7 +538,29 @@ public class Layer implements Serializable {
 	 * @param kernel
 	 */
 	public void setKernel(int lastMapNo, int mapNo, double[][] kernel) {
-		this.kernel[lastMapNo][mapNo] = kernel;
+		this.kernel.view(lastMapNo, mapNo).copyFrom(kernel);
+		kernelChanged();
+	}
+
+	/**
+	 * Must be called after the kernels were modified in place through
+	 * {@link #getKernel()}
+	 */
+	public void kernelChanged() {
+		if (convEngine != null)
+			convEngine.invalidate();
+		FftConv fft = fftConv;
+		if (fft != null)
+			fft.invalidate();
+	}
+
+	/**
+	 * Get the biases of all maps, the array is shared with the layer
+	 * 
+	 * @return
+	 */
+	public double[] getBias() {
+		return bias;
 	}
 
 	/**
@@ -429,30 +589,34 @@ public class Layer implements Serializable {
 	 * @return
 	 */
 
-	public double[][][][] getMaps() {
+	public Tensor getMaps() {
 		return outmaps;
 	}
 
 	/**
-	 * Get the first recordId record the first mapNo residual
+	 * Get the first recordId record the first mapNo residual.Do not return a copy of the object, but a view of the storage, the call side please be careful,
+         * Avoid modifying errors, if you need to modify setError (...)
 	 * 
 	 * @param recordId
 	 * @param mapNo
 	 * @return
 	 */
-	public double[][] getError(int recordId, int mapNo) {
-		return errors[recordId][mapNo];
+	public Tensor getError(int recordId, int mapNo) {
+		return errors.view(recordId, mapNo);
 	}
 
 	/**
-	 * Get the first recordId record mapNo output map
+	 * Get the first recordId record mapNo output map. In performance considerations, 
+         * did not return a copy of the object, 
+         * but a view of the storage, the call side please be careful,
+         * Avoid modifying out maps, please call setMapValue (...)
 	 * 
 	 * @param recordId
 	 * @param mapNo
 	 * @return
 	 */
-	public double[][] getMap(int recordId, int mapNo) {
-		return outmaps[recordId][mapNo];
+	public Tensor getMap(int recordId, int mapNo) {
+		return outmaps.view(recordId, mapNo);
 	}
 
 	/**
@@ -464,12 +628,22 @@ public class Layer implements Serializable {
 		return classNum;
 	}
 
+	/**
+	 * Get the workspace the kernel gradient of the current layer map j is
+	 * summed into, row j belongs to whoever updates the kernels of map j
+	 * 
+	 * @return
+	 */
+	public Tensor getKernelDelta() {
+		return kernelDelta;
+	}
+
 	/**
 	 * Get all the convolution kernels
 	 * 
 	 * @return
 	 */
-	public double[][][][] getKernel() {
+	public Tensor getKernel() {
 		return kernel;
 	}
 
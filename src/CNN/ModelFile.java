@@ -0,0 +1,320 @@
+package CNN;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import CNN.CNN.LayerBuilder;
+import CNN.CNN.Precision;
+import CNN.Layer.Size;
+import util.Tensor;
+
+/**
+ * Binary model file holding only the topology and the parameters of a
+ * network, the batch buffers are allocated by the first training after it
+ * is loaded.
+ *
+ * Layout, little endian: a 32 byte header of int magic "CNNM", version,
+ * layer number, batch size, precision and the number of training state
+ * values, 8 reserved bytes, then 16 bytes per layer: its type and up to
+ * three ints (input: map x, y; conv: map number, kernel x, y; samp: scale x,
+ * y; output: class number), then the training state as longs, 0 of them in
+ * a saved model and a few in a checkpoint, then for every conv and output
+ * layer its kernels [frontMapNum][outMapNum][x][y] followed by its biases as
+ * doubles
+ *
+ * @see CNN#saveModel(String)
+ * @see CNN#loadModel(String)
+ *
+ */
+class ModelFile {
+	static final int MAGIC = 0x434E4E4D;
+	static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+	private static final int LAYER_BYTES = 16;
+	// Layer type codes, independent of the order of LayerType
+	private static final int INPUT = 0;
+	private static final int CONV = 1;
+	private static final int SAMP = 2;
+	private static final int OUTPUT = 3;
+
+	/**
+	 * Whether the file is a Java serialization stream, as written by the
+	 * saveModel of the versions before this format
+	 *
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	static boolean isSerialized(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			if (file.length() < 2)
+				return false;
+			return file.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+		} finally {
+			file.close();
+		}
+	}
+
+	static void write(CNN cnn, int batchSize, String fileName)
+			throws IOException {
+		write(cnn, batchSize, snapshot(cnn, null), new long[0], fileName);
+	}
+
+	/**
+	 * Write a model file
+	 * 
+	 * @param cnn
+	 *            The network the topology is taken from
+	 * @param batchSize
+	 * @param params
+	 *            The parameters, as taken by {@link #snapshot(CNN, double[])}
+	 * @param state
+	 *            Training state values
+	 * @param fileName
+	 * @throws IOException
+	 */
+	static void write(CNN cnn, int batchSize, double[] params, long[] state,
+			String fileName) throws IOException {
+		List<Layer> layers = cnn.getLayers();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(
+				ByteOrder.LITTLE_ENDIAN);
+		FileOutputStream out = new FileOutputStream(fileName);
+		try {
+			FileChannel channel = out.getChannel();
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(layers.size())
+					.putInt(batchSize).putInt(cnn.getPrecision().ordinal())
+					.putInt(state.length).putInt(0).putInt(0);
+			for (Layer layer : layers) {
+				if (buffer.remaining() < LAYER_BYTES)
+					flush(buffer, channel);
+				switch (layer.getType()) {
+				case input:
+					put(buffer, INPUT, layer.getMapSize().x,
+							layer.getMapSize().y, 0);
+					break;
+				case conv:
+					put(buffer, CONV, layer.getOutMapNum(),
+							layer.getKernelSize().x, layer.getKernelSize().y);
+					break;
+				case samp:
+					put(buffer, SAMP, layer.getScaleSize().x,
+							layer.getScaleSize().y, 0);
+					break;
+				case output:
+					put(buffer, OUTPUT, layer.getClassNum(), 0, 0);
+					break;
+				}
+			}
+			for (long value : state) {
+				if (buffer.remaining() < 8)
+					flush(buffer, channel);
+				buffer.putLong(value);
+			}
+			for (int i = 0; i < params.length;) {
+				if (buffer.remaining() < 8)
+					flush(buffer, channel);
+				int n = Math.min(params.length - i, buffer.remaining() / 8);
+				buffer.asDoubleBuffer().put(params, i, n);
+				buffer.position(buffer.position() + n * 8);
+				i += n;
+			}
+			flush(buffer, channel);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Copy the kernels and biases of every conv and output layer into one
+	 * array, in the order of the file
+	 * 
+	 * @param cnn
+	 * @param reuse
+	 *            Array to copy into if it has the right length, may be null
+	 * @return
+	 */
+	static double[] snapshot(CNN cnn, double[] reuse) {
+		int length = 0;
+		for (Layer layer : cnn.getLayers())
+			if (hasParameters(layer))
+				length += layer.getKernel().size() + layer.getOutMapNum();
+		double[] params = reuse != null && reuse.length == length ? reuse
+				: new double[length];
+		int pos = 0;
+		for (Layer layer : cnn.getLayers()) {
+			if (!hasParameters(layer))
+				continue;
+			Tensor kernel = layer.getKernel();
+			System.arraycopy(kernel.getData(), kernel.getOffset(), params,
+					pos, kernel.size());
+			pos += kernel.size();
+			double[] bias = layer.getBias();
+			System.arraycopy(bias, 0, params, pos, bias.length);
+			pos += bias.length;
+		}
+		return params;
+	}
+
+	private static void put(ByteBuffer buffer, int type, int a, int b, int c) {
+		buffer.putInt(type).putInt(a).putInt(b).putInt(c);
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private static boolean hasParameters(Layer layer) {
+		return layer.getType() == Layer.LayerType.conv
+				|| layer.getType() == Layer.LayerType.output;
+	}
+
+	/**
+	 * Read a model file with one channel read, rebuild its network without
+	 * initializing it and read the parameters into the kernels and biases.
+	 * The file is not mapped, a mapping would keep it open until garbage
+	 * collected, and on Windows a checkpoint just resumed from could not be
+	 * replaced by the next one
+	 *
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	static CNN read(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		ByteBuffer buffer;
+		try {
+			if (file.length() > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large for a model file");
+			buffer = ByteBuffer.allocate((int) file.length()).order(
+					ByteOrder.LITTLE_ENDIAN);
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) < 0)
+					throw new IOException(fileName + " is truncated");
+			}
+			buffer.clear();
+		} finally {
+			file.close();
+		}
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+			throw new IOException(fileName + " is not a model file");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException("Unsupported model version " + buffer.getInt(4));
+		int layerNum = buffer.getInt(8);
+		int batchSize = buffer.getInt(12);
+		if (batchSize < 1)
+			throw new IOException(fileName + " has batch size " + batchSize);
+		int precisionCode = buffer.getInt(16);
+		if (precisionCode < 0 || precisionCode >= Precision.values().length)
+			throw new IOException(fileName + " has unknown precision "
+					+ precisionCode);
+		Precision precision = Precision.values()[precisionCode];
+		int stateNum = buffer.getInt(20);
+		if (layerNum < 2
+				|| stateNum < 0
+				|| buffer.capacity() < HEADER_BYTES + (long) layerNum
+						* LAYER_BYTES + stateNum * 8L)
+			throw new IOException(fileName + " is truncated");
+		LayerBuilder builder = new LayerBuilder();
+		for (int l = 0; l < layerNum; l++) {
+			int pos = HEADER_BYTES + l * LAYER_BYTES;
+			int a = buffer.getInt(pos + 4);
+			int b = buffer.getInt(pos + 8);
+			int c = buffer.getInt(pos + 12);
+			switch (buffer.getInt(pos)) {
+			case INPUT:
+				builder.addLayer(Layer.buildInputLayer(new Size(a, b)));
+				break;
+			case CONV:
+				builder.addLayer(Layer.buildConvLayer(a, new Size(b, c)));
+				break;
+			case SAMP:
+				builder.addLayer(Layer.buildSampLayer(new Size(a, b)));
+				break;
+			case OUTPUT:
+				builder.addLayer(Layer.buildOutputLayer(a));
+				break;
+			default:
+				throw new IOException("Unknown layer type " + buffer.getInt(pos));
+			}
+		}
+		builder.setPrecision(precision);
+		CNN cnn = new CNN(builder, batchSize, false);
+		int start = HEADER_BYTES + layerNum * LAYER_BYTES;
+		long[] state = new long[stateNum];
+		for (int i = 0; i < stateNum; i++)
+			state[i] = buffer.getLong(start + i * 8);
+		buffer.position(start + stateNum * 8);
+		DoubleBuffer params = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+				.asDoubleBuffer();
+		long expected = 0;
+		for (Layer layer : cnn.getLayers())
+			if (hasParameters(layer))
+				expected += layer.getKernel().size() + layer.getOutMapNum();
+		if (params.remaining() != expected)
+			throw new IOException(fileName + " has " + params.remaining()
+					+ " parameters instead of " + expected);
+		load(cnn, params);
+		if (stateNum > 0)
+			cnn.setTrainingState(state);
+		return cnn;
+	}
+
+	// Read the parameters in the order of snapshot into the layers
+	private static void load(CNN cnn, DoubleBuffer params) {
+		for (Layer layer : cnn.getLayers()) {
+			if (!hasParameters(layer))
+				continue;
+			Tensor kernel = layer.getKernel();
+			params.get(kernel.getData(), kernel.getOffset(), kernel.size());
+			params.get(layer.getBias());
+			layer.kernelChanged();
+		}
+	}
+
+	/**
+	 * A new network with the topology, precision and current parameters of
+	 * cnn
+	 * 
+	 * @param cnn
+	 * @param batchSize
+	 *            Training batch size of the copy
+	 * @return
+	 */
+	static CNN copy(CNN cnn, int batchSize) {
+		LayerBuilder builder = new LayerBuilder();
+		for (Layer layer : cnn.getLayers()) {
+			switch (layer.getType()) {
+			case input:
+				builder.addLayer(Layer.buildInputLayer(layer.getMapSize()));
+				break;
+			case conv:
+				builder.addLayer(Layer.buildConvLayer(layer.getOutMapNum(),
+						layer.getKernelSize()));
+				break;
+			case samp:
+				builder.addLayer(Layer.buildSampLayer(layer.getScaleSize()));
+				break;
+			case output:
+				builder.addLayer(Layer.buildOutputLayer(layer.getClassNum()));
+				break;
+			}
+		}
+		builder.setPrecision(cnn.getPrecision());
+		CNN copy = new CNN(builder, batchSize, false);
+		load(copy, DoubleBuffer.wrap(snapshot(cnn, null)));
+		return copy;
+	}
+}
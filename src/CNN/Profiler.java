@@ -0,0 +1,307 @@
+package CNN;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import util.ConcurenceRunner;
+
+/**
+ * Time, calls and allocation of every layer in the forward, error and
+ * update phases of training and inference, enabled with
+ * {@link CNN#setProfiler(Profiler)} on one network.
+ *
+ * A layer's time is the wall time of the call on the calling thread,
+ * including the TaskManagers it starts, and its allocation the bytes
+ * allocated by the calling thread meanwhile, measured with the
+ * ThreadMXBean. Pieces of other work a thread runs while it waits for its
+ * own TaskManager are counted as well. Layers are keyed by their position,
+ * so a profiler belongs to one network, which does not pass it on to its
+ * copies. Disabled, a layer costs one read of a field
+ *
+ */
+public class Profiler {
+
+	public enum Phase {
+		// Output of the layer, per record or per batch of records
+		FORWARD,
+		// Residuals of the layer, per record
+		ERROR,
+		// Kernel and bias update, per batch
+		UPDATE
+	}
+
+	// Networks with a profiler, the pool records its queue wait while there are any
+	private static int profiled;
+
+	private static final int MAX_LAYERS = 64;
+
+	private static final class Stat {
+		volatile Layer.LayerType type;
+		final LongAdder calls = new LongAdder();
+		final LongAdder records = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+	}
+
+	// [layer * phases + phase]
+	private final Stat[] stats = new Stat[MAX_LAYERS * Phase.values().length];
+	// null when allocation is not measured
+	private final com.sun.management.ThreadMXBean threads;
+	private long startNanos;
+	private long queueWaitStart;
+	private long dispatchStart;
+
+	/**
+	 * A profiler measuring time, calls and allocation
+	 */
+	public Profiler() {
+		this(true);
+	}
+
+	/**
+	 *
+	 * @param allocations
+	 *            Whether to measure allocated bytes, which costs about as
+	 *            much as reading the time, if the JVM supports it
+	 */
+	public Profiler(boolean allocations) {
+		for (int i = 0; i < stats.length; i++)
+			stats[i] = new Stat();
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (allocations && bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean)
+						.isThreadAllocatedMemorySupported()) {
+			threads = (com.sun.management.ThreadMXBean) bean;
+			threads.setThreadAllocatedMemoryEnabled(true);
+		} else
+			threads = null;
+		reset();
+	}
+
+	/**
+	 * Count a network's change of profiler, for the queue wait recording of
+	 * the pool
+	 *
+	 * @param old
+	 *            The profiler the network had, may be null
+	 * @param profiler
+	 *            Its new profiler, may be null
+	 */
+	static synchronized void attach(Profiler old, Profiler profiler) {
+		profiled += (profiler != null ? 1 : 0) - (old != null ? 1 : 0);
+		ConcurenceRunner.setQueueWaitRecording(profiled > 0);
+	}
+
+	/**
+	 * Clear all counts
+	 */
+	public void reset() {
+		for (Stat stat : stats) {
+			stat.calls.reset();
+			stat.records.reset();
+			stat.nanos.reset();
+			stat.bytes.reset();
+		}
+		startNanos = System.nanoTime();
+		queueWaitStart = ConcurenceRunner.getQueueWaitNanos();
+		dispatchStart = ConcurenceRunner.getDispatches();
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread, 0 when not measured
+	 *
+	 * @return
+	 */
+	long allocatedBytes() {
+		return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+	}
+
+	/**
+	 * Count a call that started at time t with bytes allocated
+	 *
+	 * @param l
+	 *            Position of the layer
+	 * @param layer
+	 * @param phase
+	 * @param records
+	 *            Number of records the call processed
+	 * @param t
+	 *            System.nanoTime() at the start
+	 * @param bytes
+	 *            {@link #allocatedBytes()} at the start
+	 */
+	void record(int l, Layer layer, Phase phase, int records, long t,
+			long bytes) {
+		long elapsed = System.nanoTime() - t;
+		long allocated = allocatedBytes() - bytes;
+		if (l >= MAX_LAYERS)
+			return;
+		Stat stat = stat(l, phase);
+		stat.type = layer.getType();
+		stat.calls.increment();
+		stat.records.add(records);
+		stat.nanos.add(elapsed);
+		stat.bytes.add(allocated);
+	}
+
+	private Stat stat(int l, Phase phase) {
+		return stats[l * Phase.values().length + phase.ordinal()];
+	}
+
+	private int layerNum() {
+		int n = 0;
+		for (int l = 0; l < MAX_LAYERS; l++)
+			for (Phase phase : Phase.values())
+				if (stat(l, phase).calls.sum() > 0)
+					n = l + 1;
+		return n;
+	}
+
+	public long getCalls(int l, Phase phase) {
+		return stat(l, phase).calls.sum();
+	}
+
+	public long getNanos(int l, Phase phase) {
+		return stat(l, phase).nanos.sum();
+	}
+
+	/**
+	 * Bytes allocated by the calling threads of layer l in phase
+	 *
+	 * @param l
+	 * @param phase
+	 * @return
+	 */
+	public long getBytes(int l, Phase phase) {
+		return stat(l, phase).bytes.sum();
+	}
+
+	/**
+	 * Wait of the TaskManagers dispatched to the pool since the last reset,
+	 * by all users of the pool
+	 *
+	 * @return
+	 */
+	public long getQueueWaitNanos() {
+		return ConcurenceRunner.getQueueWaitNanos() - queueWaitStart;
+	}
+
+	public long getDispatches() {
+		return ConcurenceRunner.getDispatches() - dispatchStart;
+	}
+
+	/**
+	 * Table of every layer and phase with its calls, records, total time,
+	 * share of the time of all layers, time per record and allocation. Records
+	 * of a batch train in parallel, so the times add up to more than the
+	 * elapsed time
+	 */
+	@Override
+	public String toString() {
+		int layerNum = layerNum();
+		long total = 0;
+		for (int l = 0; l < layerNum; l++)
+			for (Phase phase : Phase.values())
+				total += getNanos(l, phase);
+		StringBuilder sb = new StringBuilder(String.format(
+				"%-6s%-8s%-9s%10s%10s%12s%8s%12s%12s%n", "layer", "type",
+				"phase", "calls", "records", "ms", "%", "us/record", "MB"));
+		for (int l = 0; l < layerNum; l++) {
+			for (Phase phase : Phase.values()) {
+				Stat stat = stat(l, phase);
+				long calls = stat.calls.sum();
+				if (calls == 0)
+					continue;
+				long records = stat.records.sum();
+				long nanos = stat.nanos.sum();
+				sb.append(String.format(
+						"%-6d%-8s%-9s%10d%10d%12.1f%8.1f%12.2f%12.2f%n", l,
+						stat.type, phase, calls, records, nanos / 1e6,
+						total == 0 ? 0 : 100.0 * nanos / total,
+						nanos / 1e3 / records, stat.bytes.sum() / 1e6));
+			}
+		}
+		sb.append(String.format(
+				"layers %.1fms summed over threads, %.1fms elapsed, pool queue wait %.1fms over %d dispatches",
+				total / 1e6, (System.nanoTime() - startNanos) / 1e6,
+				getQueueWaitNanos() / 1e6, getDispatches()));
+		return sb.toString();
+	}
+
+	/**
+	 * Write one line per layer and phase: layer,type,phase,calls,records,
+	 * nanos,bytes
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void writeCsv(String fileName) throws IOException {
+		PrintWriter writer = new PrintWriter(new File(fileName));
+		try {
+			writer.println("layer,type,phase,calls,records,nanos,bytes");
+			int layerNum = layerNum();
+			for (int l = 0; l < layerNum; l++) {
+				for (Phase phase : Phase.values()) {
+					Stat stat = stat(l, phase);
+					if (stat.calls.sum() == 0)
+						continue;
+					writer.println(l + "," + stat.type + "," + phase + ","
+							+ stat.calls.sum() + "," + stat.records.sum() + ","
+							+ stat.nanos.sum() + "," + stat.bytes.sum());
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Writing " + fileName + " failed");
+	}
+
+	/**
+	 * Write the counts as a JSON object with the elapsed time, the pool
+	 * queue wait and an array of the layers and phases
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void writeJson(String fileName) throws IOException {
+		PrintWriter writer = new PrintWriter(new File(fileName));
+		try {
+			writer.println("{");
+			writer.println("  \"elapsedNanos\": "
+					+ (System.nanoTime() - startNanos) + ",");
+			writer.println("  \"queueWaitNanos\": " + getQueueWaitNanos() + ",");
+			writer.println("  \"dispatches\": " + getDispatches() + ",");
+			writer.println("  \"layers\": [");
+			int layerNum = layerNum();
+			boolean first = true;
+			for (int l = 0; l < layerNum; l++) {
+				for (Phase phase : Phase.values()) {
+					Stat stat = stat(l, phase);
+					if (stat.calls.sum() == 0)
+						continue;
+					if (!first)
+						writer.println(",");
+					first = false;
+					writer.print("    {\"layer\": " + l + ", \"type\": \""
+							+ stat.type + "\", \"phase\": \"" + phase
+							+ "\", \"calls\": " + stat.calls.sum()
+							+ ", \"records\": " + stat.records.sum()
+							+ ", \"nanos\": " + stat.nanos.sum()
+							+ ", \"bytes\": " + stat.bytes.sum() + "}");
+				}
+			}
+			writer.println();
+			writer.println("  ]");
+			writer.println("}");
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError())
+			throw new IOException("Writing " + fileName + " failed");
+	}
+}
@@ -0,0 +1,91 @@
+package CNN;
+
+import java.util.function.DoubleSupplier;
+
+import util.Metrics;
+
+/**
+ * The metrics of a training in a {@link Metrics} registry: records and
+ * batches trained, records per second and accuracy of the running epoch,
+ * batch latency, running loss, learning rate and the garbage collection
+ * time, count and pauses of the JVM
+ *
+ * @see CNN#setMetrics(Metrics)
+ *
+ */
+class TrainingMetrics {
+	// Weight of the newest batch in the running loss
+	private static final double LOSS_SMOOTHING = 0.1;
+
+	private final Metrics.Counter records;
+	private final Metrics.Counter batches;
+	private final Metrics.Gauge recordsPerSecond;
+	private final Metrics.Gauge loss;
+	private final Metrics.Gauge accuracy;
+	private final Metrics.Gauge epoch;
+	private final Metrics.Histogram batchSeconds;
+
+	// Running epoch, only touched by the training thread
+	private long epochStart;
+	private long epochRecords;
+	private long epochRight;
+	private boolean lossSet;
+
+	TrainingMetrics(Metrics metrics, final CNN cnn) {
+		records = metrics.counter("cnn_records_total", "Records trained");
+		batches = metrics.counter("cnn_batches_total", "Batches trained");
+		recordsPerSecond = metrics.gauge("cnn_records_per_second",
+				"Training throughput of the running epoch");
+		loss = metrics.gauge("cnn_loss",
+				"Squared error of the outputs, moving average over batches");
+		accuracy = metrics.gauge("cnn_accuracy",
+				"Fraction of the records of the running epoch predicted correctly");
+		epoch = metrics.gauge("cnn_epoch", "Running epoch");
+		batchSeconds = metrics.histogram("cnn_batch_seconds",
+				"Time to train one batch and update the parameters",
+				Metrics.exponentialBounds(0.001, 2, 16));
+		metrics.gauge("cnn_alpha", "Learning rate", new DoubleSupplier() {
+
+			@Override
+			public double getAsDouble() {
+				return cnn.getAlpha();
+			}
+		});
+		metrics.registerGcMetrics();
+	}
+
+	void startEpoch(int t) {
+		epoch.set(t);
+		epochStart = System.nanoTime();
+		epochRecords = 0;
+		epochRight = 0;
+	}
+
+	/**
+	 *
+	 * @param n
+	 *            Records of the batch
+	 * @param right
+	 *            Of them predicted correctly
+	 * @param batchLoss
+	 *            Mean loss of the records
+	 * @param nanos
+	 *            Time of the batch
+	 */
+	void batchDone(int n, int right, double batchLoss, long nanos) {
+		records.add(n);
+		batches.inc();
+		batchSeconds.observe(nanos / 1e9);
+		epochRecords += n;
+		epochRight += right;
+		long elapsed = System.nanoTime() - epochStart;
+		if (elapsed > 0)
+			recordsPerSecond.set(epochRecords * 1e9 / elapsed);
+		accuracy.set(1.0 * epochRight / epochRecords);
+		if (!lossSet) {
+			loss.set(batchLoss);
+			lossSet = true;
+		} else
+			loss.set(loss.get() + LOSS_SMOOTHING * (batchLoss - loss.get()));
+	}
+}
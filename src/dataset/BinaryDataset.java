@@ -0,0 +1,280 @@
+package dataset;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary dataset file, read through a memory mapping so that records are
+ * views on the file instead of copies on the heap.
+ *
+ * Layout, little endian: a 32 byte header of int magic "CNND", version,
+ * rows, features, lableIndex (the label column of the source, -1 when the
+ * records have no label) and dtype, 8 reserved bytes, then one row per
+ * record: the label as a double followed by the features as dtype
+ *
+ * @see Dataset#loadBinary(String)
+ *
+ */
+public class BinaryDataset {
+	static final int MAGIC = 0x434E4E44;
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 32;
+	private static final int LABLE_BYTES = 8;
+
+	/**
+	 * Type of the stored features
+	 */
+	public enum Dtype {
+		FLOAT64(8), FLOAT32(4);
+
+		private final int bytes;
+
+		Dtype(int bytes) {
+			this.bytes = bytes;
+		}
+
+		public int getBytes() {
+			return bytes;
+		}
+	}
+
+	private final int rows;
+	private final int features;
+	private final int lableIndex;
+	private final Dtype dtype;
+	private final int rowBytes;
+	private final int rowsPerChunk;
+	// The file is mapped in chunks of whole rows, a mapping is limited to 2GB
+	private final ByteBuffer[] chunks;
+	private final DoubleBuffer[] doubleChunks;
+	private final FloatBuffer[] floatChunks;
+
+	private BinaryDataset(String filePath) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC)
+				throw new IOException(filePath + " is not a binary dataset");
+			if (header.getInt(4) != VERSION)
+				throw new IOException("Unsupported binary dataset version "
+						+ header.getInt(4));
+			rows = header.getInt(8);
+			features = header.getInt(12);
+			lableIndex = header.getInt(16);
+			int dtypeCode = header.getInt(20);
+			if (dtypeCode < 0 || dtypeCode >= Dtype.values().length)
+				throw new IOException(filePath + " has unknown dtype "
+						+ dtypeCode);
+			dtype = Dtype.values()[dtypeCode];
+			rowBytes = LABLE_BYTES + features * dtype.getBytes();
+			long expected = HEADER_BYTES + (long) rows * rowBytes;
+			if (channel.size() < expected)
+				throw new IOException(filePath + " is truncated, "
+						+ channel.size() + " bytes instead of " + expected);
+			rowsPerChunk = Math.max(1, Integer.MAX_VALUE / rowBytes);
+			int chunkNum = (rows + rowsPerChunk - 1) / rowsPerChunk;
+			chunks = new ByteBuffer[chunkNum];
+			doubleChunks = new DoubleBuffer[chunkNum];
+			floatChunks = new FloatBuffer[chunkNum];
+			for (int c = 0; c < chunkNum; c++) {
+				int chunkRows = Math.min(rowsPerChunk, rows - c * rowsPerChunk);
+				MappedByteBuffer chunk = channel.map(
+						FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) c
+								* rowsPerChunk * rowBytes, (long) chunkRows
+								* rowBytes);
+				chunks[c] = chunk.order(ByteOrder.LITTLE_ENDIAN);
+				if (dtype == Dtype.FLOAT64)
+					doubleChunks[c] = chunks[c].asDoubleBuffer();
+				else
+					floatChunks[c] = chunks[c].asFloatBuffer();
+			}
+		} finally {
+			// The mappings stay valid after the channel is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Map a binary dataset file
+	 *
+	 * @param filePath
+	 * @return
+	 * @throws IOException
+	 */
+	static BinaryDataset open(String filePath) throws IOException {
+		return new BinaryDataset(filePath);
+	}
+
+	int getRows() {
+		return rows;
+	}
+
+	int getFeatures() {
+		return features;
+	}
+
+	int getLableIndex() {
+		return lableIndex;
+	}
+
+	Dtype getDtype() {
+		return dtype;
+	}
+
+	/**
+	 * The label of a row
+	 *
+	 * @param row
+	 * @return
+	 */
+	double getLable(int row) {
+		return chunks[row / rowsPerChunk].getDouble((row % rowsPerChunk)
+				* rowBytes);
+	}
+
+	/**
+	 * Copy the features of a row into dst from off
+	 *
+	 * @param row
+	 * @param dst
+	 * @param off
+	 */
+	void copy(int row, double[] dst, int off) {
+		int c = row / rowsPerChunk;
+		int index = ((row % rowsPerChunk) * rowBytes + LABLE_BYTES)
+				/ dtype.getBytes();
+		if (dtype == Dtype.FLOAT64) {
+			doubleChunks[c].get(index, dst, off, features);
+			return;
+		}
+		FloatBuffer floats = floatChunks[c];
+		for (int i = 0; i < features; i++)
+			dst[off + i] = floats.get(index + i);
+	}
+
+	/**
+	 * Copy the features of a row into dst from off in single precision
+	 *
+	 * @param row
+	 * @param dst
+	 * @param off
+	 */
+	void copy(int row, float[] dst, int off) {
+		int c = row / rowsPerChunk;
+		int index = ((row % rowsPerChunk) * rowBytes + LABLE_BYTES)
+				/ dtype.getBytes();
+		if (dtype == Dtype.FLOAT32) {
+			floatChunks[c].get(index, dst, off, features);
+			return;
+		}
+		DoubleBuffer doubles = doubleChunks[c];
+		for (int i = 0; i < features; i++)
+			dst[off + i] = (float) doubles.get(index + i);
+	}
+
+	/**
+	 * Convert a text dataset as read by
+	 * {@link Dataset#load(String, String, int)} into a binary dataset
+	 *
+	 * @param csvPath
+	 * @param tag
+	 *            Field separator
+	 * @param lableIndex
+	 *            Class subscript, starting from 0, -1 when there is none
+	 * @param binPath
+	 * @param dtype
+	 * @return The number of rows written
+	 * @throws IOException
+	 */
+	public static int convert(String csvPath, String tag, int lableIndex,
+			String binPath, Dtype dtype) throws IOException {
+		int rows = 0;
+		int features = -1;
+		BufferedReader in = new BufferedReader(new FileReader(csvPath));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(binPath), 1 << 16));
+		try {
+			// The header is written again once the counts are known
+			out.write(new byte[HEADER_BYTES]);
+			ByteBuffer row = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] datas = line.split(tag);
+				if (datas.length == 0 || line.isEmpty())
+					continue;
+				int n = lableIndex == -1 ? datas.length : datas.length - 1;
+				if (features == -1) {
+					features = n;
+					row = ByteBuffer.allocate(
+							LABLE_BYTES + features * dtype.getBytes()).order(
+							ByteOrder.LITTLE_ENDIAN);
+				} else if (n != features)
+					throw new IOException("Line " + (rows + 1) + " has " + n
+							+ " features instead of " + features);
+				row.clear();
+				row.putDouble(lableIndex == -1 ? Double.NaN : Double
+						.parseDouble(datas[lableIndex]));
+				for (int i = 0; i < datas.length; i++) {
+					if (i == lableIndex)
+						continue;
+					double value = Double.parseDouble(datas[i]);
+					if (dtype == Dtype.FLOAT64)
+						row.putDouble(value);
+					else
+						row.putFloat((float) value);
+				}
+				out.write(row.array());
+				rows++;
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(rows)
+				.putInt(Math.max(features, 0)).putInt(lableIndex)
+				.putInt(dtype.ordinal());
+		RandomAccessFile file = new RandomAccessFile(new File(binPath), "rw");
+		try {
+			file.write(header.array());
+		} finally {
+			file.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Convert a text dataset: csvPath tag lableIndex binPath [FLOAT64|FLOAT32]
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.out
+					.println("Usage: BinaryDataset csvPath tag lableIndex binPath [FLOAT64|FLOAT32]");
+			return;
+		}
+		Dtype dtype = args.length > 4 ? Dtype.valueOf(args[4]) : Dtype.FLOAT32;
+		long t = System.currentTimeMillis();
+		int rows = convert(args[0], args[1], Integer.parseInt(args[2]),
+				args[3], dtype);
+		System.out.println("Converted " + rows + " rows in "
+				+ (System.currentTimeMillis() - t) + "ms");
+	}
+}
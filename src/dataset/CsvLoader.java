@@ -0,0 +1,304 @@
+package dataset;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import util.ConcurenceRunner;
+import util.ConcurenceRunner.TaskManager;
+
+/**
+ * Parallel loader of text datasets. The file is cut into byte ranges on line
+ * boundaries, the ranges are parsed on all cores and the rows come back in
+ * file order. Numbers are parsed straight from the bytes, only numbers the
+ * fast path cannot round correctly go through Double.parseDouble
+ *
+ *
+ */
+class CsvLoader {
+	// Smallest range worth a task
+	private static final long MIN_CHUNK_BYTES = 1 << 20;
+	// Largest range read into one array
+	private static final long MAX_CHUNK_BYTES = 64 << 20;
+	// Exactly representable powers of ten
+	private static final double[] POWERS = new double[23];
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++)
+			POWERS[i] = POWERS[i - 1] * 10;
+	}
+
+	/**
+	 * The rows of one range of the file
+	 */
+	static class Chunk {
+		double[][] attrs;
+		double[] lables;
+		int rows;
+
+		private void add(double[] attr, double lable) {
+			if (attrs == null) {
+				attrs = new double[256][];
+				lables = new double[256];
+			} else if (rows == attrs.length) {
+				attrs = Arrays.copyOf(attrs, rows * 2);
+				lables = Arrays.copyOf(lables, rows * 2);
+			}
+			attrs[rows] = attr;
+			lables[rows] = lable;
+			rows++;
+		}
+	}
+
+	/**
+	 * Parse a text dataset
+	 *
+	 * @param filePath
+	 * @param tag
+	 *            Field separator, a single character is split by hand, longer
+	 *            separators are regular expressions as in String.split
+	 * @param lableIndex
+	 *            Class subscript, -1 when there is none
+	 * @return The rows of every range in file order
+	 * @throws IOException
+	 */
+	static Chunk[] load(String filePath, final String tag, final int lableIndex)
+			throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			final long[] bounds = split(channel);
+			final Chunk[] chunks = new Chunk[bounds.length - 1];
+			new TaskManager(chunks.length, 1) {
+
+				@Override
+				public void process(int start, int end) {
+					for (int c = start; c < end; c++) {
+						try {
+							chunks[c] = read(channel, bounds[c], bounds[c + 1],
+									tag, lableIndex);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+
+			}.start();
+			return chunks;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Ranges for the parallel load, several per core and none above
+	 * MAX_CHUNK_BYTES
+	 */
+	private static long[] split(FileChannel channel) throws IOException {
+		long size = channel.size();
+		int n = (int) Math.max(1, Math.min(ConcurenceRunner.cpuNum * 4L, size
+				/ MIN_CHUNK_BYTES));
+		n = (int) Math.max(n, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+		return split(channel, n);
+	}
+
+	/**
+	 * Cut the file into n ranges that start at the beginning of a line
+	 *
+	 * @param channel
+	 * @param n
+	 * @return The start of every range followed by the file size
+	 */
+	static long[] split(FileChannel channel, int n) throws IOException {
+		long size = channel.size();
+		long[] bounds = new long[n + 1];
+		ByteBuffer window = ByteBuffer.allocate(1 << 16);
+		for (int i = 1; i < n; i++) {
+			long pos = Math.max(size * i / n, bounds[i - 1]);
+			// Move forward to just after the next end of line
+			search: while (pos < size) {
+				window.clear();
+				int read = channel.read(window, pos);
+				if (read <= 0)
+					break;
+				for (int j = 0; j < read; j++) {
+					if (window.get(j) == '\n') {
+						pos += j + 1;
+						break search;
+					}
+				}
+				pos += read;
+			}
+			bounds[i] = Math.min(pos, size);
+		}
+		bounds[n] = size;
+		return bounds;
+	}
+
+	/**
+	 * Read and parse the range [from, to) of the file, which must start and
+	 * end on line boundaries
+	 *
+	 * @return The rows of the range
+	 * @throws IOException
+	 */
+	static Chunk read(FileChannel channel, long from, long to, String tag,
+			int lableIndex) throws IOException {
+		return parse(read(channel, from, to), tag, lableIndex);
+	}
+
+	private static byte[] read(FileChannel channel, long from, long to)
+			throws IOException {
+		byte[] bytes = new byte[(int) (to - from)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, from + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Parse the whole lines of a range
+	 */
+	private static Chunk parse(byte[] bytes, String tag, int lableIndex) {
+		Chunk chunk = new Chunk();
+		boolean byHand = tag.length() == 1 && tag.charAt(0) < 128;
+		byte separator = (byte) tag.charAt(0);
+		// Fields of the current line
+		double[] fields = new double[1024];
+		int pos = 0;
+		while (pos < bytes.length) {
+			int lineEnd = pos;
+			while (lineEnd < bytes.length && bytes[lineEnd] != '\n')
+				lineEnd++;
+			int next = lineEnd + 1;
+			if (lineEnd > pos && bytes[lineEnd - 1] == '\r')
+				lineEnd--;
+			if (lineEnd > pos) {
+				int n = 0;
+				if (byHand) {
+					// Trailing empty fields are dropped, as by String.split
+					int end = lineEnd;
+					while (end > pos && bytes[end - 1] == separator)
+						end--;
+					int field = pos;
+					for (int i = pos; end > pos && i <= end; i++) {
+						if (i == end || bytes[i] == separator) {
+							if (n == fields.length)
+								fields = Arrays.copyOf(fields, n * 2);
+							fields[n++] = parseDouble(bytes, field, i);
+							field = i + 1;
+						}
+					}
+				} else {
+					String[] datas = new String(bytes, pos, lineEnd - pos,
+							StandardCharsets.ISO_8859_1).split(tag);
+					if (datas.length > fields.length)
+						fields = new double[datas.length];
+					for (String data : datas)
+						fields[n++] = Double.parseDouble(data);
+				}
+				// Lines of separators only have no field and are skipped
+				if (n > 0)
+					addRow(chunk, fields, n, lableIndex);
+			}
+			pos = next;
+		}
+		return chunk;
+	}
+
+	private static void addRow(Chunk chunk, double[] fields, int n,
+			int lableIndex) {
+		if (lableIndex == -1) {
+			chunk.add(Arrays.copyOf(fields, n), Double.NaN);
+			return;
+		}
+		if (lableIndex >= n)
+			throw new RuntimeException("Row with " + n
+					+ " fields has no lable column " + lableIndex);
+		double[] attr = new double[n - 1];
+		System.arraycopy(fields, 0, attr, 0, lableIndex);
+		System.arraycopy(fields, lableIndex + 1, attr, lableIndex, n
+				- lableIndex - 1);
+		chunk.add(attr, fields[lableIndex]);
+	}
+
+	/**
+	 * Parse the number in bytes [from, to). Up to 18 significant digits are
+	 * gathered in a long, which is exact after one multiplication or division
+	 * by a power of ten when it fits in 53 bits and the exponent is at most 22.
+	 * Anything else is handed to Double.parseDouble
+	 *
+	 * @param bytes
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	static double parseDouble(byte[] bytes, int from, int to) {
+		int i = from;
+		while (i < to && bytes[i] == ' ')
+			i++;
+		int end = to;
+		while (end > i && bytes[end - 1] == ' ')
+			end--;
+		boolean negative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		boolean exact = true;
+		for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+			any = true;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (bytes[i] - '0');
+				if (mantissa != 0)
+					digits++;
+			} else {
+				exponent++;
+				exact &= bytes[i] == '0';
+			}
+		}
+		if (i < end && bytes[i] == '.') {
+			for (i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+				any = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (bytes[i] - '0');
+					exponent--;
+					if (mantissa != 0)
+						digits++;
+				} else
+					exact &= bytes[i] == '0';
+			}
+		}
+		if (any && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = bytes[i] == '-';
+				i++;
+			}
+			int e = 0;
+			int start = i;
+			for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++)
+				e = Math.min(e * 10 + (bytes[i] - '0'), 100000);
+			if (i == start)
+				any = false;
+			exponent += negativeExponent ? -e : e;
+		}
+		if (!any || i != end || !exact || mantissa >= 1L << 53
+				|| exponent > 22 || exponent < -22)
+			return Double.parseDouble(new String(bytes, from, to - from,
+					StandardCharsets.ISO_8859_1));
+		double value = exponent >= 0 ? mantissa * POWERS[exponent] : mantissa
+				/ POWERS[-exponent];
+		return negative ? -value : value;
+	}
+}
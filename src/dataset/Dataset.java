@@ -1,8 +1,5 @@
 package dataset;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -11,6 +8,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import util.Log;
+
 public class Dataset {
 	// save data
 	private List<Record> records;
@@ -18,6 +17,12 @@ public class Dataset {
 	private int lableIndex;
 
 	private double maxLable = -1;
+	// Whether records keep their properties in single precision
+	private boolean floatStorage;
+	// Mapped file the records are views of, null for records on the heap
+	private BinaryDataset binary;
+	// Factor from a byte pixel to the value of a property
+	private double pixelScale = 1;
 
 	public Dataset(int classIndex) {
 
@@ -25,6 +30,18 @@ public class Dataset {
 		records = new ArrayList<Record>();
 	}
 
+	/**
+	 * 
+	 * @param classIndex
+	 * @param floatStorage
+	 *            Keep the properties of the records as float[], which halves
+	 *            the memory of the dataset
+	 */
+	public Dataset(int classIndex, boolean floatStorage) {
+		this(classIndex);
+		this.floatStorage = floatStorage;
+	}
+
 	public Dataset(List<double[]> datas) {
 		this();
 		for (double[] data : datas) {
@@ -98,30 +115,138 @@ public class Dataset {
 	 * @return
 	 */
 	public static Dataset load(String filePath, String tag, int lableIndex) {
+		return load(filePath, tag, lableIndex, false);
+	}
+
+	/**
+	 * Import the data set
+	 * 
+	 * @param filePath
+	 *            File name plus path
+	 * @param tag
+	 *            Field separator
+	 * @param lableIndex
+	 *            Class subscript subscript, starting from 0
+	 * @param floatStorage
+	 *            Keep the properties of the records as float[]
+	 * @return
+	 */
+	public static Dataset load(String filePath, String tag, int lableIndex,
+			boolean floatStorage) {
 		Dataset dataset = new Dataset();
 		dataset.lableIndex = lableIndex;
-		File file = new File(filePath);
+		dataset.floatStorage = floatStorage;
+		long t = System.nanoTime();
+		CsvLoader.Chunk[] chunks;
 		try {
-
-			BufferedReader in = new BufferedReader(new FileReader(file));
-			String line;
-			while ((line = in.readLine()) != null) {
-				String[] datas = line.split(tag);
-				if (datas.length == 0)
-					continue;
-				double[] data = new double[datas.length];
-				for (int i = 0; i < datas.length; i++)
-					data[i] = Double.parseDouble(datas[i]);
-				Record record = dataset.new Record(data);
-				dataset.append(record);
+			chunks = CsvLoader.load(filePath, tag, lableIndex);
+		} catch (IOException e) {
+			Log.e("dataset", e);
+			return null;
+		}
+		int rows = 0;
+		for (CsvLoader.Chunk chunk : chunks)
+			rows += chunk.rows;
+		dataset.records = new ArrayList<Record>(rows);
+		for (CsvLoader.Chunk chunk : chunks) {
+			for (int r = 0; r < chunk.rows; r++) {
+				Double lable = lableIndex == -1 ? null : chunk.lables[r];
+				if (lable != null && lable > dataset.maxLable)
+					dataset.maxLable = lable;
+				dataset.append(dataset.new Record(chunk.attrs[r], lable));
 			}
-			in.close();
+		}
+		double seconds = (System.nanoTime() - t) / 1e9;
+		Log.i("Import Data:" + dataset.size() + " ("
+				+ (int) (dataset.size() / seconds) + " rows/sec)");
+		return dataset;
+	}
 
+	/**
+	 * Import a binary dataset written by
+	 * {@link BinaryDataset#convert(String, String, int, String, BinaryDataset.Dtype)}.
+	 * The file is memory mapped and the records read their properties
+	 * straight from the mapping, so nothing is parsed or copied up front
+	 * 
+	 * @param filePath
+	 * @return
+	 */
+	public static Dataset loadBinary(String filePath) {
+		BinaryDataset binary;
+		try {
+			binary = BinaryDataset.open(filePath);
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.e("dataset", e);
 			return null;
 		}
-		System.out.println("Import Data:" + dataset.size());
+		Dataset dataset = new Dataset();
+		dataset.lableIndex = binary.getLableIndex();
+		dataset.binary = binary;
+		dataset.records = new ArrayList<Record>(binary.getRows());
+		for (int row = 0; row < binary.getRows(); row++)
+			dataset.append(dataset.new Record(row));
+		Log.i("Map Data:" + dataset.size());
+		return dataset;
+	}
+
+	/**
+	 * Import MNIST style IDX files with pixels normalized to [0, 1]
+	 * 
+	 * @param imagePath
+	 * @param lablePath
+	 *            The IDX label file, null for records without a label
+	 * @return
+	 */
+	public static Dataset loadIdx(String imagePath, String lablePath) {
+		return loadIdx(imagePath, lablePath, 1.0 / 255);
+	}
+
+	/**
+	 * Import MNIST style IDX files. The pixels stay unsigned bytes in the
+	 * records and are multiplied by pixelScale only when they are copied
+	 * into an input map
+	 * 
+	 * @param imagePath
+	 *            The IDX image file, may be gzipped
+	 * @param lablePath
+	 *            The IDX label file, may be gzipped, null for records without
+	 *            a label
+	 * @param pixelScale
+	 *            Value of a pixel of 1
+	 * @return
+	 */
+	public static Dataset loadIdx(String imagePath, String lablePath,
+			double pixelScale) {
+		long t = System.nanoTime();
+		byte[][] images;
+		byte[] lables = null;
+		try {
+			images = IdxReader.readImages(imagePath);
+			if (lablePath != null)
+				lables = IdxReader.readLabels(lablePath);
+		} catch (IOException e) {
+			Log.e("dataset", e);
+			return null;
+		}
+		if (lables != null && lables.length != images.length)
+			throw new RuntimeException(images.length + " images but "
+					+ lables.length + " labels");
+		Dataset dataset = new Dataset();
+		dataset.pixelScale = pixelScale;
+		// The label is not a column of the images, any index other than -1 means there is one
+		dataset.lableIndex = lables == null ? -1 : 0;
+		dataset.records = new ArrayList<Record>(images.length);
+		for (int i = 0; i < images.length; i++) {
+			Double lable = null;
+			if (lables != null) {
+				lable = (double) (lables[i] & 0xFF);
+				if (lable > dataset.maxLable)
+					dataset.maxLable = lable;
+			}
+			dataset.append(dataset.new Record(images[i], lable));
+		}
+		Log.i("Import Data:" + dataset.size() + " in "
+				+ (System.nanoTime() - t) / 1000000 + "ms");
 		return dataset;
 	}
 
@@ -133,13 +258,33 @@ public class Dataset {
 	 *         
 	 */
 	public class Record {
-		// Storing data
+		// Storing data, only one of attrs, floatAttrs, pixels and row is set
 		private double[] attrs;
+		private float[] floatAttrs;
+		// Unsigned byte pixels, scaled by pixelScale when copied out
+		private byte[] pixels;
+		// Row in the mapped file, -1 when the record is on the heap
+		private int row = -1;
 		private Double lable;
 
-		private Record(double[] attrs, Double lable) {
+		private Record(int row) {
+			this.row = row;
+		}
+
+		private Record(byte[] pixels, Double lable) {
+			this.pixels = pixels;
+			this.lable = lable;
+		}
+
+		Record(double[] attrs, Double lable) {
 			this.attrs = attrs;
 			this.lable = lable;
+			store();
+		}
+
+		Record(float[] floatAttrs, Double lable) {
+			this.floatAttrs = floatAttrs;
+			this.lable = lable;
 		}
 
 		public Record(double[] data) {
@@ -154,23 +299,104 @@ public class Dataset {
 				else
 					attrs = Arrays.copyOfRange(data, 0, data.length - 1);
 			}
+			store();
+		}
+
+		// Move the properties to single precision storage if the dataset asks for it
+		private void store() {
+			if (!floatStorage)
+				return;
+			floatAttrs = new float[attrs.length];
+			for (int i = 0; i < attrs.length; i++)
+				floatAttrs[i] = (float) attrs[i];
+			attrs = null;
 		}
 
 		/**
-		 * The record's properties
+		 * The record's properties. A record in float or byte storage or in a
+		 * mapped file returns a new
+		 * array on every call, use {@link #copyAttrs(double[], int)} on hot
+		 * paths
 		 * 
 		 * @return
 		 */
 		public double[] getAttrs() {
-			return attrs;
+			if (attrs != null)
+				return attrs;
+			double[] copy = new double[getAttrNum()];
+			copyAttrs(copy, 0);
+			return copy;
+		}
+
+		/**
+		 * The number of properties
+		 * 
+		 * @return
+		 */
+		public int getAttrNum() {
+			if (row != -1)
+				return binary.getFeatures();
+			if (pixels != null)
+				return pixels.length;
+			return attrs != null ? attrs.length : floatAttrs.length;
+		}
+
+		/**
+		 * Copy the properties into dst from off
+		 * 
+		 * @param dst
+		 * @param off
+		 */
+		public void copyAttrs(double[] dst, int off) {
+			if (row != -1) {
+				binary.copy(row, dst, off);
+				return;
+			}
+			if (pixels != null) {
+				for (int i = 0; i < pixels.length; i++)
+					dst[off + i] = (pixels[i] & 0xFF) * pixelScale;
+				return;
+			}
+			if (attrs != null) {
+				System.arraycopy(attrs, 0, dst, off, attrs.length);
+				return;
+			}
+			for (int i = 0; i < floatAttrs.length; i++)
+				dst[off + i] = floatAttrs[i];
+		}
+
+		/**
+		 * Copy the properties into dst from off in single precision
+		 * 
+		 * @param dst
+		 * @param off
+		 */
+		public void copyAttrs(float[] dst, int off) {
+			if (row != -1) {
+				binary.copy(row, dst, off);
+				return;
+			}
+			if (pixels != null) {
+				float scale = (float) pixelScale;
+				for (int i = 0; i < pixels.length; i++)
+					dst[off + i] = (pixels[i] & 0xFF) * scale;
+				return;
+			}
+			if (floatAttrs != null) {
+				System.arraycopy(floatAttrs, 0, dst, off, floatAttrs.length);
+				return;
+			}
+			for (int i = 0; i < attrs.length; i++)
+				dst[off + i] = (float) attrs[i];
 		}
 
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
 			sb.append("attrs:");
-			sb.append(Arrays.toString(attrs));
+			sb.append(floatAttrs != null ? Arrays.toString(floatAttrs)
+					: Arrays.toString(getAttrs()));
 			sb.append("lable:");
-			sb.append(lable);
+			sb.append(getLable());
 			return sb.toString();
 		}
 
@@ -182,6 +408,8 @@ public class Dataset {
 		public Double getLable() {
 			if (lableIndex == -1)
 				return null;
+			if (row != -1)
+				return binary.getLable(row);
 			return lable;
 		}
 
@@ -192,7 +420,7 @@ public class Dataset {
 		 * @return
 		 */
 		public int[] getEncodeTarget(int n) {
-			String binary = Integer.toBinaryString(lable.intValue());
+			String binary = Integer.toBinaryString(getLable().intValue());
 			byte[] bytes = binary.getBytes();
 			int[] encode = new int[n];
 			int j = n;
@@ -203,7 +431,7 @@ public class Dataset {
 		}
 
 		public double[] getDoubleEncodeTarget(int n) {
-			String binary = Integer.toBinaryString(lable.intValue());
+			String binary = Integer.toBinaryString(getLable().intValue());
 			byte[] bytes = binary.getBytes();
 			double[] encode = new double[n];
 			int j = n;
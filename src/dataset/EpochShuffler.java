@@ -0,0 +1,207 @@
+package dataset;
+
+import java.util.Random;
+
+/**
+ * Order of the records of a dataset for one epoch of training. Every epoch
+ * is one permutation of [0, size), so each record is seen exactly once per
+ * epoch, and the batches are contiguous slices of it.
+ *
+ * Besides a uniform shuffle there are two orders for special datasets:
+ * {@link #stratified(Dataset, long)} spreads every class evenly over the
+ * epoch so that each batch has about the class proportions of the whole
+ * dataset, and {@link #blocks(int, int, long)} shuffles blocks of
+ * consecutive records and the records inside each block, so that a batch of
+ * a memory mapped dataset touches a few runs of pages instead of one page
+ * per record
+ *
+ */
+public class EpochShuffler {
+	private final int size;
+	private final long seed;
+	private final Random random = new Random();
+	// Class of every record for the stratified order, null otherwise
+	private final int[] lables;
+	private final int classNum;
+	// Records per block for the block order, 0 otherwise
+	private final int blockSize;
+	private final int[] perm;
+
+	private EpochShuffler(int size, int[] lables, int classNum,
+			int blockSize, long seed) {
+		this.size = size;
+		this.lables = lables;
+		this.classNum = classNum;
+		this.blockSize = blockSize;
+		this.seed = seed;
+		perm = new int[size];
+	}
+
+	/**
+	 * Uniform shuffle of size records
+	 *
+	 * @param size
+	 * @param seed
+	 */
+	public EpochShuffler(int size, long seed) {
+		this(size, null, 0, 0, seed);
+	}
+
+	/**
+	 * Shuffle the records of every class and interleave the classes in
+	 * proportion to their sizes
+	 *
+	 * @param dataset
+	 *            A dataset whose labels are the classes 0, 1, 2...
+	 * @param seed
+	 * @return
+	 */
+	public static EpochShuffler stratified(Dataset dataset, long seed) {
+		int[] lables = new int[dataset.size()];
+		int classNum = 0;
+		for (int i = 0; i < lables.length; i++) {
+			Double lable = dataset.getLable(i);
+			if (lable == null)
+				throw new RuntimeException("Record " + i
+						+ " has no lable to stratify on");
+			lables[i] = lable.intValue();
+			if (lables[i] < 0)
+				throw new RuntimeException("Negative lable " + lable);
+			classNum = Math.max(classNum, lables[i] + 1);
+		}
+		return new EpochShuffler(lables.length, lables, classNum, 0, seed);
+	}
+
+	/**
+	 * Shuffle the order of blocks of blockSize consecutive records and the
+	 * records inside each block
+	 *
+	 * @param size
+	 * @param blockSize
+	 *            Records per block, for example the batch size
+	 * @param seed
+	 * @return
+	 */
+	public static EpochShuffler blocks(int size, int blockSize, long seed) {
+		if (blockSize < 1)
+			throw new RuntimeException("Bad block size " + blockSize);
+		return new EpochShuffler(size, null, 0, blockSize, seed);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Draw the order of an epoch. It only depends on the seed and the epoch,
+	 * so a resumed training sees the same order again
+	 *
+	 * @param epoch
+	 * @return The permutation, overwritten by the next call
+	 */
+	public int[] shuffle(int epoch) {
+		random.setSeed(seed + epoch * 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < size; i++)
+			perm[i] = i;
+		if (lables != null)
+			stratify();
+		else if (blockSize > 0)
+			shuffleBlocks();
+		else
+			shuffle(perm, 0, size);
+		return perm;
+	}
+
+	/**
+	 * Number of batches of an epoch, the last one may be short
+	 *
+	 * @param batchSize
+	 * @return
+	 */
+	public int batchNum(int batchSize) {
+		return (size + batchSize - 1) / batchSize;
+	}
+
+	/**
+	 * Copy the indices of the i th batch of the current epoch into dst
+	 *
+	 * @param i
+	 * @param batchSize
+	 * @param dst
+	 * @return The number of indices copied
+	 */
+	public int batch(int i, int batchSize, int[] dst) {
+		int from = i * batchSize;
+		int n = Math.max(0, Math.min(batchSize, size - from));
+		System.arraycopy(perm, from, dst, 0, n);
+		return n;
+	}
+
+	// Fisher-Yates shuffle of a[from, to)
+	private void shuffle(int[] a, int from, int to) {
+		for (int i = to - 1; i > from; i--) {
+			int j = from + random.nextInt(i - from + 1);
+			int swap = a[i];
+			a[i] = a[j];
+			a[j] = swap;
+		}
+	}
+
+	private void shuffleBlocks() {
+		int blockNum = (size + blockSize - 1) / blockSize;
+		int[] order = new int[blockNum];
+		for (int b = 0; b < blockNum; b++)
+			order[b] = b;
+		shuffle(order, 0, blockNum);
+		int pos = 0;
+		for (int b : order) {
+			int from = pos;
+			for (int i = b * blockSize; i < Math.min(size, (b + 1) * blockSize); i++)
+				perm[pos++] = i;
+			shuffle(perm, from, pos);
+		}
+	}
+
+	/**
+	 * The k th of the n records of a class goes to the relative position
+	 * (k + u) / n with u uniform in [0, 1) drawn per class, the classes are
+	 * then merged by position
+	 */
+	private void stratify() {
+		// Records of each class, shuffled
+		int[] start = new int[classNum + 1];
+		for (int lable : lables)
+			start[lable + 1]++;
+		for (int c = 0; c < classNum; c++)
+			start[c + 1] += start[c];
+		int[] byClass = new int[size];
+		int[] next = start.clone();
+		for (int i = 0; i < size; i++)
+			byClass[next[lables[i]]++] = i;
+		double[] phase = new double[classNum];
+		for (int c = 0; c < classNum; c++) {
+			shuffle(byClass, start[c], start[c + 1]);
+			phase[c] = random.nextDouble();
+			next[c] = start[c];
+		}
+		for (int pos = 0; pos < size; pos++) {
+			int best = -1;
+			double bestKey = Double.MAX_VALUE;
+			for (int c = 0; c < classNum; c++) {
+				int n = start[c + 1] - start[c];
+				if (next[c] == start[c + 1])
+					continue;
+				double key = (next[c] - start[c] + phase[c]) / n;
+				if (key < bestKey) {
+					bestKey = key;
+					best = c;
+				}
+			}
+			perm[pos] = byClass[next[best]++];
+		}
+	}
+}
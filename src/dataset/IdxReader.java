@@ -0,0 +1,76 @@
+package dataset;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader of the IDX files the MNIST images and labels are distributed in, a
+ * big endian header of magic (0x0803 for images, 0x0801 for labels), the
+ * item count and for images the number of rows and columns, then one
+ * unsigned byte per pixel or label. Files ending in .gz are decompressed on
+ * the fly
+ *
+ *
+ */
+class IdxReader {
+	static final int IMAGES_MAGIC = 0x00000803;
+	static final int LABELS_MAGIC = 0x00000801;
+
+	private static DataInputStream open(String filePath) throws IOException {
+		InputStream in = new FileInputStream(filePath);
+		if (filePath.endsWith(".gz"))
+			in = new GZIPInputStream(in, 1 << 16);
+		return new DataInputStream(new BufferedInputStream(in, 1 << 16));
+	}
+
+	/**
+	 * Read every image of an IDX image file
+	 *
+	 * @param filePath
+	 * @return One byte[] of rows * columns pixels per image, row-major
+	 * @throws IOException
+	 */
+	static byte[][] readImages(String filePath) throws IOException {
+		DataInputStream in = open(filePath);
+		try {
+			int magic = in.readInt();
+			if (magic != IMAGES_MAGIC)
+				throw new IOException(filePath + " is not an IDX image file, magic "
+						+ Integer.toHexString(magic));
+			int count = in.readInt();
+			int pixels = in.readInt() * in.readInt();
+			byte[][] images = new byte[count][pixels];
+			for (int i = 0; i < count; i++)
+				in.readFully(images[i]);
+			return images;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read every label of an IDX label file
+	 *
+	 * @param filePath
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] readLabels(String filePath) throws IOException {
+		DataInputStream in = open(filePath);
+		try {
+			int magic = in.readInt();
+			if (magic != LABELS_MAGIC)
+				throw new IOException(filePath + " is not an IDX label file, magic "
+						+ Integer.toHexString(magic));
+			byte[] labels = new byte[in.readInt()];
+			in.readFully(labels);
+			return labels;
+		} finally {
+			in.close();
+		}
+	}
+}
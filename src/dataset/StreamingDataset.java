@@ -0,0 +1,288 @@
+package dataset;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import dataset.Dataset.Record;
+
+/**
+ * Dataset that is read from disk on every epoch instead of being held in
+ * memory, for training on files larger than the heap.
+ *
+ * The file is cut into chunks of about CHUNK_BYTES that are read in a random
+ * order. A background thread pushes the records of each chunk through a
+ * shuffle buffer: once the buffer is full every new record replaces a random
+ * one, which is handed to the trainer through a bounded queue. Memory is
+ * bounded by the shuffle buffer, the queue and one chunk, whatever the size
+ * of the file
+ *
+ * @see CNN.CNN#train(StreamingDataset, int)
+ *
+ */
+public class StreamingDataset {
+	// Size of the pieces the file is read in
+	private static final int CHUNK_BYTES = 1 << 20;
+
+	// Owner of the records, holds the label index and storage of the file
+	private final Dataset schema;
+	// Source file, either a mapped binary dataset or a text file
+	private final BinaryDataset binary;
+	private final String filePath;
+	private final String tag;
+	// Text file: start of every chunk followed by the file size
+	private final long[] bounds;
+	// Binary file: rows per chunk
+	private final int chunkRows;
+	private final int chunkNum;
+	private final int bufferSize;
+	private final int queueSize;
+	private final Random random;
+	// Marks the end of an epoch in the queue
+	private final Record end;
+
+	private BlockingQueue<Record> queue;
+	private Thread prefetch;
+	private volatile Throwable error;
+	// Whether the end of the current epoch has been taken from the queue
+	private boolean ended = true;
+
+	private StreamingDataset(Dataset schema, BinaryDataset binary,
+			String filePath, String tag, long[] bounds, int bufferSize,
+			long seed) {
+		if (bufferSize < 1)
+			throw new RuntimeException("Bad shuffle buffer size " + bufferSize);
+		this.schema = schema;
+		this.binary = binary;
+		this.filePath = filePath;
+		this.tag = tag;
+		this.bounds = bounds;
+		if (binary != null) {
+			int rowBytes = 8 + binary.getFeatures()
+					* binary.getDtype().getBytes();
+			chunkRows = Math.max(1, CHUNK_BYTES / rowBytes);
+			chunkNum = (binary.getRows() + chunkRows - 1) / chunkRows;
+		} else {
+			chunkRows = 0;
+			chunkNum = bounds.length - 1;
+		}
+		this.bufferSize = bufferSize;
+		this.queueSize = Math.max(1, Math.min(bufferSize, 1024));
+		this.random = new Random(seed);
+		this.end = schema.new Record(new double[0], null);
+	}
+
+	/**
+	 * Stream a binary dataset written by
+	 * {@link BinaryDataset#convert(String, String, int, String, BinaryDataset.Dtype)}.
+	 * Records of a FLOAT32 file are kept in single precision
+	 *
+	 * @param filePath
+	 * @param bufferSize
+	 *            Number of records in the shuffle buffer
+	 * @param seed
+	 *            Seed of the chunk order and of the shuffle buffer
+	 * @return
+	 * @throws IOException
+	 */
+	public static StreamingDataset openBinary(String filePath, int bufferSize,
+			long seed) throws IOException {
+		BinaryDataset binary = BinaryDataset.open(filePath);
+		Dataset schema = new Dataset(binary.getLableIndex(),
+				binary.getDtype() == BinaryDataset.Dtype.FLOAT32);
+		return new StreamingDataset(schema, binary, filePath, null, null,
+				bufferSize, seed);
+	}
+
+	/**
+	 * Stream a text dataset as read by
+	 * {@link Dataset#load(String, String, int, boolean)}
+	 *
+	 * @param filePath
+	 * @param tag
+	 *            Field separator
+	 * @param lableIndex
+	 *            Class subscript, starting from 0, -1 when there is none
+	 * @param floatStorage
+	 *            Keep the properties of the buffered records as float[]
+	 * @param bufferSize
+	 *            Number of records in the shuffle buffer
+	 * @param seed
+	 *            Seed of the chunk order and of the shuffle buffer
+	 * @return
+	 * @throws IOException
+	 */
+	public static StreamingDataset openText(String filePath, String tag,
+			int lableIndex, boolean floatStorage, int bufferSize, long seed)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filePath, "r");
+		long[] bounds;
+		try {
+			FileChannel channel = file.getChannel();
+			int n = (int) Math.max(1, (channel.size() + CHUNK_BYTES - 1)
+					/ CHUNK_BYTES);
+			bounds = CsvLoader.split(channel, n);
+		} finally {
+			file.close();
+		}
+		Dataset schema = new Dataset(lableIndex, floatStorage);
+		return new StreamingDataset(schema, null, filePath, tag, bounds,
+				bufferSize, seed);
+	}
+
+	public int getLableIndex() {
+		return schema.getLableIndex();
+	}
+
+	/**
+	 * Start reading a new epoch in the background, an epoch still being read
+	 * is abandoned
+	 */
+	public void startEpoch() {
+		stop();
+		error = null;
+		ended = false;
+		final BlockingQueue<Record> epochQueue = new ArrayBlockingQueue<Record>(
+				queueSize);
+		final long epochSeed = random.nextLong();
+		queue = epochQueue;
+		prefetch = new Thread("StreamingDataset prefetch") {
+			@Override
+			public void run() {
+				try {
+					produce(epochQueue, new Random(epochSeed));
+				} catch (InterruptedException e) {
+					return;
+				} catch (Throwable e) {
+					error = e;
+				}
+				try {
+					epochQueue.put(end);
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		prefetch.setDaemon(true);
+		prefetch.start();
+	}
+
+	/**
+	 * The next record of the epoch, blocks until the prefetch thread has one
+	 *
+	 * @return null at the end of the epoch
+	 */
+	public Record next() {
+		if (ended)
+			return null;
+		Record record;
+		try {
+			record = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		if (record != end)
+			return record;
+		ended = true;
+		if (error != null)
+			throw new RuntimeException("Reading " + filePath + " failed", error);
+		return null;
+	}
+
+	/**
+	 * Stop the prefetch thread of the current epoch
+	 */
+	public void stop() {
+		if (prefetch == null)
+			return;
+		prefetch.interrupt();
+		try {
+			prefetch.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		prefetch = null;
+		ended = true;
+	}
+
+	// Read the chunks in a random order through the shuffle buffer
+	private void produce(BlockingQueue<Record> queue, Random random)
+			throws IOException, InterruptedException {
+		int[] order = new int[chunkNum];
+		for (int i = 0; i < chunkNum; i++)
+			order[i] = i;
+		for (int i = chunkNum - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		Record[] buffer = new Record[bufferSize];
+		int buffered = 0;
+		RandomAccessFile file = binary == null ? new RandomAccessFile(
+				filePath, "r") : null;
+		try {
+			for (int c : order) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				for (Record record : readChunk(file, c)) {
+					if (buffered < bufferSize) {
+						buffer[buffered++] = record;
+						continue;
+					}
+					int j = random.nextInt(bufferSize);
+					queue.put(buffer[j]);
+					buffer[j] = record;
+				}
+			}
+		} finally {
+			if (file != null)
+				file.close();
+		}
+		// Drain the buffer in random order
+		for (int i = buffered - 1; i >= 0; i--) {
+			int j = random.nextInt(i + 1);
+			queue.put(buffer[j]);
+			buffer[j] = buffer[i];
+		}
+	}
+
+	private List<Record> readChunk(RandomAccessFile file, int c)
+			throws IOException {
+		if (binary == null) {
+			CsvLoader.Chunk chunk = CsvLoader.read(file.getChannel(),
+					bounds[c], bounds[c + 1], tag, schema.getLableIndex());
+			List<Record> records = new ArrayList<Record>(chunk.rows);
+			for (int r = 0; r < chunk.rows; r++) {
+				Double lable = schema.getLableIndex() == -1 ? null
+						: chunk.lables[r];
+				records.add(schema.new Record(chunk.attrs[r], lable));
+			}
+			return records;
+		}
+		int from = c * chunkRows;
+		int to = Math.min(from + chunkRows, binary.getRows());
+		int features = binary.getFeatures();
+		boolean single = binary.getDtype() == BinaryDataset.Dtype.FLOAT32;
+		List<Record> records = new ArrayList<Record>(to - from);
+		for (int row = from; row < to; row++) {
+			Double lable = binary.getLableIndex() == -1 ? null : binary
+					.getLable(row);
+			if (single) {
+				float[] attrs = new float[features];
+				binary.copy(row, attrs, 0);
+				records.add(schema.new Record(attrs, lable));
+			} else {
+				double[] attrs = new double[features];
+				binary.copy(row, attrs, 0);
+				records.add(schema.new Record(attrs, lable));
+			}
+		}
+		return records;
+	}
+}
@@ -1,25 +1,33 @@
 package util;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Concurrent running tools and
- * 
- * 
+ *
+ *
  */
 public class ConcurenceRunner {
 
-	private static final ExecutorService exec;
+	private static final ForkJoinPool exec;
 	public static final int cpuNum;
+	// Default number of pieces per cpu a TaskManager splits its work into
+	private static final int SPLITS_PER_CPU = 4;
 	static {
 		cpuNum = Runtime.getRuntime().availableProcessors();
 		// cpuNum = 1;
-		System.out.println("cpuNum:" + cpuNum);
-		exec = Executors.newFixedThreadPool(cpuNum);
+		Log.i("cpuNum:" + cpuNum);
+		exec = new ForkJoinPool(cpuNum);
 	}
 
+	// Time dispatched TaskManagers waited for a pool thread, while recording
+	private static volatile boolean recordQueueWait;
+	private static final LongAdder queueWaitNanos = new LongAdder();
+	private static final LongAdder dispatches = new LongAdder();
+
 	public static void run(Runnable task) {
 		exec.execute(task);
 	}
@@ -28,6 +36,36 @@ public class ConcurenceRunner {
 		exec.shutdown();
 	}
 
+	/**
+	 * Measure how long each TaskManager dispatched to the pool waits until a
+	 * pool thread starts on it. Off by default, it costs two nanoTime calls
+	 * per dispatch
+	 * 
+	 * @param record
+	 */
+	public static void setQueueWaitRecording(boolean record) {
+		recordQueueWait = record;
+	}
+
+	/**
+	 * Total wait of the dispatched TaskManagers while recording
+	 * 
+	 * @return
+	 */
+	public static long getQueueWaitNanos() {
+		return queueWaitNanos.sum();
+	}
+
+	/**
+	 * Number of TaskManagers dispatched to the pool while recording, the
+	 * ones run inline are not counted
+	 * 
+	 * @return
+	 */
+	public static long getDispatches() {
+		return dispatches.sum();
+	}
+
 	// public abstract static class Task implements
 	// Runnable {
 	// int start, end;
@@ -49,43 +87,77 @@ public class ConcurenceRunner {
 	//
 	// }
 
+	/**
+	 * Runs process over [0, workLength) on the fork/join pool. The range is
+	 * split in halves recursively until a piece is no longer than the grain
+	 * size, idle threads steal the pieces. A TaskManager started from inside
+	 * another one forks into the same pool, so batch, map and position level
+	 * work nest without blocking threads
+	 */
 	public abstract static class TaskManager {
 		private int workLength;
+		private int grainSize;
 
 		public TaskManager(int workLength) {
+			this(workLength, (workLength + cpuNum * SPLITS_PER_CPU - 1)
+					/ (cpuNum * SPLITS_PER_CPU));
+		}
+
+		/**
+		 *
+		 * @param workLength
+		 * @param grainSize
+		 *            The largest piece of work processed without splitting
+		 */
+		public TaskManager(int workLength, int grainSize) {
 			this.workLength = workLength;
+			this.grainSize = Math.max(1, grainSize);
 		}
 
 		public void start() {
-			int runCpu = cpuNum < workLength ? cpuNum : 1;
-			// Fragment length rounded up
-			final CountDownLatch gate = new CountDownLatch(runCpu);
-			int fregLength = (workLength + runCpu - 1) / runCpu;
-			for (int cpu = 0; cpu < runCpu; cpu++) {
-				final int start = cpu * fregLength;
-				int tmp = (cpu + 1) * fregLength;
-				final int end = tmp <= workLength ? tmp : workLength;
-				Runnable task = new Runnable() {
-
-					@Override
-					public void run() {
-						process(start, end);
-						gate.countDown();
-					}
-
-				};
-				ConcurenceRunner.run(task);
-			}
-			try {// Wait for all threads to finish running
-				gate.await();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				throw new RuntimeException(e);
+			if (workLength <= grainSize || cpuNum == 1) {// Not worth a dispatch
+				process(0, workLength);
+				return;
 			}
+			Piece task = new Piece(0, workLength);
+			if (recordQueueWait)
+				task.submitted = System.nanoTime();
+			if (ForkJoinTask.getPool() == exec)
+				task.invoke();
+			else
+				exec.invoke(task);
 		}
 
 		public abstract void process(int start, int end);
 
+		private class Piece extends RecursiveAction {
+
+			private static final long serialVersionUID = -3325148315226186317L;
+			private final int start;
+			private final int end;
+			// Dispatch time of the root piece while recording, 0 otherwise
+			long submitted;
+
+			Piece(int start, int end) {
+				this.start = start;
+				this.end = end;
+			}
+
+			@Override
+			protected void compute() {
+				if (submitted != 0) {
+					queueWaitNanos.add(System.nanoTime() - submitted);
+					dispatches.increment();
+				}
+				if (end - start <= grainSize) {
+					process(start, end);
+					return;
+				}
+				int mid = (start + end) >>> 1;
+				invokeAll(new Piece(start, mid), new Piece(mid, end));
+			}
+		}
+
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package util;
+
+/**
+ * Two dimensional complex FFT of a fixed p x q size, both powers of two.
+ * The data are row-major p x q arrays of real and imaginary parts,
+ * transformed in place with iterative radix-2 butterflies: the rows first,
+ * then the columns, which are copied into a contiguous buffer. The twiddle
+ * factors and bit reversal tables are computed once per instance, which can
+ * then be shared by any number of threads
+ *
+ */
+public class FFT {
+	private final int p;
+	private final int q;
+	private final double[] cosP, sinP, cosQ, sinQ;
+	private final int[] reverseP, reverseQ;
+
+	/**
+	 *
+	 * @param p
+	 *            Number of rows, a power of two
+	 * @param q
+	 *            Number of columns, a power of two
+	 */
+	public FFT(int p, int q) {
+		if (Integer.bitCount(p) != 1 || Integer.bitCount(q) != 1)
+			throw new RuntimeException("FFT size " + p + "x" + q
+					+ " is not a power of two");
+		this.p = p;
+		this.q = q;
+		cosP = new double[p / 2];
+		sinP = new double[p / 2];
+		twiddles(p, cosP, sinP);
+		cosQ = new double[q / 2];
+		sinQ = new double[q / 2];
+		twiddles(q, cosQ, sinQ);
+		reverseP = reversal(p);
+		reverseQ = reversal(q);
+	}
+
+	/**
+	 * The smallest power of two not below n
+	 *
+	 * @param n
+	 * @return
+	 */
+	public static int size(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	private static void twiddles(int n, double[] cos, double[] sin) {
+		for (int k = 0; k < n / 2; k++) {
+			cos[k] = Math.cos(2 * Math.PI * k / n);
+			sin[k] = -Math.sin(2 * Math.PI * k / n);
+		}
+	}
+
+	private static int[] reversal(int n) {
+		int[] reverse = new int[n];
+		int bits = Integer.numberOfTrailingZeros(n);
+		for (int i = 0; i < n; i++)
+			reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+		return reverse;
+	}
+
+	public int rows() {
+		return p;
+	}
+
+	public int columns() {
+		return q;
+	}
+
+	/**
+	 * Number of elements of the arrays, p * q
+	 *
+	 * @return
+	 */
+	public int length() {
+		return p * q;
+	}
+
+	/**
+	 * Zero pad the m x n real matrix at off into re and clear im
+	 *
+	 * @param src
+	 * @param off
+	 * @param m
+	 * @param n
+	 * @param re
+	 * @param im
+	 */
+	public void load(double[] src, int off, int m, int n, double[] re,
+			double[] im) {
+		for (int i = 0; i < m; i++) {
+			System.arraycopy(src, off + i * n, re, i * q, n);
+			for (int j = n; j < q; j++)
+				re[i * q + j] = 0;
+		}
+		for (int k = m * q; k < p * q; k++)
+			re[k] = 0;
+		for (int k = 0; k < p * q; k++)
+			im[k] = 0;
+	}
+
+	/**
+	 * Forward transform in place
+	 *
+	 * @param re
+	 * @param im
+	 * @param column
+	 *            Buffer of at least 2 * p elements
+	 */
+	public void forward(double[] re, double[] im, double[] column) {
+		transform(re, im, column, false);
+	}
+
+	/**
+	 * Inverse transform in place, scaled by 1 / (p * q)
+	 *
+	 * @param re
+	 * @param im
+	 * @param column
+	 *            Buffer of at least 2 * p elements
+	 */
+	public void inverse(double[] re, double[] im, double[] column) {
+		transform(re, im, column, true);
+		double scale = 1.0 / (p * q);
+		for (int k = 0; k < p * q; k++) {
+			re[k] *= scale;
+			im[k] *= scale;
+		}
+	}
+
+	private void transform(double[] re, double[] im, double[] column,
+			boolean inverse) {
+		for (int i = 0; i < p; i++)
+			fft(re, im, i * q, q, cosQ, sinQ, reverseQ, inverse);
+		if (p == 1)
+			return;
+		// Columns through a contiguous buffer, real parts then imaginary
+		for (int j = 0; j < q; j++) {
+			for (int i = 0; i < p; i++) {
+				column[i] = re[i * q + j];
+				column[p + i] = im[i * q + j];
+			}
+			fft(column, column, 0, p, cosP, sinP, reverseP, inverse, p);
+			for (int i = 0; i < p; i++) {
+				re[i * q + j] = column[i];
+				im[i * q + j] = column[p + i];
+			}
+		}
+	}
+
+	private static void fft(double[] re, double[] im, int off, int n,
+			double[] cos, double[] sin, int[] reverse, boolean inverse) {
+		fft(re, im, off, n, cos, sin, reverse, inverse, 0);
+	}
+
+	/**
+	 * Transform of n elements of re from off and of im from off + imShift
+	 */
+	private static void fft(double[] re, double[] im, int off, int n,
+			double[] cos, double[] sin, int[] reverse, boolean inverse,
+			int imShift) {
+		int imOff = off + imShift;
+		for (int i = 0; i < n; i++) {
+			int j = reverse[i];
+			if (j > i) {
+				double t = re[off + i];
+				re[off + i] = re[off + j];
+				re[off + j] = t;
+				t = im[imOff + i];
+				im[imOff + i] = im[imOff + j];
+				im[imOff + j] = t;
+			}
+		}
+		double sign = inverse ? -1 : 1;
+		for (int size = 2; size <= n; size <<= 1) {
+			int half = size >> 1;
+			int step = n / size;
+			for (int start = 0; start < n; start += size) {
+				for (int k = 0; k < half; k++) {
+					double wr = cos[k * step];
+					double wi = sign * sin[k * step];
+					int a = start + k;
+					int b = a + half;
+					double br = re[off + b];
+					double bi = im[imOff + b];
+					double tr = br * wr - bi * wi;
+					double ti = br * wi + bi * wr;
+					re[off + b] = re[off + a] - tr;
+					im[imOff + b] = im[imOff + a] - ti;
+					re[off + a] += tr;
+					im[imOff + a] += ti;
+				}
+			}
+		}
+	}
+}
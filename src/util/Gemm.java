@@ -0,0 +1,373 @@
+package util;
+
+/**
+ * Cache-blocked, register-tiled matrix multiplication on flat row-major
+ * arrays, used by the convolution engine after im2col lowering. The blocks
+ * are multiplied by {@link VectorKernels} when {@link Simd#ENABLED}
+ *
+ *
+ */
+public class Gemm {
+	// Depth of a block along the shared dimension, a KC x NC block of b stays in L2
+	private static final int KC = 256;
+	// Width of a block along the columns of b and c
+	private static final int NC = 512;
+
+	/**
+	 * c = a * b (or c += a * b when accumulate is set), a is m x k, b is k x
+	 * n and c is m x n, each stored row-major from the given offset with the
+	 * given row stride
+	 *
+	 * @param m
+	 * @param n
+	 * @param k
+	 * @param a
+	 * @param aOff
+	 * @param lda
+	 * @param b
+	 * @param bOff
+	 * @param ldb
+	 * @param c
+	 * @param cOff
+	 * @param ldc
+	 * @param accumulate
+	 */
+	public static void multiply(int m, int n, int k, double[] a, int aOff,
+			int lda, double[] b, int bOff, int ldb, double[] c, int cOff,
+			int ldc, boolean accumulate) {
+		gemm(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc, accumulate,
+				null, 0);
+	}
+
+	/**
+	 * c = sigmod(a * b + bias), row i of c gets bias[biasOff + i]. The bias
+	 * and the sigmoid are applied to each tile of c as its last block is
+	 * stored, so c is written once instead of once per pass
+	 *
+	 * @param m
+	 * @param n
+	 * @param k
+	 * @param a
+	 * @param aOff
+	 * @param lda
+	 * @param b
+	 * @param bOff
+	 * @param ldb
+	 * @param c
+	 * @param cOff
+	 * @param ldc
+	 * @param bias
+	 * @param biasOff
+	 */
+	public static void multiplySigmod(int m, int n, int k, double[] a,
+			int aOff, int lda, double[] b, int bOff, int ldb, double[] c,
+			int cOff, int ldc, double[] bias, int biasOff) {
+		gemm(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc, false, bias,
+				biasOff);
+	}
+
+	private static void gemm(int m, int n, int k, double[] a, int aOff,
+			int lda, double[] b, int bOff, int ldb, double[] c, int cOff,
+			int ldc, boolean accumulate, double[] bias, int biasOff) {
+		if (!accumulate) {
+			for (int i = 0; i < m; i++) {
+				int row = cOff + i * ldc;
+				for (int j = 0; j < n; j++)
+					c[row + j] = 0;
+			}
+		}
+		for (int kb = 0; kb < k; kb += KC) {
+			int kLen = Math.min(KC, k - kb);
+			// The epilogue only runs with the last block of the shared dimension
+			double[] epilogue = kb + kLen == k ? bias : null;
+			for (int jb = 0; jb < n; jb += NC) {
+				int nLen = Math.min(NC, n - jb);
+				if (Simd.ENABLED)
+					VectorKernels.block(m, nLen, kLen, a, aOff + kb, lda, b,
+							bOff + kb * ldb + jb, ldb, c, cOff + jb, ldc,
+							epilogue, biasOff);
+				else
+					block(m, nLen, kLen, a, aOff + kb, lda, b, bOff + kb * ldb
+							+ jb, ldb, c, cOff + jb, ldc, epilogue, biasOff);
+			}
+		}
+	}
+
+	/**
+	 * Multiply one block, walking c in 4 x 4 tiles that are held in registers
+	 * for the whole depth of the block. With a bias every element of c is
+	 * passed through sigmod(c + bias) right after it is final
+	 */
+	private static void block(int m, int n, int k, double[] a, int aOff,
+			int lda, double[] b, int bOff, int ldb, double[] c, int cOff,
+			int ldc, double[] bias, int biasOff) {
+		int m4 = m - m % 4;
+		int n4 = n - n % 4;
+		for (int i = 0; i < m4; i += 4) {
+			int a0 = aOff + i * lda;
+			int a1 = a0 + lda;
+			int a2 = a1 + lda;
+			int a3 = a2 + lda;
+			for (int j = 0; j < n4; j += 4) {
+				int c0 = cOff + i * ldc + j;
+				int c1 = c0 + ldc;
+				int c2 = c1 + ldc;
+				int c3 = c2 + ldc;
+				double c00 = c[c0], c01 = c[c0 + 1], c02 = c[c0 + 2], c03 = c[c0 + 3];
+				double c10 = c[c1], c11 = c[c1 + 1], c12 = c[c1 + 2], c13 = c[c1 + 3];
+				double c20 = c[c2], c21 = c[c2 + 1], c22 = c[c2 + 2], c23 = c[c2 + 3];
+				double c30 = c[c3], c31 = c[c3 + 1], c32 = c[c3 + 2], c33 = c[c3 + 3];
+				int bp = bOff + j;
+				for (int p = 0; p < k; p++, bp += ldb) {
+					double b0 = b[bp], b1 = b[bp + 1], b2 = b[bp + 2], b3 = b[bp + 3];
+					double av = a[a0 + p];
+					c00 += av * b0;
+					c01 += av * b1;
+					c02 += av * b2;
+					c03 += av * b3;
+					av = a[a1 + p];
+					c10 += av * b0;
+					c11 += av * b1;
+					c12 += av * b2;
+					c13 += av * b3;
+					av = a[a2 + p];
+					c20 += av * b0;
+					c21 += av * b1;
+					c22 += av * b2;
+					c23 += av * b3;
+					av = a[a3 + p];
+					c30 += av * b0;
+					c31 += av * b1;
+					c32 += av * b2;
+					c33 += av * b3;
+				}
+				if (bias != null) {
+					double s0 = bias[biasOff + i], s1 = bias[biasOff + i + 1];
+					double s2 = bias[biasOff + i + 2], s3 = bias[biasOff + i + 3];
+					c00 = Util.sigmod(c00 + s0); c01 = Util.sigmod(c01 + s0);
+					c02 = Util.sigmod(c02 + s0); c03 = Util.sigmod(c03 + s0);
+					c10 = Util.sigmod(c10 + s1); c11 = Util.sigmod(c11 + s1);
+					c12 = Util.sigmod(c12 + s1); c13 = Util.sigmod(c13 + s1);
+					c20 = Util.sigmod(c20 + s2); c21 = Util.sigmod(c21 + s2);
+					c22 = Util.sigmod(c22 + s2); c23 = Util.sigmod(c23 + s2);
+					c30 = Util.sigmod(c30 + s3); c31 = Util.sigmod(c31 + s3);
+					c32 = Util.sigmod(c32 + s3); c33 = Util.sigmod(c33 + s3);
+				}
+				c[c0] = c00; c[c0 + 1] = c01; c[c0 + 2] = c02; c[c0 + 3] = c03;
+				c[c1] = c10; c[c1 + 1] = c11; c[c1 + 2] = c12; c[c1 + 3] = c13;
+				c[c2] = c20; c[c2 + 1] = c21; c[c2 + 2] = c22; c[c2 + 3] = c23;
+				c[c3] = c30; c[c3 + 1] = c31; c[c3 + 2] = c32; c[c3 + 3] = c33;
+			}
+			// Remaining columns of these four rows
+			for (int j = n4; j < n; j++) {
+				edge(i, i + 4, j, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc,
+						bias, biasOff);
+			}
+		}
+		// Remaining rows
+		for (int i = m4; i < m; i++) {
+			int ai = aOff + i * lda;
+			int ci = cOff + i * ldc;
+			for (int p = 0; p < k; p++) {
+				double av = a[ai + p];
+				int bp = bOff + p * ldb;
+				for (int j = 0; j < n; j++)
+					c[ci + j] += av * b[bp + j];
+			}
+			if (bias != null) {
+				double s = bias[biasOff + i];
+				for (int j = 0; j < n; j++)
+					c[ci + j] = Util.sigmod(c[ci + j] + s);
+			}
+		}
+	}
+
+	private static void edge(int iStart, int iEnd, int j, int k, double[] a,
+			int aOff, int lda, double[] b, int bOff, int ldb, double[] c,
+			int cOff, int ldc, double[] bias, int biasOff) {
+		for (int i = iStart; i < iEnd; i++) {
+			int ai = aOff + i * lda;
+			double sum = c[cOff + i * ldc + j];
+			for (int p = 0; p < k; p++)
+				sum += a[ai + p] * b[bOff + p * ldb + j];
+			c[cOff + i * ldc + j] = bias == null ? sum : Util.sigmod(sum
+					+ bias[biasOff + i]);
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #multiply(int, int, int, double[], int, int, double[], int, int, double[], int, int, boolean)}
+	 *
+	 * @param m
+	 * @param n
+	 * @param k
+	 * @param a
+	 * @param aOff
+	 * @param lda
+	 * @param b
+	 * @param bOff
+	 * @param ldb
+	 * @param c
+	 * @param cOff
+	 * @param ldc
+	 * @param accumulate
+	 */
+	public static void multiply(int m, int n, int k, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float[] c, int cOff,
+			int ldc, boolean accumulate) {
+		gemm(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc, accumulate,
+				null, 0);
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #multiplySigmod(int, int, int, double[], int, int, double[], int, int, double[], int, int, double[], int)}
+	 *
+	 * @param m
+	 * @param n
+	 * @param k
+	 * @param a
+	 * @param aOff
+	 * @param lda
+	 * @param b
+	 * @param bOff
+	 * @param ldb
+	 * @param c
+	 * @param cOff
+	 * @param ldc
+	 * @param bias
+	 * @param biasOff
+	 */
+	public static void multiplySigmod(int m, int n, int k, float[] a,
+			int aOff, int lda, float[] b, int bOff, int ldb, float[] c,
+			int cOff, int ldc, double[] bias, int biasOff) {
+		gemm(m, n, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc, false, bias,
+				biasOff);
+	}
+
+	private static void gemm(int m, int n, int k, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float[] c, int cOff,
+			int ldc, boolean accumulate, double[] bias, int biasOff) {
+		if (!accumulate) {
+			for (int i = 0; i < m; i++) {
+				int row = cOff + i * ldc;
+				for (int j = 0; j < n; j++)
+					c[row + j] = 0;
+			}
+		}
+		for (int kb = 0; kb < k; kb += KC) {
+			int kLen = Math.min(KC, k - kb);
+			// The epilogue only runs with the last block of the shared dimension
+			double[] epilogue = kb + kLen == k ? bias : null;
+			for (int jb = 0; jb < n; jb += NC) {
+				int nLen = Math.min(NC, n - jb);
+				if (Simd.ENABLED)
+					VectorKernels.block(m, nLen, kLen, a, aOff + kb, lda, b,
+							bOff + kb * ldb + jb, ldb, c, cOff + jb, ldc,
+							epilogue, biasOff);
+				else
+					block(m, nLen, kLen, a, aOff + kb, lda, b, bOff + kb * ldb
+							+ jb, ldb, c, cOff + jb, ldc, epilogue, biasOff);
+			}
+		}
+	}
+
+	private static void block(int m, int n, int k, float[] a, int aOff,
+			int lda, float[] b, int bOff, int ldb, float[] c, int cOff,
+			int ldc, double[] bias, int biasOff) {
+		int m4 = m - m % 4;
+		int n4 = n - n % 4;
+		for (int i = 0; i < m4; i += 4) {
+			int a0 = aOff + i * lda;
+			int a1 = a0 + lda;
+			int a2 = a1 + lda;
+			int a3 = a2 + lda;
+			for (int j = 0; j < n4; j += 4) {
+				int c0 = cOff + i * ldc + j;
+				int c1 = c0 + ldc;
+				int c2 = c1 + ldc;
+				int c3 = c2 + ldc;
+				float c00 = c[c0], c01 = c[c0 + 1], c02 = c[c0 + 2], c03 = c[c0 + 3];
+				float c10 = c[c1], c11 = c[c1 + 1], c12 = c[c1 + 2], c13 = c[c1 + 3];
+				float c20 = c[c2], c21 = c[c2 + 1], c22 = c[c2 + 2], c23 = c[c2 + 3];
+				float c30 = c[c3], c31 = c[c3 + 1], c32 = c[c3 + 2], c33 = c[c3 + 3];
+				int bp = bOff + j;
+				for (int p = 0; p < k; p++, bp += ldb) {
+					float b0 = b[bp], b1 = b[bp + 1], b2 = b[bp + 2], b3 = b[bp + 3];
+					float av = a[a0 + p];
+					c00 += av * b0;
+					c01 += av * b1;
+					c02 += av * b2;
+					c03 += av * b3;
+					av = a[a1 + p];
+					c10 += av * b0;
+					c11 += av * b1;
+					c12 += av * b2;
+					c13 += av * b3;
+					av = a[a2 + p];
+					c20 += av * b0;
+					c21 += av * b1;
+					c22 += av * b2;
+					c23 += av * b3;
+					av = a[a3 + p];
+					c30 += av * b0;
+					c31 += av * b1;
+					c32 += av * b2;
+					c33 += av * b3;
+				}
+				if (bias != null) {
+					float s0 = (float) bias[biasOff + i], s1 = (float) bias[biasOff + i + 1];
+					float s2 = (float) bias[biasOff + i + 2], s3 = (float) bias[biasOff + i + 3];
+					c00 = Util.sigmod(c00 + s0); c01 = Util.sigmod(c01 + s0);
+					c02 = Util.sigmod(c02 + s0); c03 = Util.sigmod(c03 + s0);
+					c10 = Util.sigmod(c10 + s1); c11 = Util.sigmod(c11 + s1);
+					c12 = Util.sigmod(c12 + s1); c13 = Util.sigmod(c13 + s1);
+					c20 = Util.sigmod(c20 + s2); c21 = Util.sigmod(c21 + s2);
+					c22 = Util.sigmod(c22 + s2); c23 = Util.sigmod(c23 + s2);
+					c30 = Util.sigmod(c30 + s3); c31 = Util.sigmod(c31 + s3);
+					c32 = Util.sigmod(c32 + s3); c33 = Util.sigmod(c33 + s3);
+				}
+				c[c0] = c00; c[c0 + 1] = c01; c[c0 + 2] = c02; c[c0 + 3] = c03;
+				c[c1] = c10; c[c1 + 1] = c11; c[c1 + 2] = c12; c[c1 + 3] = c13;
+				c[c2] = c20; c[c2 + 1] = c21; c[c2 + 2] = c22; c[c2 + 3] = c23;
+				c[c3] = c30; c[c3 + 1] = c31; c[c3 + 2] = c32; c[c3 + 3] = c33;
+			}
+			// Remaining columns of these four rows
+			for (int j = n4; j < n; j++) {
+				edge(i, i + 4, j, k, a, aOff, lda, b, bOff, ldb, c, cOff, ldc,
+						bias, biasOff);
+			}
+		}
+		// Remaining rows
+		for (int i = m4; i < m; i++) {
+			int ai = aOff + i * lda;
+			int ci = cOff + i * ldc;
+			for (int p = 0; p < k; p++) {
+				float av = a[ai + p];
+				int bp = bOff + p * ldb;
+				for (int j = 0; j < n; j++)
+					c[ci + j] += av * b[bp + j];
+			}
+			if (bias != null) {
+				float s = (float) bias[biasOff + i];
+				for (int j = 0; j < n; j++)
+					c[ci + j] = Util.sigmod(c[ci + j] + s);
+			}
+		}
+	}
+
+	private static void edge(int iStart, int iEnd, int j, int k, float[] a,
+			int aOff, int lda, float[] b, int bOff, int ldb, float[] c,
+			int cOff, int ldc, double[] bias, int biasOff) {
+		for (int i = iStart; i < iEnd; i++) {
+			int ai = aOff + i * lda;
+			float sum = c[cOff + i * ldc + j];
+			for (int p = 0; p < k; p++)
+				sum += a[ai + p] * b[bOff + p * ldb + j];
+			c[cOff + i * ldc + j] = bias == null ? sum : Util.sigmod(sum
+					+ (float) bias[biasOff + i]);
+		}
+	}
+
+}
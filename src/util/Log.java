@@ -1,16 +1,171 @@
 package util;
 
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Asynchronous logger. A call only formats its line and puts it into a lock
+ * free ring buffer, a daemon thread writes the lines to the stream in
+ * batches, so logging threads never wait on the lock of the stream. When
+ * the buffer is full the callers wait for the writer instead of dropping
+ * lines. The buffer is drained at exit; call {@link #flush()} before
+ * writing to the stream directly to keep the order
+ *
+ */
 public class Log {
-	static PrintStream stream = System.out;
-	
-	public static void i(String tag,String msg){
-		stream.println(tag+"\t"+msg);
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final int CAPACITY = 1 << 13;
+	private static final int MASK = CAPACITY - 1;
+	// Most lines written by one write of the stream
+	private static final int BATCH = 512;
+	// Sleep of the writer when there is nothing to write
+	private static final long IDLE_NANOS = 1000000;
+
+	private static volatile PrintStream stream = System.out;
+	private static volatile Level level = Level.INFO;
+
+	// Lines at positions sequence & MASK, null once written
+	private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<String>(
+			CAPACITY);
+	// Next sequence to claim by a logging thread
+	private static final AtomicLong head = new AtomicLong();
+	// Next sequence to write, only advanced by the writer
+	private static volatile long tail;
+	private static final Thread writer;
+
+	static {
+		writer = new Thread("Log") {
+			@Override
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("Log flush") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	public static void i(String tag, String msg) {
+		log(Level.INFO, tag + "\t" + msg);
+	}
+
+	public static void i(String msg) {
+		log(Level.INFO, msg);
+	}
+
+	public static void d(String tag, String msg) {
+		log(Level.DEBUG, tag + "\t" + msg);
+	}
+
+	public static void w(String tag, String msg) {
+		log(Level.WARN, tag + "\t" + msg);
 	}
-	
-	public static void i(String msg){
-		stream.println(msg);
+
+	public static void e(String tag, String msg) {
+		log(Level.ERROR, tag + "\t" + msg);
+	}
+
+	/**
+	 * Log an error with the stack trace of e
+	 *
+	 * @param tag
+	 * @param e
+	 */
+	public static void e(String tag, Throwable e) {
+		if (Level.ERROR.compareTo(level) < 0)
+			return;
+		StringWriter trace = new StringWriter();
+		e.printStackTrace(new PrintWriter(trace));
+		String text = trace.toString();
+		// The writer ends every line itself
+		if (text.endsWith("\n"))
+			text = text.substring(0, text.length() - 1);
+		log(Level.ERROR, tag + "\t" + text);
+	}
+
+	/**
+	 * Lines below level are dropped, INFO by default
+	 *
+	 * @param level
+	 */
+	public static void setLevel(Level level) {
+		Log.level = level;
+	}
+
+	public static Level getLevel() {
+		return level;
 	}
 
+	/**
+	 * Write to stream instead of System.out, the lines already logged may
+	 * still go to the previous stream
+	 *
+	 * @param stream
+	 */
+	public static void setStream(PrintStream stream) {
+		Log.stream = stream;
+	}
+
+	private static void log(Level lineLevel, String line) {
+		if (lineLevel.compareTo(level) < 0)
+			return;
+		if (lineLevel != Level.INFO)
+			line = lineLevel + "\t" + line;
+		long seq = head.getAndIncrement();
+		// Full, wait for the writer to free the slot
+		while (seq - tail >= CAPACITY) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		ring.set((int) (seq & MASK), line);
+	}
+
+	/**
+	 * Wait until every line logged before the call is written
+	 */
+	public static void flush() {
+		long target = head.get();
+		while (tail < target && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(IDLE_NANOS / 10);
+		}
+	}
+
+	private static void write() {
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			long next = tail;
+			int n = 0;
+			String line;
+			// A claimed slot may still be empty, its line is taken next round
+			while (n < BATCH && (line = ring.get((int) (next & MASK))) != null) {
+				sb.append(line).append('\n');
+				ring.set((int) (next & MASK), null);
+				next++;
+				n++;
+			}
+			if (n == 0) {
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+			PrintStream out = stream;
+			out.print(sb);
+			out.flush();
+			sb.setLength(0);
+			tail = next;
+		}
+	}
 }
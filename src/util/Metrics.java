@@ -0,0 +1,577 @@
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Registry of counters, gauges and histograms of one job. Updates are lock
+ * free, so the training threads can record on every batch. The values are
+ * pushed periodically to sinks, a rolling file or listeners in the process,
+ * and can be scraped over HTTP in the Prometheus text format; every metric
+ * carries the job label so that concurrent jobs can be told apart
+ *
+ */
+public class Metrics {
+
+	/**
+	 * Receives the metrics periodically, see {@link Metrics#start(long)}
+	 */
+	public interface Sink {
+		public void report(Metrics metrics);
+	}
+
+	private static abstract class Metric {
+		final String name;
+		final String help;
+
+		Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		abstract String type();
+	}
+
+	/**
+	 * A count that only goes up, added to or read from a supplier when
+	 * reported
+	 */
+	public static class Counter extends Metric {
+		private final LongAdder count = new LongAdder();
+		private final DoubleSupplier supplier;
+
+		Counter(String name, String help, DoubleSupplier supplier) {
+			super(name, help);
+			this.supplier = supplier;
+		}
+
+		public void inc() {
+			count.increment();
+		}
+
+		public void add(long n) {
+			count.add(n);
+		}
+
+		public double get() {
+			return supplier != null ? supplier.getAsDouble() : count.sum();
+		}
+
+		@Override
+		String type() {
+			return "counter";
+		}
+	}
+
+	/**
+	 * A value that is set, or read from a supplier when reported
+	 */
+	public static class Gauge extends Metric {
+		private final AtomicLong bits = new AtomicLong();
+		private final DoubleSupplier supplier;
+
+		Gauge(String name, String help, DoubleSupplier supplier) {
+			super(name, help);
+			this.supplier = supplier;
+		}
+
+		public void set(double value) {
+			bits.set(Double.doubleToRawLongBits(value));
+		}
+
+		public double get() {
+			return supplier != null ? supplier.getAsDouble() : Double
+					.longBitsToDouble(bits.get());
+		}
+
+		@Override
+		String type() {
+			return "gauge";
+		}
+	}
+
+	/**
+	 * Counts of observations below fixed bounds, with their sum
+	 */
+	public static class Histogram extends Metric {
+		private final double[] bounds;
+		// One more bucket for the observations above the last bound
+		private final LongAdder[] buckets;
+		private final LongAdder count = new LongAdder();
+		private final AtomicLong sumBits = new AtomicLong();
+
+		Histogram(String name, String help, double[] bounds) {
+			super(name, help);
+			for (int i = 1; i < bounds.length; i++)
+				if (bounds[i] <= bounds[i - 1])
+					throw new RuntimeException("Histogram bounds of " + name
+							+ " are not increasing");
+			this.bounds = bounds.clone();
+			buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		public void observe(double value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i])
+				i++;
+			buckets[i].increment();
+			count.increment();
+			long old;
+			do {
+				old = sumBits.get();
+			} while (!sumBits.compareAndSet(old, Double.doubleToRawLongBits(Double
+					.longBitsToDouble(old) + value)));
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getSum() {
+			return Double.longBitsToDouble(sumBits.get());
+		}
+
+		/**
+		 * The upper bound of the bucket holding quantile q, the last bound
+		 * when it falls above all of them
+		 *
+		 * @param q
+		 *            In [0, 1]
+		 * @return NaN without observations
+		 */
+		public double quantile(double q) {
+			long total = count.sum();
+			if (total == 0)
+				return Double.NaN;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				seen += buckets[i].sum();
+				if (seen >= rank)
+					return bounds[i];
+			}
+			return bounds[bounds.length - 1];
+		}
+
+		@Override
+		String type() {
+			return "histogram";
+		}
+	}
+
+	/**
+	 * Bounds from start growing by factor, count of them
+	 *
+	 * @param start
+	 * @param factor
+	 * @param count
+	 * @return
+	 */
+	public static double[] exponentialBounds(double start, double factor,
+			int count) {
+		double[] bounds = new double[count];
+		for (int i = 0; i < count; i++)
+			bounds[i] = start * Math.pow(factor, i);
+		return bounds;
+	}
+
+	private final String job;
+	private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+	private final List<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+	private Thread reporter;
+	private HttpServer server;
+	// Feeds the GC pause histogram, null until the GC metrics are registered
+	private NotificationListener gcListener;
+
+	/**
+	 *
+	 * @param job
+	 *            Value of the job label of every metric
+	 */
+	public Metrics(String job) {
+		this.job = job;
+	}
+
+	public String getJob() {
+		return job;
+	}
+
+	public synchronized Counter counter(String name, String help) {
+		return register(new Counter(name, help, null), Counter.class);
+	}
+
+	/**
+	 * A counter whose value is read from supplier when reported, for totals
+	 * kept elsewhere
+	 *
+	 * @param name
+	 * @param help
+	 * @param supplier
+	 *            Must never decrease
+	 * @return
+	 */
+	public synchronized Counter counter(String name, String help,
+			DoubleSupplier supplier) {
+		return register(new Counter(name, help, supplier), Counter.class);
+	}
+
+	public synchronized Gauge gauge(String name, String help) {
+		return register(new Gauge(name, help, null), Gauge.class);
+	}
+
+	/**
+	 * A gauge whose value is read from supplier when reported
+	 *
+	 * @param name
+	 * @param help
+	 * @param supplier
+	 * @return
+	 */
+	public synchronized Gauge gauge(String name, String help,
+			DoubleSupplier supplier) {
+		return register(new Gauge(name, help, supplier), Gauge.class);
+	}
+
+	public synchronized Histogram histogram(String name, String help,
+			double[] bounds) {
+		return register(new Histogram(name, help, bounds), Histogram.class);
+	}
+
+	/**
+	 * Register the garbage collection metrics of the JVM, once per
+	 * registry: the total time and number of collections as counters, and
+	 * the duration of every collection pause in a histogram fed by the
+	 * notifications of the collectors until {@link #stop()}
+	 */
+	public synchronized void registerGcMetrics() {
+		if (gcListener != null)
+			return;
+		final List<GarbageCollectorMXBean> collectors = ManagementFactory
+				.getGarbageCollectorMXBeans();
+		counter("jvm_gc_seconds_total", "Total time of garbage collection",
+				new DoubleSupplier() {
+
+					@Override
+					public double getAsDouble() {
+						long millis = 0;
+						for (GarbageCollectorMXBean collector : collectors)
+							millis += Math.max(0, collector.getCollectionTime());
+						return millis / 1000.0;
+					}
+				});
+		counter("jvm_gc_collections_total", "Number of garbage collections",
+				new DoubleSupplier() {
+
+					@Override
+					public double getAsDouble() {
+						long count = 0;
+						for (GarbageCollectorMXBean collector : collectors)
+							count += Math.max(0, collector.getCollectionCount());
+						return count;
+					}
+				});
+		final Histogram pauses = histogram("jvm_gc_pause_seconds",
+				"Duration of every garbage collection pause",
+				exponentialBounds(0.001, 2, 14));
+		gcListener = new NotificationListener() {
+
+			@Override
+			public void handleNotification(Notification notification,
+					Object handback) {
+				if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+						.equals(notification.getType()))
+					return;
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+						.from((CompositeData) notification.getUserData());
+				// The concurrent cycles of ZGC and Shenandoah are not pauses, their pauses come separately
+				if (info.getGcAction().endsWith("cycle"))
+					return;
+				pauses.observe(info.getGcInfo().getDuration() / 1000.0);
+			}
+		};
+		for (GarbageCollectorMXBean collector : collectors)
+			if (collector instanceof NotificationEmitter)
+				((NotificationEmitter) collector).addNotificationListener(
+						gcListener, null, null);
+	}
+
+	// The metric already registered under the name, or metric
+	private <T extends Metric> T register(T metric, Class<T> type) {
+		Metric old = metrics.get(metric.name);
+		if (old == null) {
+			metrics.put(metric.name, metric);
+			return metric;
+		}
+		if (!type.isInstance(old))
+			throw new RuntimeException(metric.name + " is already a "
+					+ old.type());
+		return type.cast(old);
+	}
+
+	private synchronized List<Metric> metrics() {
+		return new ArrayList<Metric>(metrics.values());
+	}
+
+	/**
+	 * The current values by name; a histogram gives its _count, _sum, _p50
+	 * and _p99
+	 *
+	 * @return
+	 */
+	public Map<String, Double> snapshot() {
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		for (Metric metric : metrics()) {
+			if (metric instanceof Counter)
+				values.put(metric.name, ((Counter) metric).get());
+			else if (metric instanceof Gauge)
+				values.put(metric.name, ((Gauge) metric).get());
+			else {
+				Histogram histogram = (Histogram) metric;
+				values.put(metric.name + "_count",
+						(double) histogram.getCount());
+				values.put(metric.name + "_sum", histogram.getSum());
+				values.put(metric.name + "_p50", histogram.quantile(0.5));
+				values.put(metric.name + "_p99", histogram.quantile(0.99));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * All metrics in the Prometheus text exposition format
+	 *
+	 * @return
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		String label = "job=\"" + job.replace("\\", "\\\\").replace("\"", "\\\"")
+				+ "\"";
+		for (Metric metric : metrics()) {
+			sb.append("# HELP ").append(metric.name).append(' ')
+					.append(metric.help).append('\n');
+			sb.append("# TYPE ").append(metric.name).append(' ')
+					.append(metric.type()).append('\n');
+			if (metric instanceof Counter)
+				sample(sb, metric.name, label, ((Counter) metric).get());
+			else if (metric instanceof Gauge)
+				sample(sb, metric.name, label, ((Gauge) metric).get());
+			else {
+				Histogram histogram = (Histogram) metric;
+				long cumulative = 0;
+				for (int i = 0; i <= histogram.bounds.length; i++) {
+					cumulative += histogram.buckets[i].sum();
+					String le = i < histogram.bounds.length ? Double
+							.toString(histogram.bounds[i]) : "+Inf";
+					sample(sb, metric.name + "_bucket", label + ",le=\"" + le
+							+ "\"", cumulative);
+				}
+				sample(sb, metric.name + "_sum", label, histogram.getSum());
+				sample(sb, metric.name + "_count", label, histogram.getCount());
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels,
+			double value) {
+		sb.append(name).append('{').append(labels).append("} ");
+		if (value == (long) value)
+			sb.append((long) value);
+		else
+			sb.append(value);
+		sb.append('\n');
+	}
+
+	public void addSink(Sink sink) {
+		sinks.add(sink);
+	}
+
+	public void removeSink(Sink sink) {
+		sinks.remove(sink);
+	}
+
+	/**
+	 * Report to every sink now
+	 */
+	public void report() {
+		for (Sink sink : sinks) {
+			try {
+				sink.report(this);
+			} catch (RuntimeException e) {
+				Log.i("metrics", "sink failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Report to the sinks every given number of seconds on a daemon thread,
+	 * and once more when stopped
+	 *
+	 * @param everySeconds
+	 */
+	public synchronized void start(final long everySeconds) {
+		if (everySeconds < 1)
+			throw new RuntimeException("Bad report interval " + everySeconds
+					+ "s");
+		if (reporter != null)
+			return;
+		reporter = new Thread("Metrics") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(everySeconds * 1000);
+						report();
+					}
+				} catch (InterruptedException e) {
+					report();
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Stop the reporting thread, the HTTP endpoint and the recording of GC
+	 * pauses
+	 */
+	public void stop() {
+		Thread reporter;
+		HttpServer server;
+		// Joined without the lock, the last report needs it
+		synchronized (this) {
+			reporter = this.reporter;
+			server = this.server;
+			this.reporter = null;
+			this.server = null;
+			if (gcListener != null) {
+				for (GarbageCollectorMXBean collector : ManagementFactory
+						.getGarbageCollectorMXBeans()) {
+					try {
+						if (collector instanceof NotificationEmitter)
+							((NotificationEmitter) collector)
+									.removeNotificationListener(gcListener);
+					} catch (ListenerNotFoundException e) {
+						// Not registered with this collector
+					}
+				}
+				// The histogram stays registered, a new listener feeds it again
+				gcListener = null;
+			}
+		}
+		if (reporter != null) {
+			reporter.interrupt();
+			try {
+				reporter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (server != null)
+			server.stop(0);
+	}
+
+	/**
+	 * Serve the metrics at http://localhost:port/metrics in the Prometheus
+	 * text format, on the loopback interface only
+	 *
+	 * @param port
+	 *            0 for any free port
+	 * @return The port
+	 * @throws IOException
+	 */
+	public synchronized int serve(int port) throws IOException {
+		if (server != null)
+			throw new RuntimeException("Already serving on port "
+					+ server.getAddress().getPort());
+		server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * A sink appending one line per metric and report, "time name value"
+	 * with the time in milliseconds, to a file that is rolled over to
+	 * fileName.1 once it exceeds maxBytes
+	 *
+	 * @param fileName
+	 * @param maxBytes
+	 * @return
+	 */
+	public static Sink fileSink(final String fileName, final long maxBytes) {
+		return new Sink() {
+
+			@Override
+			public synchronized void report(Metrics metrics) {
+				File file = new File(fileName);
+				if (file.length() > maxBytes) {
+					File old = new File(fileName + ".1");
+					old.delete();
+					file.renameTo(old);
+				}
+				long time = System.currentTimeMillis();
+				try {
+					PrintWriter writer = new PrintWriter(new FileWriter(file,
+							true));
+					try {
+						for (Map.Entry<String, Double> entry : metrics
+								.snapshot().entrySet())
+							writer.println(time + " " + entry.getKey() + " "
+									+ entry.getValue());
+					} finally {
+						writer.close();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,117 @@
+package util;
+
+/**
+ * Implementation of the sigmoid 1 / (1 + e^-x) used by every convolution and
+ * output layer, chosen with {@link Util#setSigmod(Sigmoid)}. {@link #EXACT}
+ * is the default, {@link #RATIONAL} and {@link #lookupTable(int, double)}
+ * trade a bounded error for speed. See {@link TestSigmoid} for the error and
+ * the cost of each
+ *
+ *
+ */
+public abstract class Sigmoid {
+
+	/**
+	 * 1 / (1 + Math.exp(-x))
+	 */
+	public static final Sigmoid EXACT = new Sigmoid() {
+		@Override
+		public double value(double x) {
+			return 1 / (1 + Math.exp(-x));
+		}
+
+		@Override
+		public String toString() {
+			return "exact";
+		}
+	};
+
+	/**
+	 * 0.5 + 0.5 * tanh(x / 2) with tanh replaced by its (7, 6) Pade
+	 * approximant, which reaches 1 at |x / 2| = 4.97 and is clamped there.
+	 * Absolute error below 5e-5, only multiplications and one division, so
+	 * the vector kernels compute it in registers as well
+	 */
+	public static final Sigmoid RATIONAL = new Sigmoid() {
+		@Override
+		public double value(double x) {
+			double y = x * 0.5;
+			if (y > CLAMP)
+				return 1;
+			if (y < -CLAMP)
+				return 0;
+			double y2 = y * y;
+			double t = y * (135135 + y2 * (17325 + y2 * (378 + y2)))
+					/ (135135 + y2 * (62370 + y2 * (3150 + 28 * y2)));
+			return 0.5 + 0.5 * t;
+		}
+
+		@Override
+		public String toString() {
+			return "rational";
+		}
+	};
+
+	// Where the Pade approximant of tanh reaches 1
+	static final double CLAMP = 4.97;
+
+	/**
+	 * The sigmoid of x
+	 *
+	 * @param x
+	 * @return
+	 */
+	public abstract double value(double x);
+
+	/**
+	 * The sigmoid of x in single precision
+	 *
+	 * @param x
+	 * @return
+	 */
+	public float value(float x) {
+		return (float) value((double) x);
+	}
+
+	/**
+	 * Sigmoid interpolated linearly between size + 1 samples on [-range,
+	 * range] and saturated outside. The interpolation error is at most h^2 /
+	 * 8 * max|sigmoid''| = 0.012 * h^2 with h = 2 * range / size, plus
+	 * 1 / (1 + e^range) at the ends. lookupTable(4096, 16) stays below 1e-6
+	 *
+	 * @param size
+	 *            Number of intervals
+	 * @param range
+	 * @return
+	 */
+	public static Sigmoid lookupTable(final int size, final double range) {
+		if (size < 2 || range <= 0)
+			throw new RuntimeException("Bad sigmoid table " + size + " on "
+					+ range);
+		final double[] table = new double[size + 2];
+		final double step = 2 * range / size;
+		for (int i = 0; i <= size; i++)
+			table[i] = EXACT.value(-range + i * step);
+		// Guard so that x == range can read table[i + 1]
+		table[size + 1] = table[size];
+		final double scale = 1 / step;
+		return new Sigmoid() {
+			@Override
+			public double value(double x) {
+				if (x <= -range)
+					return table[0];
+				if (x >= range)
+					return table[size];
+				double pos = (x + range) * scale;
+				int i = (int) pos;
+				double frac = pos - i;
+				return table[i] + frac * (table[i + 1] - table[i]);
+			}
+
+			@Override
+			public String toString() {
+				return "table(" + size + ", " + range + ")";
+			}
+		};
+	}
+}
@@ -0,0 +1,33 @@
+package util;
+
+/**
+ * Decides once whether the Vector API kernels are used. They need the
+ * jdk.incubator.vector module at run time (--add-modules
+ * jdk.incubator.vector) and hardware with vector registers, otherwise the
+ * scalar code is used. -Dcnn.simd=false forces the scalar code
+ *
+ *
+ */
+public final class Simd {
+
+	/**
+	 * Whether the vector kernels are in use, final so the JIT drops the
+	 * branch that is not taken
+	 */
+	public static final boolean ENABLED = detect();
+
+	private Simd() {
+	}
+
+	private static boolean detect() {
+		if (!Boolean.parseBoolean(System.getProperty("cnn.simd", "true")))
+			return false;
+		try {
+			// A single lane means the API would run its slow generic code
+			return VectorKernels.lanes() > 1;
+		} catch (LinkageError e) {
+			// The module is not in the boot layer
+			return false;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Multi-dimensional array stored in a single contiguous double[] with shape
+ * and stride metadata. Indexing the leading dimensions gives a view that
+ * shares the storage, so a batch of maps, one record of it and one map of
+ * that record are all backed by the same array
+ *
+ *
+ */
+public class Tensor implements Serializable {
+
+	private static final long serialVersionUID = 6135212496361823840L;
+	private final double[] data;
+	// Position of element [0]...[0] in data
+	private final int offset;
+	private final int[] shape;
+	private final int[] strides;
+	// Number of elements, product of the shape
+	private final int size;
+
+	/**
+	 * Allocate a zero filled row-major tensor
+	 *
+	 * @param shape
+	 */
+	public Tensor(int... shape) {
+		this(new double[product(shape, 0)], 0, shape.clone(),
+				rowMajorStrides(shape));
+	}
+
+	private Tensor(double[] data, int offset, int[] shape, int[] strides) {
+		this.data = data;
+		this.offset = offset;
+		this.shape = shape;
+		this.strides = strides;
+		this.size = product(shape, 0);
+	}
+
+	private static int product(int[] shape, int from) {
+		int p = 1;
+		for (int i = from; i < shape.length; i++)
+			p *= shape[i];
+		return p;
+	}
+
+	private static int[] rowMajorStrides(int[] shape) {
+		int[] strides = new int[shape.length];
+		int stride = 1;
+		for (int i = shape.length - 1; i >= 0; i--) {
+			strides[i] = stride;
+			stride *= shape[i];
+		}
+		return strides;
+	}
+
+	/**
+	 * Get the view obtained by fixing the leading dimensions to index, the
+	 * view shares the storage of this tensor
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Tensor view(int... index) {
+		if (index.length > shape.length)
+			throw new RuntimeException("Too many indices " + index.length
+					+ " for a tensor of rank " + shape.length);
+		int off = offset;
+		for (int i = 0; i < index.length; i++) {
+			if (index[i] < 0 || index[i] >= shape[i])
+				throw new IndexOutOfBoundsException("index " + index[i]
+						+ " out of dimension " + shape[i]);
+			off += index[i] * strides[i];
+		}
+		return new Tensor(data, off, Arrays.copyOfRange(shape, index.length,
+				shape.length), Arrays.copyOfRange(strides, index.length,
+				strides.length));
+	}
+
+	/**
+	 * Same as {@link #offset(int...)} without the varargs array
+	 *
+	 * @param i
+	 * @return
+	 */
+	public int offset(int i) {
+		return offset + i * strides[0];
+	}
+
+	/**
+	 * Same as {@link #offset(int...)} without the varargs array
+	 *
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public int offset(int i, int j) {
+		return offset + i * strides[0] + j * strides[1];
+	}
+
+	/**
+	 * Get the offset of the element at the given leading indices in
+	 * {@link #getData()}, without creating a view
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int offset(int... index) {
+		int off = offset;
+		for (int i = 0; i < index.length; i++)
+			off += index[i] * strides[i];
+		return off;
+	}
+
+	/**
+	 * The backing array, shared with every view. Elements of this tensor are
+	 * contiguous from {@link #getOffset()} when it is row-major
+	 *
+	 * @return
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getRank() {
+		return shape.length;
+	}
+
+	public int getShape(int dim) {
+		return shape[dim];
+	}
+
+	public int getStride(int dim) {
+		return strides[dim];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get an element of a matrix (rank 2 tensor)
+	 *
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public double get(int i, int j) {
+		return data[offset + i * strides[0] + j * strides[1]];
+	}
+
+	/**
+	 * Set an element of a matrix (rank 2 tensor)
+	 *
+	 * @param i
+	 * @param j
+	 * @param value
+	 */
+	public void set(int i, int j, double value) {
+		data[offset + i * strides[0] + j * strides[1]] = value;
+	}
+
+	/**
+	 * Set every element to value
+	 *
+	 * @param value
+	 */
+	public void fill(double value) {
+		Arrays.fill(data, offset, offset + size, value);
+	}
+
+	/**
+	 * Copy a matrix into this matrix (rank 2 tensor), the sizes must agree
+	 *
+	 * @param matrix
+	 */
+	public void copyFrom(double[][] matrix) {
+		if (matrix.length != shape[0] || matrix[0].length != shape[1])
+			throw new RuntimeException("Matrix size " + matrix.length + "x"
+					+ matrix[0].length + " does not match the tensor "
+					+ Arrays.toString(shape));
+		for (int i = 0; i < shape[0]; i++)
+			for (int j = 0; j < shape[1]; j++)
+				set(i, j, matrix[i][j]);
+	}
+
+	/**
+	 * Copy this matrix (rank 2 tensor) into a new double[][]
+	 *
+	 * @return
+	 */
+	public double[][] toMatrix() {
+		double[][] matrix = new double[shape[0]][shape[1]];
+		for (int i = 0; i < shape[0]; i++)
+			for (int j = 0; j < shape[1]; j++)
+				matrix[i][j] = get(i, j);
+		return matrix;
+	}
+
+	/**
+	 * Sum of all elements of a row-major tensor
+	 *
+	 * @return
+	 */
+	public double sum() {
+		double sum = 0.0;
+		for (int i = offset; i < offset + size; i++)
+			sum += data[i];
+		return sum;
+	}
+
+	public String toString() {
+		return "Tensor" + Arrays.toString(shape);
+	}
+}
@@ -0,0 +1,65 @@
+package util;
+
+import java.util.Random;
+
+import util.TimedTest.TestTask;
+
+/**
+ * Accuracy and speed of the sigmoid implementations: the largest absolute
+ * error against 1 / (1 + Math.exp(-x)) on [-20, 20], and the time of 100
+ * sweeps over a million activations distributed like the inputs of a layer
+ *
+ *
+ */
+public class TestSigmoid {
+	private static final int N = 1000000;
+	private static final int REPEAT = 100;
+	// Keeps the JIT from dropping the sweeps
+	private static double sink;
+
+	private static double maxError(Sigmoid sigmoid) {
+		double max = 0;
+		for (int i = -200000; i <= 200000; i++) {
+			double x = i / 10000.0;
+			max = Math.max(max, Math.abs(sigmoid.value(x) - Sigmoid.EXACT.value(x)));
+		}
+		return max;
+	}
+
+	public static void main(String[] args) {
+		final double[] xs = new double[N];
+		Random random = new Random(1);
+		for (int i = 0; i < N; i++)
+			xs[i] = random.nextGaussian() * 4;
+		Sigmoid pow = new Sigmoid() {
+			@Override
+			public double value(double x) {
+				return 1 / (1 + Math.pow(Math.E, -x));
+			}
+
+			@Override
+			public String toString() {
+				return "pow";
+			}
+		};
+		Sigmoid[] sigmoids = { pow, Sigmoid.EXACT, Sigmoid.RATIONAL,
+				Sigmoid.lookupTable(1024, 16), Sigmoid.lookupTable(4096, 16) };
+		for (final Sigmoid sigmoid : sigmoids) {
+			Log.i(sigmoid.toString(), "max error " + maxError(sigmoid));
+			TestTask sweep = new TestTask() {
+
+				@Override
+				public void process() {
+					double sum = 0;
+					for (int i = 0; i < N; i++)
+						sum += sigmoid.value(xs[i]);
+					sink += sum;
+				}
+			};
+			// Warm up, then time
+			new TimedTest(sweep, REPEAT / 10).test();
+			new TimedTest(sweep, REPEAT).test();
+		}
+		Log.i("sink", sink + "");
+	}
+}
@@ -9,6 +9,8 @@ import CNN.Layer.Size;
 import util.TimedTest.TestTask;
 
 public class Util {
+	// Sigmoid of every convolution and output layer
+	private static Sigmoid sigmoid = Sigmoid.EXACT;
 
 	/**
 	 * The operation on each element when the matrix corresponds to the element multiplication
@@ -108,26 +110,27 @@ public class Util {
 	 * @param matrix
 	 */
 	public static double[][] rot180(double[][] matrix) {
-		matrix = cloneMatrix(matrix);
+		return rot180(matrix, new double[matrix.length][matrix[0].length]);
+	}
+
+	/**
+	 * Rotate the matrix 180 degrees into outMatrix, which must have the same
+	 * size and must not be the matrix itself
+	 * 
+	 * @param matrix
+	 * @param outMatrix
+	 * @return outMatrix
+	 */
+	public static double[][] rot180(final double[][] matrix,
+			final double[][] outMatrix) {
 		int m = matrix.length;
 		int n = matrix[0].length;
-		// Exchange by column symmetry
 		for (int i = 0; i < m; i++) {
-			for (int j = 0; j < n / 2; j++) {
-				double tmp = matrix[i][j];
-				matrix[i][j] = matrix[i][n - 1 - j];
-				matrix[i][n - 1 - j] = tmp;
-			}
-		}
-		// Exchange by line symmetry
-		for (int j = 0; j < n; j++) {
-			for (int i = 0; i < m / 2; i++) {
-				double tmp = matrix[i][j];
-				matrix[i][j] = matrix[m - 1 - i][j];
-				matrix[m - 1 - i][j] = tmp;
+			for (int j = 0; j < n; j++) {
+				outMatrix[m - 1 - i][n - 1 - j] = matrix[i][j];
 			}
 		}
-		return matrix;
+		return outMatrix;
 	}
 
 	private static Random r = new Random(2);
@@ -173,7 +176,9 @@ public class Util {
 	}
 
 	/**
-	 * Randomly arranged samples, randomly selected batchSize [0, size) of the book
+	 * Randomly arranged samples, randomly selected batchSize [0, size) of the book.
+	 * Batches drawn this way sample the dataset with replacement, training
+	 * uses a {@link dataset.EpochShuffler} instead
 	 * 
 	 * @param size
 	 * @param batchSize
@@ -198,15 +203,20 @@ public class Util {
 	 * @return
 	 */
 	public static double[][] cloneMatrix(final double[][] matrix) {
+		return cloneMatrix(matrix, new double[matrix.length][matrix[0].length]);
+	}
 
-		final int m = matrix.length;
-		int n = matrix[0].length;
-		final double[][] outMatrix = new double[m][n];
-
-		for (int i = 0; i < m; i++) {
-			for (int j = 0; j < n; j++) {
-				outMatrix[i][j] = matrix[i][j];
-			}
+	/**
+	 * Copy matrix into outMatrix of the same size
+	 * 
+	 * @param matrix
+	 * @param outMatrix
+	 * @return outMatrix
+	 */
+	public static double[][] cloneMatrix(final double[][] matrix,
+			final double[][] outMatrix) {
+		for (int i = 0; i < matrix.length; i++) {
+			System.arraycopy(matrix[i], 0, outMatrix[i], 0, matrix[i].length);
 		}
 		return outMatrix;
 	}
@@ -274,9 +284,21 @@ public class Util {
 	 * @return
 	 */
 	public static double[][] kronecker(final double[][] matrix, final Size scale) {
+		return kronecker(matrix, scale, new double[matrix.length * scale.x][matrix[0].length * scale.y]);
+	}
+
+	/**
+	 * Kronecker product into outMatrix of size (m * scale.x) x (n * scale.y)
+	 * 
+	 * @param matrix
+	 * @param scale
+	 * @param outMatrix
+	 * @return outMatrix
+	 */
+	public static double[][] kronecker(final double[][] matrix,
+			final Size scale, final double[][] outMatrix) {
 		final int m = matrix.length;
 		int n = matrix[0].length;
-		final double[][] outMatrix = new double[m * scale.x][n * scale.y];
 
 		for (int i = 0; i < m; i++) {
 			for (int j = 0; j < n; j++) {
@@ -299,11 +321,23 @@ public class Util {
 	 */
 	public static double[][] scaleMatrix(final double[][] matrix,
 			final Size scale) {
+		return scaleMatrix(matrix, scale, new double[matrix.length / scale.x][matrix[0].length / scale.y]);
+	}
+
+	/**
+	 * Mean reduction into outMatrix of size (m / scale.x) x (n / scale.y)
+	 * 
+	 * @param matrix
+	 * @param scale
+	 * @param outMatrix
+	 * @return outMatrix
+	 */
+	public static double[][] scaleMatrix(final double[][] matrix,
+			final Size scale, final double[][] outMatrix) {
 		int m = matrix.length;
 		int n = matrix[0].length;
 		final int sm = m / scale.x;
 		final int sn = n / scale.y;
-		final double[][] outMatrix = new double[sm][sn];
 		if (sm * scale.x != m || sn * scale.y != n)
 			throw new RuntimeException("scale不能整除matrix");
 		final int size = scale.x * scale.y;
@@ -330,18 +364,42 @@ public class Util {
 	 */
 	public static double[][] convnFull(double[][] matrix,
 			final double[][] kernel) {
+		return convnFull(matrix, kernel, new double[matrix.length
+				+ kernel.length - 1][matrix[0].length + kernel[0].length - 1]);
+	}
+
+	/**
+	 * Full mode convolution into outMatrix of size (m + km - 1) x (n + kn -
+	 * 1), the zero border is skipped instead of padding a copy of the matrix
+	 * 
+	 * @param matrix
+	 * @param kernel
+	 * @param outMatrix
+	 * @return outMatrix
+	 */
+	public static double[][] convnFull(final double[][] matrix,
+			final double[][] kernel, final double[][] outMatrix) {
 		int m = matrix.length;
 		int n = matrix[0].length;
 		final int km = kernel.length;
 		final int kn = kernel[0].length;
-		// 扩展矩阵
-		final double[][] extendMatrix = new double[m + 2 * (km - 1)][n + 2
-				* (kn - 1)];
-		for (int i = 0; i < m; i++) {
-			for (int j = 0; j < n; j++)
-				extendMatrix[i + km - 1][j + kn - 1] = matrix[i][j];
+		for (int i = 0; i < m + km - 1; i++) {
+			// Rows of the kernel that overlap the matrix
+			int kiStart = Math.max(0, km - 1 - i);
+			int kiEnd = Math.min(km, m + km - 1 - i);
+			for (int j = 0; j < n + kn - 1; j++) {
+				int kjStart = Math.max(0, kn - 1 - j);
+				int kjEnd = Math.min(kn, n + kn - 1 - j);
+				double sum = 0.0;
+				for (int ki = kiStart; ki < kiEnd; ki++) {
+					double[] row = matrix[i + ki - km + 1];
+					for (int kj = kjStart; kj < kjEnd; kj++)
+						sum += row[j + kj - kn + 1] * kernel[ki][kj];
+				}
+				outMatrix[i][j] = sum;
+			}
 		}
-		return convnValid(extendMatrix, kernel);
+		return outMatrix;
 	}
 
 	/**
@@ -353,6 +411,21 @@ public class Util {
 	 */
 	public static double[][] convnValid(final double[][] matrix,
 			double[][] kernel) {
+		return convnValid(matrix, kernel, new double[matrix.length
+				- kernel.length + 1][matrix[0].length - kernel[0].length + 1]);
+	}
+
+	/**
+	 * Valid mode convolution into outMatrix of size (m - km + 1) x (n - kn +
+	 * 1)
+	 * 
+	 * @param matrix
+	 * @param kernel
+	 * @param outMatrix
+	 * @return outMatrix
+	 */
+	public static double[][] convnValid(final double[][] matrix,
+			final double[][] kernel, final double[][] outMatrix) {
 		//kernel = rot180(kernel);
 		int m = matrix.length;
 		int n = matrix[0].length;
@@ -362,8 +435,6 @@ public class Util {
 		int kns = n - kn + 1;
 		// 需要做卷积的行数
 		final int kms = m - km + 1;
-		// 结果矩阵
-		final double[][] outMatrix = new double[kms][kns];
 
 		for (int i = 0; i < kms; i++) {
 			for (int j = 0; j < kns; j++) {
@@ -380,6 +451,216 @@ public class Util {
 
 	}
 
+	/**
+	 * Valid mode convolution on flat row-major storage, the m x n matrix at
+	 * mOff with the km x kn kernel at kOff, written (or added when accumulate
+	 * is set) into the (m - km + 1) x (n - kn + 1) matrix at outOff
+	 * 
+	 * @param matrix
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param kernel
+	 * @param kOff
+	 * @param km
+	 * @param kn
+	 * @param out
+	 * @param outOff
+	 * @param accumulate
+	 */
+	public static void convnValid(final double[] matrix, int mOff, int m,
+			int n, final double[] kernel, int kOff, int km, int kn,
+			final double[] out, int outOff, boolean accumulate) {
+		final int kms = m - km + 1;
+		final int kns = n - kn + 1;
+		for (int i = 0; i < kms; i++) {
+			int o = outOff + i * kns;
+			for (int j = 0; j < kns; j++) {
+				double sum = 0.0;
+				for (int ki = 0; ki < km; ki++) {
+					int row = mOff + (i + ki) * n + j;
+					int krow = kOff + ki * kn;
+					for (int kj = 0; kj < kn; kj++)
+						sum += matrix[row + kj] * kernel[krow + kj];
+				}
+				if (accumulate)
+					out[o + j] += sum;
+				else
+					out[o + j] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #convnValid(double[], int, int, int, double[], int, int, int, double[], int, boolean)},
+	 * the sums are written or added into double storage
+	 * 
+	 * @param matrix
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param kernel
+	 * @param kOff
+	 * @param km
+	 * @param kn
+	 * @param out
+	 * @param outOff
+	 * @param accumulate
+	 */
+	public static void convnValid(final float[] matrix, int mOff, int m,
+			int n, final float[] kernel, int kOff, int km, int kn,
+			final double[] out, int outOff, boolean accumulate) {
+		final int kms = m - km + 1;
+		final int kns = n - kn + 1;
+		for (int i = 0; i < kms; i++) {
+			int o = outOff + i * kns;
+			for (int j = 0; j < kns; j++) {
+				float sum = 0f;
+				for (int ki = 0; ki < km; ki++) {
+					int row = mOff + (i + ki) * n + j;
+					int krow = kOff + ki * kn;
+					for (int kj = 0; kj < kn; kj++)
+						sum += matrix[row + kj] * kernel[krow + kj];
+				}
+				if (accumulate)
+					out[o + j] += sum;
+				else
+					out[o + j] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Full mode convolution of the m x n matrix at mOff with the km x kn
+	 * kernel at kOff rotated by 180 degrees, added into the (m + km - 1) x (n
+	 * + kn - 1) matrix at outOff. Same result as convnFull(matrix,
+	 * rot180(kernel)) without copying or padding anything
+	 * 
+	 * @param matrix
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param kernel
+	 * @param kOff
+	 * @param km
+	 * @param kn
+	 * @param out
+	 * @param outOff
+	 */
+	public static void convnFullRot180(final double[] matrix, int mOff,
+			int m, int n, final double[] kernel, int kOff, int km, int kn,
+			final double[] out, int outOff) {
+		final int on = n + kn - 1;
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < n; j++) {
+				double value = matrix[mOff + i * n + j];
+				for (int ki = 0; ki < km; ki++) {
+					int o = outOff + (i + ki) * on + j;
+					int krow = kOff + ki * kn;
+					for (int kj = 0; kj < kn; kj++)
+						out[o + kj] += value * kernel[krow + kj];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #convnFullRot180(double[], int, int, int, double[], int, int, int, double[], int)}
+	 * 
+	 * @param matrix
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param kernel
+	 * @param kOff
+	 * @param km
+	 * @param kn
+	 * @param out
+	 * @param outOff
+	 */
+	public static void convnFullRot180(final float[] matrix, int mOff,
+			int m, int n, final float[] kernel, int kOff, int km, int kn,
+			final float[] out, int outOff) {
+		final int on = n + kn - 1;
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < n; j++) {
+				float value = matrix[mOff + i * n + j];
+				for (int ki = 0; ki < km; ki++) {
+					int o = outOff + (i + ki) * on + j;
+					int krow = kOff + ki * kn;
+					for (int kj = 0; kj < kn; kj++)
+						out[o + kj] += value * kernel[krow + kj];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mean reduction on flat row-major storage, the m x n matrix at mOff is
+	 * reduced into the (m / scale.x) x (n / scale.y) matrix at outOff
+	 * 
+	 * @param matrix
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param scale
+	 * @param out
+	 * @param outOff
+	 */
+	public static void scaleMatrix(final double[] matrix, int mOff, int m,
+			int n, final Size scale, final double[] out, int outOff) {
+		final int sm = m / scale.x;
+		final int sn = n / scale.y;
+		if (sm * scale.x != m || sn * scale.y != n)
+			throw new RuntimeException("scale不能整除matrix");
+		final int size = scale.x * scale.y;
+		for (int i = 0; i < sm; i++) {
+			for (int j = 0; j < sn; j++) {
+				double sum = 0.0;
+				for (int si = i * scale.x; si < (i + 1) * scale.x; si++) {
+					int row = mOff + si * n;
+					for (int sj = j * scale.y; sj < (j + 1) * scale.y; sj++)
+						sum += matrix[row + sj];
+				}
+				out[outOff + i * sn + j] = sum / size;
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #scaleMatrix(double[], int, int, int, Size, double[], int)}
+	 * 
+	 * @param matrix
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param scale
+	 * @param out
+	 * @param outOff
+	 */
+	public static void scaleMatrix(final float[] matrix, int mOff, int m,
+			int n, final Size scale, final float[] out, int outOff) {
+		final int sm = m / scale.x;
+		final int sn = n / scale.y;
+		if (sm * scale.x != m || sn * scale.y != n)
+			throw new RuntimeException("scale不能整除matrix");
+		final float size = scale.x * scale.y;
+		for (int i = 0; i < sm; i++) {
+			for (int j = 0; j < sn; j++) {
+				float sum = 0f;
+				for (int si = i * scale.x; si < (i + 1) * scale.x; si++) {
+					int row = mOff + si * n;
+					for (int sj = j * scale.y; sj < (j + 1) * scale.y; sj++)
+						sum += matrix[row + sj];
+				}
+				out[outOff + i * sn + j] = sum / size;
+			}
+		}
+	}
+
 	/**
 	 * 三维矩阵的卷积,这里要求两个矩阵的一维相同
 	 * 
@@ -420,7 +701,90 @@ public class Util {
 	}
 
 	public static double sigmod(double x) {
-		return 1 / (1 + Math.pow(Math.E, -x));
+		return sigmoid.value(x);
+	}
+
+	public static float sigmod(float x) {
+		return sigmoid.value(x);
+	}
+
+	/**
+	 * Choose the sigmoid implementation of all layers, call it before
+	 * training or inference starts. {@link Sigmoid#RATIONAL} saturates to
+	 * exactly 0 and 1, which stops the gradient of a saturated output unit,
+	 * so train with {@link Sigmoid#EXACT} and switch for inference
+	 * 
+	 * @param sigmoid
+	 */
+	public static void setSigmod(Sigmoid sigmoid) {
+		Util.sigmoid = sigmoid;
+	}
+
+	public static Sigmoid getSigmod() {
+		return sigmoid;
+	}
+
+	/**
+	 * Residual of a sigmoid layer feeding a mean sampling layer in one sweep,
+	 * out = map * (1 - map) * kronecker(next, scale) on flat row-major
+	 * storage. The m x n map at mOff and the (m / scale.x) x (n / scale.y)
+	 * next residual at nOff give the m x n residual at outOff, without the
+	 * clone, one_value and kronecker temporaries
+	 * 
+	 * @param map
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param next
+	 * @param nOff
+	 * @param scale
+	 * @param out
+	 * @param outOff
+	 */
+	public static void sigmodDerivKronecker(final double[] map, int mOff,
+			int m, int n, final double[] next, int nOff, final Size scale,
+			final double[] out, int outOff) {
+		final int sn = n / scale.y;
+		int o = mOff;
+		int e = outOff;
+		for (int x = 0; x < m; x++) {
+			int nextRow = nOff + (x / scale.x) * sn;
+			for (int ny = 0; ny < sn; ny++) {
+				double value = next[nextRow + ny];
+				for (int sy = 0; sy < scale.y; sy++, o++, e++)
+					out[e] = map[o] * (1 - map[o]) * value;
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #sigmodDerivKronecker(double[], int, int, int, double[], int, Size, double[], int)}
+	 * 
+	 * @param map
+	 * @param mOff
+	 * @param m
+	 * @param n
+	 * @param next
+	 * @param nOff
+	 * @param scale
+	 * @param out
+	 * @param outOff
+	 */
+	public static void sigmodDerivKronecker(final float[] map, int mOff,
+			int m, int n, final float[] next, int nOff, final Size scale,
+			final float[] out, int outOff) {
+		final int sn = n / scale.y;
+		int o = mOff;
+		int e = outOff;
+		for (int x = 0; x < m; x++) {
+			int nextRow = nOff + (x / scale.x) * sn;
+			for (int ny = 0; ny < sn; ny++) {
+				float value = next[nextRow + ny];
+				for (int sy = 0; sy < scale.y; sy++, o++, e++)
+					out[e] = map[o] * (1 - map[o]) * value;
+			}
+		}
 	}
 
 	/**
@@ -442,6 +806,36 @@ public class Util {
 		return sum;
 	}
 
+	/**
+	 * Sum len elements of flat storage from off
+	 * 
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public static double sum(double[] data, int off, int len) {
+		double sum = 0.0;
+		for (int i = off; i < off + len; i++)
+			sum += data[i];
+		return sum;
+	}
+
+	/**
+	 * Sum len elements of single precision storage from off, in double
+	 * 
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public static double sum(float[] data, int off, int len) {
+		double sum = 0.0;
+		for (int i = off; i < off + len; i++)
+			sum += data[i];
+		return sum;
+	}
+
 	/**
 	 * 对errors[...][j]元素求和
 	 * 
@@ -450,9 +844,21 @@ public class Util {
 	 * @return
 	 */
 	public static double[][] sum(double[][][][] errors, int j) {
+		return sum(errors, j, new double[errors[0][j].length][errors[0][j][0].length]);
+	}
+
+	/**
+	 * Sum errors[...][j] into result
+	 * 
+	 * @param errors
+	 * @param j
+	 * @param result
+	 * @return result
+	 */
+	public static double[][] sum(double[][][][] errors, int j,
+			double[][] result) {
 		int m = errors[0][j].length;
 		int n = errors[0][j][0].length;
-		double[][] result = new double[m][n];
 		for (int mi = 0; mi < m; mi++) {
 			for (int nj = 0; nj < n; nj++) {
 				double sum = 0;
@@ -622,6 +1028,44 @@ public class Util {
 		return index;
 	}
 
+	/**
+	 * 取最大的元素的下标, len elements of flat storage from off
+	 * 
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public static int getMaxIndex(double[] data, int off, int len) {
+		double max = data[off];
+		int index = 0;
+		for (int i = 1; i < len; i++)
+			if (data[off + i] > max) {
+				max = data[off + i];
+				index = i;
+			}
+		return index;
+	}
+
+	/**
+	 * 取最大的元素的下标, len elements of flat storage from off
+	 * 
+	 * @param data
+	 * @param off
+	 * @param len
+	 * @return
+	 */
+	public static int getMaxIndex(float[] data, int off, int len) {
+		float max = data[off];
+		int index = 0;
+		for (int i = 1; i < len; i++)
+			if (data[off + i] > max) {
+				max = data[off + i];
+				index = i;
+			}
+		return index;
+	}
+
 	public static String fomart(double[] data) {
 		StringBuilder sb = new StringBuilder("[");
 		for (double each : data)
@@ -0,0 +1,253 @@
+package util;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the hot kernels written with the Vector API. Only touch
+ * this class behind {@link Simd#ENABLED}, it fails to load when the
+ * jdk.incubator.vector module is not in the boot layer
+ *
+ *
+ */
+final class VectorKernels {
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	private VectorKernels() {
+	}
+
+	/**
+	 * Number of doubles in a vector register
+	 *
+	 * @return
+	 */
+	static int lanes() {
+		return DOUBLES.length();
+	}
+
+	/**
+	 * Vector version of the GEMM block, c is walked in tiles of 4 rows and one
+	 * vector of columns which stay in registers for the whole depth. With a
+	 * bias the tiles go through sigmod(c + bias) before they are stored
+	 */
+	static void block(int m, int n, int k, double[] a, int aOff, int lda,
+			double[] b, int bOff, int ldb, double[] c, int cOff, int ldc,
+			double[] bias, int biasOff) {
+		final int lanes = DOUBLES.length();
+		final Sigmoid sigmoid = Util.getSigmod();
+		// Exact and rational sigmoids run in registers, a table is looked up per lane
+		final boolean inRegisters = sigmoid == Sigmoid.EXACT
+				|| sigmoid == Sigmoid.RATIONAL;
+		final boolean rational = sigmoid == Sigmoid.RATIONAL;
+		final int m4 = m - m % 4;
+		final int nv = n - n % lanes;
+		for (int i = 0; i < m4; i += 4) {
+			int a0 = aOff + i * lda;
+			int a1 = a0 + lda;
+			int a2 = a1 + lda;
+			int a3 = a2 + lda;
+			for (int j = 0; j < nv; j += lanes) {
+				int c0 = cOff + i * ldc + j;
+				int c1 = c0 + ldc;
+				int c2 = c1 + ldc;
+				int c3 = c2 + ldc;
+				DoubleVector v0 = DoubleVector.fromArray(DOUBLES, c, c0);
+				DoubleVector v1 = DoubleVector.fromArray(DOUBLES, c, c1);
+				DoubleVector v2 = DoubleVector.fromArray(DOUBLES, c, c2);
+				DoubleVector v3 = DoubleVector.fromArray(DOUBLES, c, c3);
+				int bp = bOff + j;
+				for (int p = 0; p < k; p++, bp += ldb) {
+					DoubleVector bv = DoubleVector.fromArray(DOUBLES, b, bp);
+					v0 = bv.fma(DoubleVector.broadcast(DOUBLES, a[a0 + p]), v0);
+					v1 = bv.fma(DoubleVector.broadcast(DOUBLES, a[a1 + p]), v1);
+					v2 = bv.fma(DoubleVector.broadcast(DOUBLES, a[a2 + p]), v2);
+					v3 = bv.fma(DoubleVector.broadcast(DOUBLES, a[a3 + p]), v3);
+				}
+				if (bias != null && inRegisters) {
+					v0 = sigmod(v0, bias[biasOff + i], rational);
+					v1 = sigmod(v1, bias[biasOff + i + 1], rational);
+					v2 = sigmod(v2, bias[biasOff + i + 2], rational);
+					v3 = sigmod(v3, bias[biasOff + i + 3], rational);
+				}
+				v0.intoArray(c, c0);
+				v1.intoArray(c, c1);
+				v2.intoArray(c, c2);
+				v3.intoArray(c, c3);
+				if (bias != null && !inRegisters) {
+					for (int r = 0; r < 4; r++) {
+						int cr = c0 + r * ldc;
+						double s = bias[biasOff + i + r];
+						for (int q = 0; q < lanes; q++)
+							c[cr + q] = Util.sigmod(c[cr + q] + s);
+					}
+				}
+			}
+			// Remaining columns of these four rows
+			for (int r = i; r < i + 4; r++) {
+				int ar = aOff + r * lda;
+				int cr = cOff + r * ldc;
+				for (int j = nv; j < n; j++) {
+					double sum = c[cr + j];
+					for (int p = 0; p < k; p++)
+						sum += a[ar + p] * b[bOff + p * ldb + j];
+					c[cr + j] = bias == null ? sum : Util.sigmod(sum
+							+ bias[biasOff + r]);
+				}
+			}
+		}
+		// Remaining rows
+		for (int i = m4; i < m; i++) {
+			int ai = aOff + i * lda;
+			int ci = cOff + i * ldc;
+			for (int p = 0; p < k; p++) {
+				double av = a[ai + p];
+				int bp = bOff + p * ldb;
+				int j = 0;
+				for (; j < nv; j += lanes) {
+					DoubleVector.fromArray(DOUBLES, b, bp + j)
+							.fma(DoubleVector.broadcast(DOUBLES, av),
+									DoubleVector.fromArray(DOUBLES, c, ci + j))
+							.intoArray(c, ci + j);
+				}
+				for (; j < n; j++)
+					c[ci + j] += av * b[bp + j];
+			}
+			if (bias != null) {
+				double s = bias[biasOff + i];
+				for (int j = 0; j < n; j++)
+					c[ci + j] = Util.sigmod(c[ci + j] + s);
+			}
+		}
+	}
+
+	/**
+	 * Single precision version of
+	 * {@link #block(int, int, int, double[], int, int, double[], int, int, double[], int, int, double[], int)}
+	 */
+	static void block(int m, int n, int k, float[] a, int aOff, int lda,
+			float[] b, int bOff, int ldb, float[] c, int cOff, int ldc,
+			double[] bias, int biasOff) {
+		final int lanes = FLOATS.length();
+		final Sigmoid sigmoid = Util.getSigmod();
+		// Exact and rational sigmoids run in registers, a table is looked up per lane
+		final boolean inRegisters = sigmoid == Sigmoid.EXACT
+				|| sigmoid == Sigmoid.RATIONAL;
+		final boolean rational = sigmoid == Sigmoid.RATIONAL;
+		final int m4 = m - m % 4;
+		final int nv = n - n % lanes;
+		for (int i = 0; i < m4; i += 4) {
+			int a0 = aOff + i * lda;
+			int a1 = a0 + lda;
+			int a2 = a1 + lda;
+			int a3 = a2 + lda;
+			for (int j = 0; j < nv; j += lanes) {
+				int c0 = cOff + i * ldc + j;
+				int c1 = c0 + ldc;
+				int c2 = c1 + ldc;
+				int c3 = c2 + ldc;
+				FloatVector v0 = FloatVector.fromArray(FLOATS, c, c0);
+				FloatVector v1 = FloatVector.fromArray(FLOATS, c, c1);
+				FloatVector v2 = FloatVector.fromArray(FLOATS, c, c2);
+				FloatVector v3 = FloatVector.fromArray(FLOATS, c, c3);
+				int bp = bOff + j;
+				for (int p = 0; p < k; p++, bp += ldb) {
+					FloatVector bv = FloatVector.fromArray(FLOATS, b, bp);
+					v0 = bv.fma(FloatVector.broadcast(FLOATS, a[a0 + p]), v0);
+					v1 = bv.fma(FloatVector.broadcast(FLOATS, a[a1 + p]), v1);
+					v2 = bv.fma(FloatVector.broadcast(FLOATS, a[a2 + p]), v2);
+					v3 = bv.fma(FloatVector.broadcast(FLOATS, a[a3 + p]), v3);
+				}
+				if (bias != null && inRegisters) {
+					v0 = sigmod(v0, (float) bias[biasOff + i], rational);
+					v1 = sigmod(v1, (float) bias[biasOff + i + 1], rational);
+					v2 = sigmod(v2, (float) bias[biasOff + i + 2], rational);
+					v3 = sigmod(v3, (float) bias[biasOff + i + 3], rational);
+				}
+				v0.intoArray(c, c0);
+				v1.intoArray(c, c1);
+				v2.intoArray(c, c2);
+				v3.intoArray(c, c3);
+				if (bias != null && !inRegisters) {
+					for (int r = 0; r < 4; r++) {
+						int cr = c0 + r * ldc;
+						float s = (float) bias[biasOff + i + r];
+						for (int q = 0; q < lanes; q++)
+							c[cr + q] = Util.sigmod(c[cr + q] + s);
+					}
+				}
+			}
+			for (int r = i; r < i + 4; r++) {
+				int ar = aOff + r * lda;
+				int cr = cOff + r * ldc;
+				for (int j = nv; j < n; j++) {
+					float sum = c[cr + j];
+					for (int p = 0; p < k; p++)
+						sum += a[ar + p] * b[bOff + p * ldb + j];
+					c[cr + j] = bias == null ? sum : Util.sigmod(sum
+							+ (float) bias[biasOff + r]);
+				}
+			}
+		}
+		for (int i = m4; i < m; i++) {
+			int ai = aOff + i * lda;
+			int ci = cOff + i * ldc;
+			for (int p = 0; p < k; p++) {
+				float av = a[ai + p];
+				int bp = bOff + p * ldb;
+				int j = 0;
+				for (; j < nv; j += lanes) {
+					FloatVector.fromArray(FLOATS, b, bp + j)
+							.fma(FloatVector.broadcast(FLOATS, av),
+									FloatVector.fromArray(FLOATS, c, ci + j))
+							.intoArray(c, ci + j);
+				}
+				for (; j < n; j++)
+					c[ci + j] += av * b[bp + j];
+			}
+			if (bias != null) {
+				float s = (float) bias[biasOff + i];
+				for (int j = 0; j < n; j++)
+					c[ci + j] = Util.sigmod(c[ci + j] + s);
+			}
+		}
+	}
+
+	/**
+	 * sigmod(v + bias) on every lane, exact or with the rational
+	 * approximation of {@link Sigmoid#RATIONAL}
+	 */
+	private static DoubleVector sigmod(DoubleVector v, double bias,
+			boolean rational) {
+		DoubleVector ones = DoubleVector.broadcast(DOUBLES, 1.0);
+		if (!rational)
+			return ones.div(v.add(bias).neg().lanewise(VectorOperators.EXP)
+					.add(ones));
+		DoubleVector y = v.add(bias).mul(0.5).max(-Sigmoid.CLAMP)
+				.min(Sigmoid.CLAMP);
+		DoubleVector y2 = y.mul(y);
+		DoubleVector num = y2.add(378).mul(y2).add(17325).mul(y2).add(135135)
+				.mul(y);
+		DoubleVector den = y2.mul(28).add(3150).mul(y2).add(62370).mul(y2)
+				.add(135135);
+		return num.div(den).max(-1.0).min(1.0).mul(0.5).add(0.5);
+	}
+
+	private static FloatVector sigmod(FloatVector v, float bias,
+			boolean rational) {
+		FloatVector ones = FloatVector.broadcast(FLOATS, 1f);
+		if (!rational)
+			return ones.div(v.add(bias).neg().lanewise(VectorOperators.EXP)
+					.add(ones));
+		final float clamp = (float) Sigmoid.CLAMP;
+		FloatVector y = v.add(bias).mul(0.5f).max(-clamp).min(clamp);
+		FloatVector y2 = y.mul(y);
+		FloatVector num = y2.add(378f).mul(y2).add(17325f).mul(y2)
+				.add(135135f).mul(y);
+		FloatVector den = y2.mul(28f).add(3150f).mul(y2).add(62370f).mul(y2)
+				.add(135135f);
+		return num.div(den).max(-1f).min(1f).mul(0.5f).add(0.5f);
+	}
+}
@@ -0,0 +1,69 @@
+package dataset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import dataset.CsvLoader.Chunk;
+
+public class CsvLoaderTest {
+
+	private static Chunk[] load(String text, String tag, int lableIndex)
+			throws IOException {
+		File file = File.createTempFile("csv", ".txt");
+		try {
+			FileWriter writer = new FileWriter(file);
+			try {
+				writer.write(text);
+			} finally {
+				writer.close();
+			}
+			return CsvLoader.load(file.getPath(), tag, lableIndex);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static int rows(Chunk[] chunks) {
+		int rows = 0;
+		for (Chunk chunk : chunks)
+			rows += chunk.rows;
+		return rows;
+	}
+
+	@Test
+	public void trailingSeparatorIsIgnored() throws IOException {
+		Chunk[] chunks = load("1,2,3,\n4,5,6,,\r\n", ",", 2);
+		assertEquals(2, rows(chunks));
+		Chunk chunk = chunks[0];
+		assertArrayEquals(new double[] { 1, 2 }, chunk.attrs[0], 0);
+		assertEquals(3, chunk.lables[0], 0);
+		assertArrayEquals(new double[] { 4, 5 }, chunk.attrs[1], 0);
+		assertEquals(6, chunk.lables[1], 0);
+	}
+
+	@Test
+	public void lineOfSeparatorsIsSkipped() throws IOException {
+		Chunk[] chunks = load("1,2\n,,,\n3,4\n", ",", 1);
+		assertEquals(2, rows(chunks));
+		Chunk chunk = chunks[0];
+		assertArrayEquals(new double[] { 1 }, chunk.attrs[0], 0);
+		assertArrayEquals(new double[] { 3 }, chunk.attrs[1], 0);
+		assertEquals(4, chunk.lables[1], 0);
+	}
+
+	@Test
+	public void matchesSplit() throws IOException {
+		String text = "1.5,-2,3e2,\n,,\n0.25,7,8\n";
+		Chunk byHand = load(text, ",", -1)[0];
+		Chunk regex = load(text, ",+", -1)[0];
+		assertEquals(regex.rows, byHand.rows);
+		for (int r = 0; r < regex.rows; r++)
+			assertArrayEquals(regex.attrs[r], byHand.attrs[r], 0);
+	}
+}